@@ -0,0 +1,254 @@
+package com.saucelabs.grid;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * {@link Handler} which hands log records to a background thread, so that threads forwarding requests to Sauce aren't
+ * blocked writing to the log file.  Records are held in a fixed size ring buffer, and are dropped (and counted) if
+ * the buffer is full, rather than blocking the logging thread.  The background thread writes the records in
+ * batches to a {@link RotatingLogFile}, flushing the file once per batch.
+ * <p/>
+ * Inferring a record's caller walks the stack of the logging thread, so by default it isn't done: records which
+ * don't name their source class and method (see {@link java.util.logging.Logger#logp}) are written with the name of
+ * their logger.
+ * <p/>
+ * Configured by the following LogManager properties:
+ * <ul>
+ * <li>com.saucelabs.grid.AsyncLogHandler.pattern - file to write to (defaults to grid.log)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.append - whether to append to the file (defaults to true)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.limit - size in bytes at which the file is rotated (defaults to 0, no
+ * limit)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.count - number of files to keep when rotating (defaults to 1)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.rotationInterval - milliseconds after which the file is rotated (defaults
+ * to 0, not rotated by time)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.capacity - number of records the buffer holds (defaults to 8192)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.batchSize - maximum number of records written per batch (defaults to 256)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.inferCaller - whether to infer the caller of records which don't name
+ * their source (defaults to false)</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.level - defaults to ALL</li>
+ * <li>com.saucelabs.grid.AsyncLogHandler.formatter - defaults to {@link LogFormatter}</li>
+ * </ul>
+ * Records are written in UTF-8.
+ *
+ * @author Ross Rowe
+ */
+public class AsyncLogHandler extends Handler {
+
+    static final int DEFAULT_CAPACITY = 8192;
+    static final int DEFAULT_BATCH_SIZE = 256;
+    private static final String DEFAULT_PATTERN = "grid.log";
+    private static final long POLL_INTERVAL = 100;
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private final BlockingQueue<LogRecord> buffer;
+    private final int batchSize;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object writeLock = new Object();
+    private final Thread writerThread;
+    private Writer writer;
+    private volatile boolean closed;
+    private volatile boolean inferCaller;
+
+    /**
+     * Creates a handler configured from the LogManager properties.
+     *
+     * @throws IOException if the log file can't be opened
+     */
+    public AsyncLogHandler() throws IOException {
+        this(new RotatingLogFile(new File(getProperty("pattern", DEFAULT_PATTERN)),
+                Boolean.valueOf(getProperty("append", "true")),
+                Long.parseLong(getProperty("limit", "0")),
+                Integer.parseInt(getProperty("count", "1")),
+                Long.parseLong(getProperty("rotationInterval", "0"))),
+                Integer.parseInt(getProperty("capacity", String.valueOf(DEFAULT_CAPACITY))),
+                Integer.parseInt(getProperty("batchSize", String.valueOf(DEFAULT_BATCH_SIZE))));
+        setLevel(Level.parse(getProperty("level", "ALL")));
+        setInferCaller(Boolean.valueOf(getProperty("inferCaller", "false")));
+        String formatter = getProperty("formatter", null);
+        if (formatter != null) {
+            try {
+                setFormatter((Formatter) ClassLoader.getSystemClassLoader().loadClass(formatter).newInstance());
+            } catch (Exception e) {
+                reportError("Unable to create formatter " + formatter, e, ErrorManager.OPEN_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * @param out       stream the records are written to
+     * @param capacity  number of records the buffer holds
+     * @param batchSize maximum number of records written per batch
+     */
+    public AsyncLogHandler(OutputStream out, int capacity, int batchSize) {
+        this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+        this.batchSize = batchSize;
+        this.writer = createWriter(out);
+        setFormatter(new LogFormatter());
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeRecords();
+            }
+        }, "sauce-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+        String value = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + "." + name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    private static Writer createWriter(OutputStream out) {
+        try {
+            //the rotating file buffers its own writes
+            return new OutputStreamWriter(out instanceof RotatingLogFile ? out : new BufferedOutputStream(out), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds the record to the buffer, or drops it if the buffer is full.
+     *
+     * @param record
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) {
+            return;
+        }
+        if (inferCaller) {
+            //the caller is inferred from the current stack, so has to be found before the record is handed off
+            record.getSourceClassName();
+        }
+        if (record.getParameters() != null && record.getParameters().length != 0) {
+            //format the message now, as the parameters may have changed by the time the record is written
+            record.setMessage(getFormatter().formatMessage(record));
+            record.setParameters(null);
+        }
+        if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param inferCaller whether to infer the caller of records which don't name their source class and method
+     */
+    public void setInferCaller(boolean inferCaller) {
+        this.inferCaller = inferCaller;
+    }
+
+    /**
+     * @return the number of records which have been dropped because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void writeRecords() {
+        List<LogRecord> batch = new ArrayList<LogRecord>(batchSize);
+        StringBuilder builder = new StringBuilder();
+        long reportedDropped = 0;
+        while (!closed || !buffer.isEmpty()) {
+            try {
+                LogRecord record = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    continue;
+                }
+                batch.add(record);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            buffer.drainTo(batch, batchSize - 1);
+            long totalDropped = dropped.get();
+            if (totalDropped != reportedDropped) {
+                builder.append("[").append(getClass().getSimpleName()).append("] ")
+                        .append(totalDropped - reportedDropped).append(" log records dropped\n");
+                reportedDropped = totalDropped;
+            }
+            for (LogRecord record : batch) {
+                try {
+                    builder.append(getFormatter().format(record));
+                } catch (Exception e) {
+                    reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                }
+            }
+            write(builder);
+            batch.clear();
+            builder.setLength(0);
+        }
+    }
+
+    private void write(CharSequence text) {
+        synchronized (writeLock) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.append(text);
+                writer.flush();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Flushes the records which have been written, without waiting for the buffered records.
+     */
+    @Override
+    public void flush() {
+        synchronized (writeLock) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered records, and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writerThread.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                reportError(null, e, ErrorManager.CLOSE_FAILURE);
+            }
+            writer = null;
+        }
+    }
+}
@@ -1,40 +1,215 @@
 package com.saucelabs.grid;
 
+import com.saucelabs.grid.services.BrowsersResponse;
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import com.saucelabs.grid.services.SauceOnDemandService;
+
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Retains a cache of the browser information retrieved from Sauce.
- *
- * TODO handle expiring of the cache
+ * <p/>
+ * Caches which are created with a {@link SauceOnDemandService} expire after a time-to-live.  Once expired, the
+ * cached browsers continue to be served while a single background refresh is performed.  The refresh issues a
+ * conditional request, so an unchanged catalog only costs a 304 response.  Only the very first load, when there is
+ * nothing to serve, is performed on the calling thread.
+ * <p/>
+ * If a {@link SauceOnDemandSnapshot} is supplied, the first load is served from the snapshot (and immediately
+ * refreshed in the background), and each catalog retrieved from Sauce is written back to the snapshot.
  *
  * @author François Reynaud - Initial version of plugin
  * @author Ross Rowe - Additional functionality
  */
 public class BrowsersCache {
 
-  private Map<String, SauceOnDemandCapabilities> map = new HashMap<String, SauceOnDemandCapabilities>();
+  private static final Logger logger = Logger.getLogger(BrowsersCache.class.getName());
+
+  public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(30);
+
+  private static final Executor refresher = Executors.newSingleThreadExecutor(
+          SauceOnDemandThreads.newThreadFactory("sauce-browsers-refresh-%d"));
+
+  /**
+   * The browser catalogs that are available from Sauce.
+   */
+  public enum Catalog {
+    WEB_DRIVER, SELENIUM_RC
+  }
 
+  private final SauceOnDemandService service;
+  private final Catalog catalog;
+  private final SauceOnDemandSnapshot snapshot;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile Entry entry;
+  private volatile long ttl = DEFAULT_TTL;
+
+  /**
+   * Creates a cache of a fixed list of browsers, which is never refreshed.
+   */
   public BrowsersCache(List<SauceOnDemandCapabilities> caps) {
-    for (SauceOnDemandCapabilities cap : caps) {
-      map.put(cap.getMD5(), cap);
-    }
+    this.service = null;
+    this.catalog = null;
+    this.snapshot = null;
+    this.entry = new Entry(caps, Long.MAX_VALUE, null, null);
   }
 
+  /**
+   * Creates a cache which is loaded from Sauce on first use, and refreshed once the time-to-live has expired.
+   */
+  public BrowsersCache(SauceOnDemandService service, Catalog catalog) {
+    this(service, catalog, null);
+  }
+
+  /**
+   * Creates a cache which is initially loaded from the snapshot (if it contains the catalog), and otherwise from
+   * Sauce on first use.
+   */
+  public BrowsersCache(SauceOnDemandService service, Catalog catalog, SauceOnDemandSnapshot snapshot) {
+    this.service = service;
+    this.catalog = catalog;
+    this.snapshot = snapshot;
+  }
 
   public SauceOnDemandCapabilities get(String md5) {
-    SauceOnDemandCapabilities res = map.get(md5);
-    if (res == null) {
-      return null;
-    } else {
-      return res;
+    return current().map.get(md5);
+  }
+
+  public Collection<SauceOnDemandCapabilities> getAllBrowsers() {
+    return current().sorted;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @param ttl time (in milliseconds) after which the cached browsers are refreshed
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  /**
+   * Returns the cached browsers, loading them if the cache is empty, or triggering a background refresh if they have
+   * expired.
+   */
+  private Entry current() {
+    Entry current = entry;
+    if (current == null) {
+      current = load();
+    }
+    if (service != null && System.currentTimeMillis() - current.fetchedAt > ttl) {
+      refreshInBackground();
+    }
+    return current;
+  }
+
+  /**
+   * Performs the initial load.  Concurrent callers wait for the same load rather than each calling Sauce.
+   */
+  private synchronized Entry load() {
+    if (entry == null && snapshot != null) {
+      BrowsersResponse stored = snapshot.getBrowsers(catalog);
+      if (stored != null) {
+        //already expired, so that it is reconciled with Sauce in the background
+        entry = new Entry(stored.getBrowsers(), 0, stored.getETag(), stored.getLastModified());
+        return entry;
+      }
+    }
+    if (entry == null) {
+      try {
+        entry = fetch(null);
+      } catch (SauceOnDemandRestAPIException e) {
+        logger.log(Level.SEVERE, "Error invoking Sauce REST API", e);
+        //serve an empty (already expired) list, so that the next call retries
+        return new Entry(Collections.<SauceOnDemandCapabilities>emptyList(), 0, null, null);
+      }
+    }
+    return entry;
+  }
+
+  private void refreshInBackground() {
+    if (refreshing.compareAndSet(false, true)) {
+      refresher.execute(new Runnable() {
+        public void run() {
+          try {
+            refresh();
+          } finally {
+            refreshing.set(false);
+          }
+        }
+      });
     }
   }
-  
-  public Collection<SauceOnDemandCapabilities> getAllBrowsers(){
-      ArrayList<SauceOnDemandCapabilities> list = new ArrayList<SauceOnDemandCapabilities>();
-      list.addAll(map.values());
+
+  /**
+   * Reloads the browsers from Sauce, blocking until the request completes.
+   */
+  public void refresh() {
+    try {
+      entry = fetch(entry);
+    } catch (SauceOnDemandRestAPIException e) {
+      logger.log(Level.WARNING, "Unable to refresh " + catalog + " browsers, continuing to use cached browsers", e);
+    }
+  }
+
+  private Entry fetch(Entry previous) throws SauceOnDemandRestAPIException {
+    String eTag = previous == null ? null : previous.eTag;
+    String lastModified = previous == null ? null : previous.lastModified;
+    BrowsersResponse response = catalog == Catalog.WEB_DRIVER
+            ? service.getWebDriverBrowsers(eTag, lastModified)
+            : service.getSeleniumBrowsers(eTag, lastModified);
+    if (response.isNotModified() && previous != null) {
+      return previous.touch(System.currentTimeMillis());
+    }
+    if (snapshot != null) {
+      snapshot.saveBrowsers(catalog, response);
+    }
+    return new Entry(response.getBrowsers(), System.currentTimeMillis(), response.getETag(), response.getLastModified());
+  }
+
+  /**
+   * Immutable snapshot of the cached browsers, along with the validators needed to issue a conditional request.
+   */
+  private static class Entry {
+
+    private final Map<String, SauceOnDemandCapabilities> map;
+    private final Collection<SauceOnDemandCapabilities> sorted;
+    private final long fetchedAt;
+    private final String eTag;
+    private final String lastModified;
+
+    Entry(List<SauceOnDemandCapabilities> caps, long fetchedAt, String eTag, String lastModified) {
+      Map<String, SauceOnDemandCapabilities> map = new HashMap<String, SauceOnDemandCapabilities>();
+      for (SauceOnDemandCapabilities cap : caps) {
+        map.put(cap.getMD5(), cap);
+      }
+      ArrayList<SauceOnDemandCapabilities> list = new ArrayList<SauceOnDemandCapabilities>(map.values());
       Collections.sort(list);
-      return list;
+      this.map = map;
+      this.sorted = Collections.unmodifiableList(list);
+      this.fetchedAt = fetchedAt;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    private Entry(Entry from, long fetchedAt) {
+      this.map = from.map;
+      this.sorted = from.sorted;
+      this.fetchedAt = fetchedAt;
+      this.eTag = from.eTag;
+      this.lastModified = from.lastModified;
+    }
+
+    Entry touch(long fetchedAt) {
+      return new Entry(this, fetchedAt);
+    }
   }
 
 }
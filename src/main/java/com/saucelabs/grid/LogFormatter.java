@@ -7,22 +7,97 @@ import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 /**
+ * Formats log records as '[Thread-id] yyyy/MM/dd hh:mm:ss.SSSS [class.method] -[level] - message'.  Records whose
+ * caller isn't known are formatted with the name of their logger in place of the class and method.
+ * <p/>
+ * Each thread keeps its own date format and buffer, and the timestamp is only rendered by the date format when the
+ * second changes, so formatting a record only allocates the resulting String (and the message, if the record has
+ * parameters).
+ *
  * @author Ross Rowe
  */
 public class LogFormatter extends Formatter {
 
     private static final String DATE_FORMAT = "yyyy/MM/dd hh:mm:ss.SSSS";
+    /**
+     * Buffers which have grown beyond this size (formatting a very long message) are discarded rather than reused.
+     */
+    private static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<Timestamp> timestamp = new ThreadLocal<Timestamp>() {
+        @Override
+        protected Timestamp initialValue() {
+            return new Timestamp();
+        }
+    };
+
+    private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
     @Override
     public String format(LogRecord record) {
-        DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-        StringBuilder builder = new StringBuilder();
+        StringBuilder builder = buffer.get();
+        builder.setLength(0);
         builder.append("[Thread-").append(record.getThreadID()).append("] ");
-        builder.append(dateFormat.format(new Date(record.getMillis()))).append(' ');
-        builder.append('[').append(record.getSourceClassName()).append(".");
-        builder.append(record.getSourceMethodName()).append("] -");
+        timestamp.get().append(builder, record.getMillis());
+        builder.append(' ');
+        String sourceClassName = record.getSourceClassName();
+        if (sourceClassName == null) {
+            builder.append('[').append(record.getLoggerName()).append("] -");
+        } else {
+            builder.append('[').append(sourceClassName).append(".");
+            builder.append(record.getSourceMethodName()).append("] -");
+        }
         builder.append('[').append(record.getLevel()).append("] - ");
         builder.append(formatMessage(record));
         builder.append("\n");
-        return builder.toString();
+        String result = builder.toString();
+        if (builder.capacity() > MAX_BUFFER_SIZE) {
+            buffer.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Renders timestamps in the {@link #DATE_FORMAT}, caching the text up to the seconds.
+     */
+    private static class Timestamp {
+
+        private final DateFormat secondsFormat = new SimpleDateFormat(DATE_FORMAT.substring(0, DATE_FORMAT.indexOf('.') + 1));
+        private final Date date = new Date();
+        private long second = Long.MIN_VALUE;
+        private String seconds;
+
+        void append(StringBuilder builder, long millis) {
+            long currentSecond = floorDiv(millis, 1000);
+            if (currentSecond != second) {
+                date.setTime(millis);
+                seconds = secondsFormat.format(date);
+                second = currentSecond;
+            }
+            builder.append(seconds);
+            //SSSS pads the milliseconds to four digits
+            int milliseconds = (int) (millis - currentSecond * 1000);
+            builder.append('0');
+            if (milliseconds < 100) {
+                builder.append('0');
+            }
+            if (milliseconds < 10) {
+                builder.append('0');
+            }
+            builder.append(milliseconds);
+        }
+
+        private static long floorDiv(long x, long y) {
+            long result = x / y;
+            if ((x % y != 0) && ((x ^ y) < 0)) {
+                result--;
+            }
+            return result;
+        }
     }
 }
@@ -0,0 +1,135 @@
+package com.saucelabs.grid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Log file which is written through a buffered {@link FileChannel}, and is rotated once it reaches a size limit or
+ * once the rotation interval has elapsed.  Rotation renames the file to file.1 (file.1 to file.2 and so on, deleting
+ * the oldest file), and starts a new file.
+ * <p/>
+ * Rotation is checked when the stream is flushed, so that records aren't split across files; {@link AsyncLogHandler}
+ * flushes once per batch, so a file can exceed the limit by up to one batch of records.
+ *
+ * @author Ross Rowe
+ */
+public class RotatingLogFile extends OutputStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long limit;
+    private final int count;
+    private final long interval;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel channel;
+    private long size;
+    private long nextRotation;
+
+    /**
+     * @param file     file to write to
+     * @param append   whether to append to an existing file, or to truncate it
+     * @param limit    size in bytes at which the file is rotated, or 0 to not rotate by size
+     * @param count    number of files to keep, including the current file
+     * @param interval milliseconds after which the file is rotated, or 0 to not rotate by time
+     * @throws IOException if the file can't be opened
+     */
+    public RotatingLogFile(File file, boolean append, long limit, int count, long interval) throws IOException {
+        this.file = file;
+        this.limit = limit;
+        this.count = Math.max(1, count);
+        this.interval = interval;
+        open(append);
+    }
+
+    private void open(boolean append) throws IOException {
+        channel = new FileOutputStream(file, append).getChannel();
+        size = channel.size();
+        nextRotation = interval > 0 ? System.currentTimeMillis() + interval : Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the buffered bytes to the file, and rotates the file if it has reached the size limit or the rotation
+     * interval has elapsed.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+        if ((limit > 0 && size >= limit) || System.currentTimeMillis() >= nextRotation) {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        for (int i = count - 1; i > 0; i--) {
+            File rotated = getRotatedFile(i);
+            if (rotated.exists()) {
+                File next = getRotatedFile(i + 1);
+                next.delete();
+                rotated.renameTo(next);
+            }
+        }
+        if (count > 1) {
+            File first = getRotatedFile(1);
+            first.delete();
+            file.renameTo(first);
+        }
+        getRotatedFile(count).delete();
+        open(false);
+    }
+
+    File getRotatedFile(int index) {
+        return new File(file.getPath() + "." + index);
+    }
+
+    /**
+     * @return the number of bytes written to the current file
+     */
+    public synchronized long getSize() {
+        return size + buffer.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            drain();
+            channel.close();
+        }
+    }
+}
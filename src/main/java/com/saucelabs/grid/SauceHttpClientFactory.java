@@ -1,44 +1,599 @@
 package com.saucelabs.grid;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.params.CookiePolicy;
-import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.RedirectStrategy;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.openqa.grid.common.exception.ClientGoneException;
 import org.openqa.selenium.remote.internal.HttpClientFactory;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProxySelector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * {@link HttpClientFactory} subclass that will include the user credentials within the {@link HttpClient} instance.
+ * <p/>
+ * A client is built once for each pair of timeouts, over a connection pool sized to the proxy's Sauce concurrency, and
+ * the clients are rebuilt if the credentials of the remote host or the egress proxy settings (http.proxyHost,
+ * http.proxyPort, http.proxyUser and http.proxyPassword, and their https equivalents for https hosts) change.
+ * <p/>
+ * The clients negotiate gzip or deflate compression with Sauce.  Compressed responses which are streamed to a client
+ * that accepts their encoding are passed through unchanged, and are otherwise decompressed as they are read.
  *
  * @author Ross Rowe
  */
 public class SauceHttpClientFactory extends HttpClientFactory {
 
-    private SauceOnDemandRemoteProxy proxy;
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    /**
+     * Context attribute holding the Accept-Encoding header sent by the hub's client.
+     */
+    private static final String CLIENT_ACCEPT_ENCODING = "sauce.clientAcceptEncoding";
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    /**
+     * Connections kept on top of one per concurrent Sauce session.
+     */
+    static final int CONNECTION_HEADROOM = 10;
+
+    private static final String[] PROXY_PROPERTIES = {"http.proxyHost", "http.proxyPort", "http.proxyUser",
+            "http.proxyPassword", "https.proxyHost", "https.proxyPort", "https.proxyUser", "https.proxyPassword"};
+
+    /**
+     * Buffers used to copy response bodies to the hub's clients.
+     */
+    static final SauceOnDemandBufferPool BUFFERS = new SauceOnDemandBufferPool();
+
+    /**
+     * Client response which the current thread's response body is streamed to, if it is being streamed.
+     */
+    private static final ThreadLocal<HttpServletResponse> streamTarget = new ThreadLocal<HttpServletResponse>();
+
+    /**
+     * Asks Sauce for a compressed response, remembering the encodings accepted by the hub's client.
+     */
+    static final HttpRequestInterceptor REQUEST_INTERCEPTOR = new HttpRequestInterceptor() {
+        public void process(HttpRequest request, HttpContext context) {
+            Header accepted = request.getFirstHeader(ACCEPT_ENCODING);
+            context.setAttribute(CLIENT_ACCEPT_ENCODING, accepted == null ? null : accepted.getValue());
+            request.setHeader(ACCEPT_ENCODING, GZIP + "," + DEFLATE);
+        }
+    };
+
+    /**
+     * Records the status and body size of responses received from Sauce in {@link SauceOnDemandMetrics}, decompresses
+     * compressed bodies unless they can be passed through to the client, and streams the response body to the client
+     * if {@link #streamResponseTo(HttpServletResponse)} has been called by the current thread.
+     */
+    static final HttpResponseInterceptor RESPONSE_INTERCEPTOR = new HttpResponseInterceptor() {
+        public void process(HttpResponse response, HttpContext context) {
+            SauceOnDemandMetrics.responseReceived(response.getStatusLine().getStatusCode());
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return;
+            }
+            HttpServletResponse target = streamTarget.get();
+            String encoding = getContentEncoding(entity);
+            if (encoding != null) {
+                SauceOnDemandMetrics.compressedResponseReceived();
+                if (target != null && encoding.equals(GZIP) && context != null
+                        && accepts((String) context.getAttribute(CLIENT_ACCEPT_ENCODING), GZIP)) {
+                    entity = new GzipPassThroughEntity(entity);
+                } else {
+                    entity = encoding.equals(GZIP) ? new GzipDecompressingEntity(new CompressedEntity(entity))
+                            : new DeflateDecompressingEntity(new CompressedEntity(entity));
+                    entity = new DecompressedEntity(entity);
+                    response.removeHeaders(HTTP.CONTENT_ENCODING);
+                    response.removeHeaders(HTTP.CONTENT_LEN);
+                    response.removeHeaders("Content-MD5");
+                }
+            }
+            response.setEntity(target == null ? new CountingEntity(entity) : new StreamingEntity(entity, target));
+        }
+    };
+
+    private final SauceOnDemandRemoteProxy proxy;
+
+    /**
+     * Connections to Sauce, shared by the clients created by this factory.
+     */
+    private final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    private volatile int maxConnections;
+    private volatile Clients clients = new Clients(null, new String[PROXY_PROPERTIES.length]);
 
     public SauceHttpClientFactory(SauceOnDemandRemoteProxy proxy) {
         super();
         this.proxy = proxy;
     }
 
+    /**
+     * Returns the client for the timeouts, building it if it hasn't been built for the current credentials and
+     * proxy settings.
+     */
     public HttpClient getGridHttpClient(int connectionTimeout, int timeout) {
-        HttpClient client = super.getGridHttpClient(connectionTimeout, timeout);
+        updateMaxConnections();
+        String userInfo = proxy.getRemoteHost().getUserInfo();
+        Clients current = clients;
+        if (!current.isCurrent(userInfo)) {
+            String[] proxySettings = new String[PROXY_PROPERTIES.length];
+            for (int i = 0; i < PROXY_PROPERTIES.length; i++) {
+                proxySettings[i] = System.getProperty(PROXY_PROPERTIES[i]);
+            }
+            current = new Clients(userInfo, proxySettings);
+            clients = current;
+        }
+        Long key = ((long) connectionTimeout << 32) | (timeout & 0xffffffffL);
+        HttpClient client = current.byTimeouts.get(key);
+        if (client == null) {
+            client = createClient(current, connectionTimeout, timeout);
+            HttpClient existing = current.byTimeouts.putIfAbsent(key, client);
+            if (existing != null) {
+                client = existing;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Sizes the connection pool to the proxy's Sauce concurrency, which changes as the account limits are polled, or
+     * to its number of slots if the concurrency isn't known.
+     */
+    private void updateMaxConnections() {
+        int max = Math.max(proxy.getMaxNumberOfConcurrentTestSessions(), proxy.getTestSlots().size())
+                + CONNECTION_HEADROOM;
+        if (max != maxConnections) {
+            maxConnections = max;
+            connections.setMaxTotal(max);
+            connections.setDefaultMaxPerRoute(max);
+        }
+    }
 
-        if (proxy.getRemoteHost().getUserInfo() != null) {
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Builds the client as the Grid does, but with the Grid's content decompression replaced by
+     * {@link #REQUEST_INTERCEPTOR} and {@link #RESPONSE_INTERCEPTOR}.
+     */
+    private HttpClient createClient(Clients settings, int connectionTimeout, int timeout) {
+        RequestConfig.Builder requestConfig = RequestConfig.custom()
+                .setStaleConnectionCheckEnabled(true)
+                .setConnectTimeout(connectionTimeout)
+                .setSocketTimeout(timeout);
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connections)
+                .setRedirectStrategy(NO_REDIRECTS)
+                .setDefaultSocketConfig(SocketConfig.custom().setSoReuseAddress(true).setSoTimeout(timeout).build())
+                .disableContentCompression()
+                .addInterceptorLast(REQUEST_INTERCEPTOR)
+                .addInterceptorLast(RESPONSE_INTERCEPTOR);
+
+        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+        if (settings.userInfo != null) {
             // Use HTTP Basic auth
-            UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(proxy.getRemoteHost().getUserInfo());
-            ((DefaultHttpClient) client).getCredentialsProvider().setCredentials(AuthScope.ANY, credentials);
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(settings.userInfo));
         }
-        String proxyHost = System.getProperty("http.proxyHost");
-        String proxyPort = System.getProperty("http.proxyPort");
-        if (proxyHost != null && proxyPort != null) {
-            HttpHost proxy = new HttpHost(proxyHost, Integer.parseInt(proxyPort), "http");
-            client.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
-            client.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BEST_MATCH);
+        HttpHost httpProxy = settings.getProxy(0, credentialsProvider);
+        HttpHost httpsProxy = settings.getProxy(4, credentialsProvider);
+        if (httpProxy != null || httpsProxy != null) {
+            builder.setRoutePlanner(new ProxyRoutePlanner(httpProxy, httpsProxy));
+            requestConfig.setCookieSpec(CookieSpecs.BEST_MATCH);
+        } else {
+            builder.setRoutePlanner(new SystemDefaultRoutePlanner(new DefaultSchemePortResolver(),
+                    ProxySelector.getDefault()));
+        }
+        return builder.setDefaultCredentialsProvider(credentialsProvider)
+                .setDefaultRequestConfig(requestConfig.build())
+                .build();
+    }
+
+    /**
+     * @param entity
+     * @return "gzip" or "deflate" if the entity is compressed with either, otherwise null
+     */
+    private static String getContentEncoding(HttpEntity entity) {
+        Header header = entity.getContentEncoding();
+        if (header == null) {
+            return null;
+        }
+        String encoding = header.getValue().trim().toLowerCase();
+        if (encoding.equals(GZIP) || encoding.equals("x-gzip")) {
+            return GZIP;
+        }
+        return encoding.equals(DEFLATE) ? DEFLATE : null;
+    }
+
+    /**
+     * @param acceptEncoding value of an Accept-Encoding header, or null
+     * @param encoding
+     * @return whether the header accepts the encoding
+     */
+    static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (name.equalsIgnoreCase(encoding) || name.equalsIgnoreCase("x-" + encoding) || name.equals("*")) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(parameter.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Streams the body of the next response received by the current thread directly to the client, rather than
+     * letting the Grid read the whole body into memory before writing it to the client.  The Grid then reads an
+     * empty body, so this mustn't be used for responses the Grid needs to read (new session responses).
+     *
+     * @param response response to the hub's client, whose status and headers will have been set by the Grid before
+     *                 the body is read
+     */
+    static void streamResponseTo(HttpServletResponse response) {
+        streamTarget.set(response);
+    }
+
+    /**
+     * Stops streaming response bodies for the current thread.
+     */
+    static void stopStreaming() {
+        streamTarget.remove();
+    }
+
+    /**
+     * Clients built for a remote host's credentials and the egress proxy settings, keyed by their timeouts.
+     */
+    private static class Clients {
+
+        private final String userInfo;
+        private final String[] proxySettings;
+        private final ConcurrentMap<Long, HttpClient> byTimeouts = new ConcurrentHashMap<Long, HttpClient>();
+
+        Clients(String userInfo, String[] proxySettings) {
+            this.userInfo = userInfo;
+            this.proxySettings = proxySettings;
+        }
+
+        /**
+         * @param userInfo credentials of the current remote host
+         * @return whether the clients were built with the credentials and the current proxy settings
+         */
+        boolean isCurrent(String userInfo) {
+            if (!equal(this.userInfo, userInfo)) {
+                return false;
+            }
+            for (int i = 0; i < PROXY_PROPERTIES.length; i++) {
+                if (!equal(proxySettings[i], System.getProperty(PROXY_PROPERTIES[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @param offset              index of the proxy's host property within {@link #PROXY_PROPERTIES}
+         * @param credentialsProvider provider the proxy's credentials are added to, if it has any
+         * @return the proxy, or null if its host and port aren't set
+         */
+        HttpHost getProxy(int offset, CredentialsProvider credentialsProvider) {
+            String host = proxySettings[offset];
+            String port = proxySettings[offset + 1];
+            if (host == null || port == null) {
+                return null;
+            }
+            HttpHost proxy = new HttpHost(host, Integer.parseInt(port), "http");
+            String user = proxySettings[offset + 2];
+            if (user != null) {
+                credentialsProvider.setCredentials(new AuthScope(proxy.getHostName(), proxy.getPort()),
+                        new UsernamePasswordCredentials(user, proxySettings[offset + 3]));
+            }
+            return proxy;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Routes https requests through the https proxy if one is set, and other requests (or https requests if no https
+     * proxy is set) through the http proxy.
+     */
+    static class ProxyRoutePlanner extends DefaultRoutePlanner {
+
+        private final HttpHost httpProxy;
+        private final HttpHost httpsProxy;
+
+        ProxyRoutePlanner(HttpHost httpProxy, HttpHost httpsProxy) {
+            super(DefaultSchemePortResolver.INSTANCE);
+            this.httpProxy = httpProxy;
+            this.httpsProxy = httpsProxy;
+        }
+
+        @Override
+        protected HttpHost determineProxy(HttpHost target, HttpRequest request, HttpContext context) {
+            if (httpsProxy != null && "https".equalsIgnoreCase(target.getSchemeName())) {
+                return httpsProxy;
+            }
+            return httpProxy;
+        }
+    }
+
+    /**
+     * Doesn't follow redirects, so that they are returned to the client, as the Grid does.
+     */
+    private static final RedirectStrategy NO_REDIRECTS = new RedirectStrategy() {
+        public boolean isRedirected(HttpRequest request, HttpResponse response, HttpContext context) {
+            return false;
+        }
+
+        public HttpUriRequest getRedirect(HttpRequest request, HttpResponse response, HttpContext context) {
+            return null;
+        }
+    };
+
+    /**
+     * Compressed entity which records the bytes read from it as compressed bytes.
+     */
+    private static class CompressedEntity extends HttpEntityWrapper {
+
+        CompressedEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        SauceOnDemandMetrics.compressedResponseRead(1, 0);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    SauceOnDemandMetrics.compressedResponseRead(read, 0);
+                    return read;
+                }
+            };
+        }
+    }
+
+    /**
+     * Decompressing entity which records the bytes read from it as uncompressed bytes.
+     */
+    private static class DecompressedEntity extends HttpEntityWrapper {
+
+        DecompressedEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        SauceOnDemandMetrics.compressedResponseRead(0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    SauceOnDemandMetrics.compressedResponseRead(0, read);
+                    return read;
+                }
+            };
+        }
+    }
+
+    /**
+     * Gzip entity which is passed through to the client still compressed.  The uncompressed size is recorded from the
+     * size held in the last four bytes of the gzip trailer, so that the body doesn't need to be decompressed.
+     */
+    private static class GzipPassThroughEntity extends HttpEntityWrapper {
+
+        GzipPassThroughEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                private long trailer;
+                private boolean recorded;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        recordUncompressedSize();
+                    } else {
+                        trailer = (trailer << 8) | b;
+                        SauceOnDemandMetrics.compressedResponseRead(1, 0);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read == -1) {
+                        recordUncompressedSize();
+                    } else {
+                        for (int i = Math.max(off, off + read - 4); i < off + read; i++) {
+                            trailer = (trailer << 8) | (b[i] & 0xff);
+                        }
+                        SauceOnDemandMetrics.compressedResponseRead(read, 0);
+                    }
+                    return read;
+                }
+
+                private void recordUncompressedSize() {
+                    if (!recorded) {
+                        recorded = true;
+                        //ISIZE is little endian, and is the size modulo 2^32
+                        long size = ((trailer & 0xff) << 24) | ((trailer & 0xff00) << 8)
+                                | ((trailer >> 8) & 0xff00) | ((trailer >> 24) & 0xff);
+                        SauceOnDemandMetrics.compressedResponseRead(0, size);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Entity which counts the bytes read from its content.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        SauceOnDemandMetrics.responseRead(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) {
+                        SauceOnDemandMetrics.responseRead(read);
+                    }
+                    return read;
+                }
+            };
+        }
+    }
+
+    /**
+     * Entity which, when its content is first read, copies the whole body to the client through a pooled buffer and
+     * then reports the end of the content.
+     */
+    private static class StreamingEntity extends HttpEntityWrapper {
+
+        private final HttpServletResponse target;
+
+        StreamingEntity(HttpEntity entity, HttpServletResponse target) {
+            super(entity);
+            this.target = target;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream content = super.getContent();
+            return new InputStream() {
+                private boolean copied;
+
+                @Override
+                public int read() throws IOException {
+                    copy();
+                    return -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    copy();
+                    return -1;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    content.close();
+                }
+
+                private void copy() throws IOException {
+                    if (copied) {
+                        return;
+                    }
+                    copied = true;
+                    byte[] buffer = BUFFERS.acquire();
+                    try {
+                        OutputStream out = target.getOutputStream();
+                        int read;
+                        while ((read = content.read(buffer)) != -1) {
+                            SauceOnDemandMetrics.responseRead(read);
+                            write(out, buffer, read);
+                        }
+                        try {
+                            //commits the response, so the Grid can't replace the Content-Length once it has been sent
+                            out.flush();
+                        } catch (IOException e) {
+                            throw new ClientGoneException(e);
+                        }
+                    } finally {
+                        BUFFERS.release(buffer);
+                    }
+                }
+            };
+        }
+
+        private static void write(OutputStream out, byte[] buffer, int length) throws ClientGoneException {
+            try {
+                out.write(buffer, 0, length);
+            } catch (IOException e) {
+                throw new ClientGoneException(e);
+            }
         }
-        return client;
     }
 }
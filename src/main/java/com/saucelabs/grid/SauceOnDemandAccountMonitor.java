@@ -0,0 +1,178 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import com.saucelabs.grid.services.SauceOnDemandService;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the concurrency limit and the active jobs of a Sauce account in the background, so that the proxy only
+ * admits new sessions while the account has headroom.  Jobs which are active on the account but weren't started by
+ * the proxy (eg. by other hubs or CI servers using the same account) reduce the headroom.
+ * <p/>
+ * If a poll fails, the previously retrieved values are retained.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandAccountMonitor {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandAccountMonitor.class.getName());
+
+    public static final long DEFAULT_POLL_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Value of the limit when the account's concurrency is unlimited, or hasn't been retrieved.
+     */
+    public static final int UNLIMITED = -1;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            SauceOnDemandThreads.newThreadFactory("sauce-account-monitor-%d"));
+
+    private final SauceOnDemandService service;
+    private final String userName;
+    private final String accessKey;
+    private final SauceOnDemandUsage usage;
+    private volatile int limit;
+    private volatile int otherSessions;
+    private ScheduledFuture<?> poller;
+
+    /**
+     * @param service
+     * @param userName
+     * @param accessKey
+     * @param usage        the sessions running on the proxy
+     * @param initialLimit the concurrency limit to use until the account has been polled
+     */
+    public SauceOnDemandAccountMonitor(SauceOnDemandService service, String userName, String accessKey,
+                                       SauceOnDemandUsage usage, int initialLimit) {
+        this.service = service;
+        this.userName = userName;
+        this.accessKey = accessKey;
+        this.usage = usage;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Starts polling, or reschedules the poller if it has already been started.
+     *
+     * @param pollInterval time (in milliseconds) between polls
+     */
+    public synchronized void start(long pollInterval) {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+        poller = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, 0, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.cancel(false);
+            poller = null;
+        }
+    }
+
+    /**
+     * Retrieves the concurrency limit and the number of active jobs from Sauce.
+     */
+    public void refresh() {
+        try {
+            int limit = service.getMaxiumumSessions(userName, accessKey);
+            int running = usage.getTotal();
+            int active = service.getActiveSessions(userName, accessKey);
+            this.limit = limit;
+            this.otherSessions = Math.max(0, active - running);
+        } catch (SauceOnDemandRestAPIException e) {
+            logger.log(Level.WARNING, "Unable to refresh limits for " + userName + ", continuing to use previous limits", e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to refresh limits for " + userName + ", continuing to use previous limits", e);
+        }
+    }
+
+    /**
+     * @return the concurrency limit of the account, {@link #UNLIMITED} if the account is unlimited
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Overrides the concurrency limit until the account is next polled.
+     *
+     * @param limit
+     */
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the number of jobs active on the account which weren't started by the proxy, as of the last poll
+     */
+    public int getOtherSessions() {
+        return otherSessions;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getAccessKey() {
+        return accessKey;
+    }
+
+    /**
+     * @return the sessions running on the proxy against the account
+     */
+    public SauceOnDemandUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return the proportion of the account's concurrency which is in use
+     */
+    public double getLoad() {
+        int sessions = SauceOnDemandRemoteProxy.toSessions(limit);
+        return (otherSessions + usage.getTotal()) / (double) Math.max(1, sessions);
+    }
+
+    /**
+     * Reserves headroom for a new session, which is counted as running on the proxy until {@link #release()} is
+     * called.  The check and the reservation are made atomically, so that concurrent requests can't both take the
+     * last of the headroom.
+     *
+     * @return false if the account has no headroom
+     */
+    public synchronized boolean tryReserve() {
+        if (getHeadroom() <= 0) {
+            return false;
+        }
+        usage.sessionStarted(userName);
+        return true;
+    }
+
+    /**
+     * Releases the headroom reserved by {@link #tryReserve()} once the session has finished.
+     */
+    public void release() {
+        usage.sessionFinished(userName);
+    }
+
+    /**
+     * @return the number of sessions which the proxy can start without exceeding the account's concurrency limit
+     */
+    public int getHeadroom() {
+        int limit = this.limit;
+        if (limit == UNLIMITED) {
+            return Integer.MAX_VALUE;
+        }
+        return limit - otherSessions - usage.getTotal();
+    }
+}
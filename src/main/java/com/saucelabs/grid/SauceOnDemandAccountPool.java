@@ -0,0 +1,89 @@
+package com.saucelabs.grid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Sauce accounts whose credentials are used by a proxy.  Each new session is assigned to the least loaded account
+ * which has headroom, so that the proxy can run as many sessions as the accounts' limits combined.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandAccountPool {
+
+    private final List<SauceOnDemandAccountMonitor> accounts;
+
+    public SauceOnDemandAccountPool(List<SauceOnDemandAccountMonitor> accounts) {
+        this.accounts = Collections.unmodifiableList(new ArrayList<SauceOnDemandAccountMonitor>(accounts));
+    }
+
+    public List<SauceOnDemandAccountMonitor> getAccounts() {
+        return accounts;
+    }
+
+    public boolean isEmpty() {
+        return accounts.isEmpty();
+    }
+
+    /**
+     * Starts polling the limits of each account.
+     *
+     * @param pollInterval time (in milliseconds) between polls
+     */
+    public void start(long pollInterval) {
+        for (SauceOnDemandAccountMonitor account : accounts) {
+            account.start(pollInterval);
+        }
+    }
+
+    public void stop() {
+        for (SauceOnDemandAccountMonitor account : accounts) {
+            account.stop();
+        }
+    }
+
+    /**
+     * Assigns a session to the least loaded account which has headroom.
+     *
+     * @return the account the session should be run against, or null if none of the accounts have headroom
+     */
+    public synchronized SauceOnDemandAccountMonitor acquire() {
+        SauceOnDemandAccountMonitor selected = null;
+        double selectedLoad = 0;
+        for (SauceOnDemandAccountMonitor account : accounts) {
+            if (account.getHeadroom() <= 0) {
+                continue;
+            }
+            double load = account.getLoad();
+            if (selected == null || load < selectedLoad) {
+                selected = account;
+                selectedLoad = load;
+            }
+        }
+        if (selected != null && selected.tryReserve()) {
+            return selected;
+        }
+        return null;
+    }
+
+    /**
+     * Records that a session assigned by {@link #acquire()} has finished.
+     *
+     * @param account
+     */
+    public void release(SauceOnDemandAccountMonitor account) {
+        account.release();
+    }
+
+    /**
+     * @return the number of sessions which can be run across all of the accounts
+     */
+    public int getSessions() {
+        int sessions = 0;
+        for (SauceOnDemandAccountMonitor account : accounts) {
+            sessions += SauceOnDemandRemoteProxy.toSessions(account.getLimit());
+        }
+        return sessions;
+    }
+}
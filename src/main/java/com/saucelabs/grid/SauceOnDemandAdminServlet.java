@@ -1,8 +1,6 @@
 package com.saucelabs.grid;
 
-import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
 import com.saucelabs.grid.services.SauceOnDemandService;
-import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
@@ -10,7 +8,10 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.openqa.grid.common.RegistrationRequest;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
 import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.internal.HttpClientFactory;
 
@@ -22,6 +23,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,13 +40,20 @@ public class SauceOnDemandAdminServlet extends AbstractSauceOnDemandServlet {
     private static final Logger logger = Logger
             .getLogger(SauceOnDemandAdminServlet.class.getName());
 
+    /**
+     * Runs the servlet's background tasks.
+     */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            SauceOnDemandThreads.newThreadFactory("sauce-admin-%d"));
+
     private static final String UPDATE_BROWSERS = "updateSupportedBrowsers";
+    private static final String USAGE = "usage";
     public static final String WEB_DRIVER_CAPABILITIES = "webDriverCapabilities";
     public static final String SELENIUM_CAPABILITIES = "seleniumCapabilities";
     private static final String SAUCE_CONNECT_ENABLED = "sauceConnect";
     private static final String SELENIUM_HOST = "seleniumHost";
     private static final String SELENIUM_PORT = "seleniumPort";
-    private SauceOnDemandService service = new SauceOnDemandServiceImpl();
+    private SauceOnDemandService service = SauceOnDemandRemoteProxy.getService();
     private final BrowsersCache webDriverBrowsers;
     private final BrowsersCache seleniumBrowsers;
     private static final String SAUCE_USER_NAME = "sauceUserName";
@@ -97,20 +106,56 @@ public class SauceOnDemandAdminServlet extends AbstractSauceOnDemandServlet {
             }
         };
 
-        Executors.newSingleThreadScheduledExecutor().schedule(selfRegister, 20,
-                TimeUnit.SECONDS);
+        scheduler.schedule(selfRegister, 20, TimeUnit.SECONDS);
     }
 
-    public SauceOnDemandAdminServlet() throws SauceOnDemandRestAPIException {
+    public SauceOnDemandAdminServlet() {
         this(null);
     }
 
-    public SauceOnDemandAdminServlet(Registry registry)
-            throws SauceOnDemandRestAPIException {
+    public SauceOnDemandAdminServlet(Registry registry) {
         super(registry);
-        webDriverBrowsers = new BrowsersCache(service.getWebDriverBrowsers());
-        seleniumBrowsers = new BrowsersCache(service.getSeleniumBrowsers());
+        webDriverBrowsers = SauceOnDemandRemoteProxy.getWebDriverBrowsers();
+        seleniumBrowsers = SauceOnDemandRemoteProxy.getSeleniumBrowsers();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        if (req.getPathInfo() != null && req.getPathInfo().endsWith(USAGE)) {
+            writeUsage(req, resp);
+        } else {
+            super.doGet(req, resp);
+        }
+    }
 
+    /**
+     * Writes the number of sessions running on each Sauce proxy (or on the proxy with the requested id) as JSON.
+     *
+     * @param req
+     * @param resp
+     * @throws IOException
+     */
+    private void writeUsage(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String id = req.getParameter("id");
+        JSONObject json = new JSONObject();
+        try {
+            for (RemoteProxy proxy : getRegistry().getAllProxies()) {
+                if (proxy instanceof SauceOnDemandRemoteProxy && (id == null || id.equals(proxy.getId()))) {
+                    json.put(proxy.getId(), ((SauceOnDemandRemoteProxy) proxy).getUsage()
+                            .toJSON(proxy.getTestSlots().size()));
+                }
+            }
+        } catch (JSONException e) {
+            logger.log(Level.SEVERE, "Error writing usage", e);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setStatus(200);
+        resp.getWriter().print(json.toString());
+        resp.getWriter().close();
     }
 
     @Override
@@ -257,17 +302,6 @@ public class SauceOnDemandAdminServlet extends AbstractSauceOnDemandServlet {
         // re-create the test slots with the new capabilities.
         sauceRequest.getCapabilities().clear();
 
-        int maxSauceSessions = 0;
-        try {
-            maxSauceSessions = service.getMaxiumumSessions(userName, accessKey);
-            if (maxSauceSessions == -1) {
-                maxSauceSessions = 100;
-            }
-        } catch (SauceOnDemandRestAPIException e) {
-            logger.log(Level.SEVERE, "Error invoking Sauce REST API", e);
-        }
-        sauceRequest.getConfiguration().put(RegistrationRequest.MAX_SESSION,
-                maxSauceSessions);
         String[] webDriverCapabilities = req
                 .getParameterValues(WEB_DRIVER_CAPABILITIES);
         String[] seleniumRCCapabilities = req
@@ -282,6 +316,13 @@ public class SauceOnDemandAdminServlet extends AbstractSauceOnDemandServlet {
         proxy.setShouldHandleUnspecifiedCapabilities(handleUnspecified);
         proxy.writeConfigurationToFile();
 
+        // reads the new configuration and issues the REST calls for the new proxy
+        SauceOnDemandProxyConfiguration configuration = SauceOnDemandRemoteProxy.configure(sauceRequest);
+        int maxSauceSessions = 0;
+        Integer maximumSessions = configuration.getMaximumSessions();
+        if (maximumSessions != null) {
+            maxSauceSessions = maximumSessions;
+        }
         sauceRequest.getConfiguration().put(RegistrationRequest.MAX_SESSION,
                 maxSauceSessions);
         if (webDriverCapabilities == null && handleUnspecified) {
@@ -293,7 +334,7 @@ public class SauceOnDemandAdminServlet extends AbstractSauceOnDemandServlet {
         }
 
         SauceOnDemandRemoteProxy newProxy = new SauceOnDemandRemoteProxy(
-                sauceRequest, getRegistry());
+                configuration, getRegistry());
         getRegistry().add(newProxy);
     }
 
@@ -0,0 +1,63 @@
+package com.saucelabs.grid;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of fixed size byte buffers used to copy payloads between Sauce and the hub's clients, so that forwarding a
+ * large payload doesn't allocate a buffer the size of the payload.  If the pool is empty a new buffer is allocated,
+ * and buffers released once the pool is full are left for the garbage collector, so the pool never blocks.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandBufferPool {
+
+    static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+    static final int DEFAULT_CAPACITY = 128;
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    public SauceOnDemandBufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param bufferSize size of each buffer, in bytes
+     * @param capacity   maximum number of buffers held by the pool
+     */
+    public SauceOnDemandBufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    /**
+     * @return a buffer from the pool, or a new buffer if the pool is empty
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        return buffer == null ? new byte[bufferSize] : buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers available in the pool
+     */
+    public int getAvailable() {
+        return buffers.size();
+    }
+}
@@ -1,19 +1,24 @@
 package com.saucelabs.grid;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.openqa.selenium.Platform;
-import org.openqa.selenium.remote.DesiredCapabilities;
 
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Immutable description of a browser supported by Sauce.  Only the fields used by the plugin are retained (the
+ * strings being shared between instances), and the id is computed on first use.
+ *
  * @author Fran�ois Reynaud - Initial version of plugin
  * @author Ross Rowe - Additional functionalitye
  */
@@ -25,27 +30,95 @@ public class SauceOnDemandCapabilities implements Comparable {
     public static final String LONG_VERSION = "long_version";
     public static final String PREFERRED_VERSION = "preferred_version";
     public static final String OS = "os";
-    private static final String API_NAME = "api_name";
+    public static final String API_NAME = "api_name";
 
-    private final Map<String, Object> map = new HashMap<String, Object>();
-    private final JSONObject rawJSON;
-    private final String md5;
+    /**
+     * Catalogs repeat the same handful of OS, browser and version strings hundreds of times, so share a single copy.
+     */
+    private static final Interner<String> strings = Interners.newWeakInterner();
+    private static final ConcurrentMap<String, String> platforms = new ConcurrentHashMap<String, String>();
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    private final String name;
+    private final String shortVersion;
+    private final String longName;
+    private final String longVersion;
+    private final String preferredVersion;
+    private final String os;
+    private final String apiName;
+    private final String platform;
+    private volatile String md5;
 
     public SauceOnDemandCapabilities(String raw) throws JSONException {
-        this.rawJSON = new JSONObject(raw);
-        this.md5 = init();
+        this(new JSONObject(raw));
+    }
+
+    public SauceOnDemandCapabilities(JSONObject raw) throws JSONException {
+        this(value(raw, NAME), value(raw, SHORT_VERSION), value(raw, LONG_NAME), value(raw, LONG_VERSION),
+                value(raw, PREFERRED_VERSION), value(raw, OS), value(raw, API_NAME));
     }
 
     public SauceOnDemandCapabilities(Map<String, ?> from) throws JSONException {
-        DesiredCapabilities c = new DesiredCapabilities(from);
-        this.rawJSON = new JSONObject(c.asMap());
-        this.md5 = init();
+        this(value(from, NAME), value(from, SHORT_VERSION), value(from, LONG_NAME), value(from, LONG_VERSION),
+                value(from, PREFERRED_VERSION), value(from, OS), value(from, API_NAME));
+    }
+
+    /**
+     * Creates the capabilities from the fields of a catalog entry, any of which may be null.
+     */
+    public SauceOnDemandCapabilities(String name, String shortVersion, String longName, String longVersion,
+                                     String preferredVersion, String os, String apiName) {
+        this.name = intern(name);
+        this.shortVersion = intern(shortVersion);
+        this.longName = intern(longName);
+        this.longVersion = intern(longVersion);
+        this.preferredVersion = intern(preferredVersion);
+        this.os = intern(os);
+        this.apiName = intern(apiName);
+        this.platform = platform(os);
+    }
+
+    private static String value(JSONObject raw, String key) throws JSONException {
+        return raw.has(key) ? raw.getString(key) : null;
+    }
+
+    private static String value(Map<String, ?> from, String key) {
+        Object value = from.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : strings.intern(value);
+    }
+
+    private static String platform(String osName) {
+        String platform = platforms.get(osName);
+        if (platform == null) {
+            //Sauce sends Windows 2012 which is WIN8
+            if (osName.equalsIgnoreCase("windows 2012")) {
+                platform = Platform.WIN8.toString();
+            } else {
+                platform = Platform.extractFromSysProperty(osName).toString();
+            }
+            platforms.putIfAbsent(osName, platform);
+        }
+        return platform;
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
+        String md5 = getMD5();
         result = prime * result + ((md5 == null) ? 0 : md5.hashCode());
         return result;
     }
@@ -56,60 +129,56 @@ public class SauceOnDemandCapabilities implements Comparable {
         if (obj == null) return false;
         if (getClass() != obj.getClass()) return false;
         SauceOnDemandCapabilities other = (SauceOnDemandCapabilities) obj;
+        String md5 = getMD5();
         if (md5 == null) {
-            if (other.md5 != null) return false;
-        } else if (!md5.equals(other.md5)) return false;
+            if (other.getMD5() != null) return false;
+        } else if (!md5.equals(other.getMD5())) return false;
         return true;
     }
 
-    private String init() throws JSONException {
+    /**
+     * The id is derived from the same fields, in the same order, as in earlier versions so that the ids stored in
+     * sauce-ondemand.json remain valid.
+     */
+    private String normalize() {
         StringBuilder b = new StringBuilder();
-        b.append(copy(NAME));
-
-        b.append(copy(SHORT_VERSION));
-        b.append(copy(LONG_VERSION));
-        b.append(copy(LONG_NAME));
-        b.append(copy(PREFERRED_VERSION));
-        b.append(copy(OS));
-
-        String osName = (String) map.get(OS);
-        //Sauce sends Windows 2012 which is WIN8
-        if (osName.equalsIgnoreCase("windows 2012")) {
-            set("platform", Platform.WIN8.toString());
-        } else {
-            set("platform", Platform.extractFromSysProperty(osName).toString());
-        }
-        String normalized = b.toString();
-        String md5 = computeMD5(normalized);
-        copy(API_NAME);
-        set("browserName", (String) map.get(API_NAME));
-        set("version", (String) map.get(SHORT_VERSION));
+        append(b, NAME, name);
+        append(b, SHORT_VERSION, shortVersion);
+        append(b, LONG_VERSION, longVersion);
+        append(b, LONG_NAME, longName);
+        append(b, PREFERRED_VERSION, preferredVersion);
+        append(b, OS, os);
+        return b.toString();
+    }
 
-        return md5;
+    private static void append(StringBuilder b, String key, String value) {
+        if (value != null) {
+            b.append(key).append(value);
+        }
     }
 
     public String getName() {
-        return get(NAME);
+        return name;
     }
 
     public String getShortVersion() {
-        return get(SHORT_VERSION);
+        return shortVersion;
     }
 
     public String getLongName() {
-        return get(LONG_NAME);
+        return longName;
     }
 
     public String getLongVersion() {
-        return get(LONG_VERSION);
+        return longVersion;
     }
 
     public String getPreferredVersion() {
-        return get(PREFERRED_VERSION);
+        return preferredVersion;
     }
 
     public String getOs() {
-        return get(OS);
+        return os;
     }
 
     @Override
@@ -117,48 +186,77 @@ public class SauceOnDemandCapabilities implements Comparable {
         return getOs() + " " + getLongName() + " " + getLongVersion();
     }
 
-
+    /**
+     * @return a new map of the capabilities, including the platform, browserName and version expected by the Grid
+     */
     public Map<String, Object> asMap() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        put(map, NAME, name);
+        put(map, SHORT_VERSION, shortVersion);
+        put(map, LONG_VERSION, longVersion);
+        put(map, LONG_NAME, longName);
+        put(map, PREFERRED_VERSION, preferredVersion);
+        put(map, OS, os);
+        put(map, API_NAME, apiName);
+        map.put("platform", platform);
+        map.put("browserName", apiName);
+        map.put("version", shortVersion);
         return map;
     }
 
-    private String get(String key) {
-        return (String) map.get(key);
-    }
-
-    private String copy(String key) throws JSONException {
-        if (rawJSON.has(key)) {
-            String value = rawJSON.getString(key);
-            set(key, value);
-            return key + value;
-        } else {
-            return "";
+    private static void put(Map<String, Object> map, String key, String value) {
+        if (value != null) {
+            map.put(key, value);
         }
-
     }
 
-    private void set(String key, String value) {
-        map.put(key, value);
+    /**
+     * @return the JSON fields returned by Sauce for this browser, from which an equivalent instance can be created
+     */
+    public String toJSON() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        put(map, NAME, name);
+        put(map, SHORT_VERSION, shortVersion);
+        put(map, LONG_VERSION, longVersion);
+        put(map, LONG_NAME, longName);
+        put(map, PREFERRED_VERSION, preferredVersion);
+        put(map, OS, os);
+        put(map, API_NAME, apiName);
+        return new JSONObject(map).toString();
     }
 
-    private String computeMD5(String from) {
-        try {
-            MessageDigest m = MessageDigest.getInstance("MD5");
-            m.update(from.getBytes());
-            byte[] md5sum = m.digest();
-            BigInteger bigInt = new BigInteger(1, md5sum);
-            String output = bigInt.toString(16);
-            if (output.length() == 31) {
-                output = "0" + output;
-            }
-            return output;
-        } catch (NoSuchAlgorithmException ignore) {
+    private static String computeMD5(String from) {
+        MessageDigest m = digest.get();
+        if (m == null) {
             return null;
         }
+        m.reset();
+        byte[] md5sum = m.digest(from.getBytes());
+        //matches the output of BigInteger.toString(16) padded to 32 characters only when it was 31 characters long,
+        //which is how ids were formatted previously
+        char[] hex = new char[md5sum.length * 2];
+        for (int i = 0; i < md5sum.length; i++) {
+            hex[i * 2] = Character.forDigit((md5sum[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 1] = Character.forDigit(md5sum[i] & 0xf, 16);
+        }
+        int start = 0;
+        while (start < hex.length - 1 && hex[start] == '0') {
+            start++;
+        }
+        String output = new String(hex, start, hex.length - start);
+        if (output.length() == 31) {
+            output = "0" + output;
+        }
+        return output;
     }
 
     public String getMD5() {
-        return md5;
+        String result = md5;
+        if (result == null) {
+            result = computeMD5(normalize());
+            md5 = result;
+        }
+        return result;
     }
 
     public int compareTo(Object o) {
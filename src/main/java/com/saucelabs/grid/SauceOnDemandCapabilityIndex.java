@@ -0,0 +1,134 @@
+package com.saucelabs.grid;
+
+import org.openqa.grid.internal.utils.CapabilityMatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of registered capabilities keyed by browserName and version, so that finding the capabilities which match a
+ * request is a hash lookup followed by a check of the few candidates with the same browser and version, rather than
+ * a check of every registered capability.
+ * <p/>
+ * Candidates are checked with the supplied {@link CapabilityMatcher} (which also handles the platform hierarchy, eg.
+ * WINDOWS matching XP), so the index returns exactly the values whose capabilities the matcher would accept.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandCapabilityIndex<T> {
+
+    private static final String BROWSER_NAME = "browserName";
+    private static final String VERSION = "version";
+
+    private final CapabilityMatcher matcher;
+    private final Map<Object, Map<Object, List<Entry<T>>>> browsers = new HashMap<Object, Map<Object, List<Entry<T>>>>();
+    private int size;
+
+    public SauceOnDemandCapabilityIndex(CapabilityMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    public void add(Map<String, Object> capabilities, T value) {
+        Object browserName = capabilities.get(BROWSER_NAME);
+        Map<Object, List<Entry<T>>> versions = browsers.get(browserName);
+        if (versions == null) {
+            versions = new HashMap<Object, List<Entry<T>>>();
+            browsers.put(browserName, versions);
+        }
+        Object version = capabilities.get(VERSION);
+        List<Entry<T>> entries = versions.get(version);
+        if (entries == null) {
+            entries = new ArrayList<Entry<T>>();
+            versions.put(version, entries);
+        }
+        entries.add(new Entry<T>(capabilities, value));
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the values whose capabilities match the requested capabilities, in the order they were added within
+     *         each browser and version
+     */
+    public List<T> matches(Map<String, Object> requestedCapability) {
+        List<T> result = new ArrayList<T>();
+        collect(requestedCapability, result, false);
+        return result;
+    }
+
+    /**
+     * @return true if any of the indexed capabilities match the requested capabilities
+     */
+    public boolean hasMatch(Map<String, Object> requestedCapability) {
+        return collect(requestedCapability, null, true);
+    }
+
+    private boolean collect(Map<String, Object> requestedCapability, List<T> result, boolean first) {
+        Object browserName = requestedCapability.get(BROWSER_NAME);
+        Object version = requestedCapability.get(VERSION);
+        if (isWildcard(browserName)) {
+            for (Map<Object, List<Entry<T>>> versions : browsers.values()) {
+                if (collect(versions, version, requestedCapability, result, first)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Map<Object, List<Entry<T>>> versions = browsers.get(browserName);
+        return versions != null && collect(versions, version, requestedCapability, result, first);
+    }
+
+    private boolean collect(Map<Object, List<Entry<T>>> versions, Object version, Map<String, Object> requestedCapability,
+                            List<T> result, boolean first) {
+        if (isWildcard(version)) {
+            for (List<Entry<T>> entries : versions.values()) {
+                if (collect(entries, requestedCapability, result, first)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        List<Entry<T>> entries = versions.get(version);
+        return entries != null && collect(entries, requestedCapability, result, first);
+    }
+
+    private boolean collect(List<Entry<T>> entries, Map<String, Object> requestedCapability, List<T> result, boolean first) {
+        for (Entry<T> entry : entries) {
+            if (matcher.matches(entry.capabilities, requestedCapability)) {
+                if (first) {
+                    return true;
+                }
+                result.add(entry.value);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Values which {@link org.openqa.grid.internal.utils.DefaultCapabilityMatcher} treats as matching anything.
+     */
+    private static boolean isWildcard(Object value) {
+        if (value == null) {
+            return true;
+        }
+        String s = value.toString();
+        return s.equalsIgnoreCase("ANY") || s.equals("") || s.equals("*");
+    }
+
+    private static class Entry<T> {
+
+        private final Map<String, Object> capabilities;
+        private final T value;
+
+        Entry(Map<String, Object> capabilities, T value) {
+            this.capabilities = Collections.unmodifiableMap(capabilities);
+            this.value = value;
+        }
+    }
+}
@@ -1,30 +1,150 @@
 package com.saucelabs.grid;
 
+import org.openqa.grid.internal.TestSlot;
 import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
-import org.openqa.selenium.Platform;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles the matching of requested capabilities with those handled by the Sauce Node.
+ * <p/>
+ * A Sauce-backed proxy's slots form a single pool, any of which can run any of the proxy's supported capabilities, so
+ * a request matches every slot if it matches a supported capability.  The slots of other proxies are matched
+ * individually, as {@link DefaultCapabilityMatcher} does.  Supported capabilities are found using a
+ * {@link SauceOnDemandCapabilityIndex}, and the outcome is remembered in a bounded LRU memo, as suites tend to request
+ * the same few capabilities over and over.  The memo is keyed by the requested
+ * values of the capabilities considered by {@link DefaultCapabilityMatcher}, and is discarded whenever the proxy's
+ * capabilities or its handling of unspecified capabilities change.
  *
  * @author Ross Rowe
  */
 public class SauceOnDemandCapabilityMatcher extends DefaultCapabilityMatcher {
 
+    public static final int DEFAULT_MEMO_SIZE = 256;
+
+    /**
+     * The capabilities considered by {@link DefaultCapabilityMatcher}, and so the only ones which affect a match.
+     */
+    private static final String[] CONSIDERED = {"platform", "browserName", "version", "applicationName"};
+
+    /**
+     * Memoized in place of a supported capability when the request isn't supported.
+     */
+    private static final Map<String, Object> UNSUPPORTED = Collections.emptyMap();
+
     private SauceOnDemandRemoteProxy proxy;
+    private final Map<List<Object>, Map<String, Object>> memo;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private SauceOnDemandCapabilityIndex<Map<String, Object>> index;
+    private int version = -1;
 
     public SauceOnDemandCapabilityMatcher(SauceOnDemandRemoteProxy proxy) {
+        this(proxy, DEFAULT_MEMO_SIZE);
+    }
+
+    public SauceOnDemandCapabilityMatcher(SauceOnDemandRemoteProxy proxy, final int memoSize) {
         super();
         this.proxy = proxy;
+        this.memo = new LinkedHashMap<List<Object>, Map<String, Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Map<String, Object>> eldest) {
+                return size() > memoSize;
+            }
+        };
     }
 
     @Override
     public boolean matches(Map<String, Object> nodeCapability, Map<String, Object> requestedCapability) {
-        if (proxy.shouldHandleUnspecifiedCapabilities()) {
-            return true;
-        } else {
+        if (!proxy.isPooled()) {
             return super.matches(nodeCapability, requestedCapability);
         }
+        return hasMatch(requestedCapability);
+    }
+
+    /**
+     * @return true if the proxy's slots can handle the requested capabilities
+     */
+    public boolean hasMatch(Map<String, Object> requestedCapability) {
+        return proxy.shouldHandleUnspecifiedCapabilities() || getSupportedCapability(requestedCapability) != null;
+    }
+
+    /**
+     * @return the first of the proxy's supported capabilities which matches the requested capabilities, or null if
+     *         none match
+     */
+    public Map<String, Object> getSupportedCapability(Map<String, Object> requestedCapability) {
+        List<Object> key = key(requestedCapability);
+        synchronized (memo) {
+            if (version != proxy.getCapabilitiesVersion() || index == null) {
+                rebuild();
+            }
+            Map<String, Object> match = memo.get(key);
+            if (match != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                List<Map<String, Object>> matches = index.matches(requestedCapability);
+                match = matches.isEmpty() ? UNSUPPORTED : matches.get(0);
+                memo.put(key, match);
+            }
+            return match == UNSUPPORTED ? null : match;
+        }
+    }
+
+    /**
+     * @return the proxy's slots which can handle the requested capabilities
+     */
+    public List<TestSlot> getMatchingSlots(Map<String, Object> requestedCapability) {
+        if (!hasMatch(requestedCapability)) {
+            return Collections.emptyList();
+        }
+        if (proxy.isPooled()) {
+            return proxy.getTestSlots();
+        }
+        List<TestSlot> matching = new ArrayList<TestSlot>();
+        for (TestSlot slot : proxy.getTestSlots()) {
+            if (super.matches(slot.getCapabilities(), requestedCapability)) {
+                matching.add(slot);
+            }
+        }
+        return matching;
+    }
+
+    private void rebuild() {
+        version = proxy.getCapabilitiesVersion();
+        memo.clear();
+        index = new SauceOnDemandCapabilityIndex<Map<String, Object>>(new DefaultCapabilityMatcher());
+        for (Map<String, Object> capability : proxy.getSupportedCapabilities()) {
+            index.add(capability, capability);
+        }
+    }
+
+    private static List<Object> key(Map<String, Object> requestedCapability) {
+        Object[] values = new Object[CONSIDERED.length];
+        for (int i = 0; i < CONSIDERED.length; i++) {
+            values[i] = requestedCapability.get(CONSIDERED[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getMemoSize() {
+        synchronized (memo) {
+            return memo.size();
+        }
     }
 }
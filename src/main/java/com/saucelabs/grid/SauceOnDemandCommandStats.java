@@ -0,0 +1,326 @@
+package com.saucelabs.grid;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.web.servlet.handler.SeleniumBasedRequest;
+import org.openqa.grid.web.servlet.handler.WebDriverRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call counts, latencies, payload sizes and error counts of the commands forwarded to Sauce, aggregated per command
+ * type (the HTTP method and WebDriver endpoint template, eg. 'POST /session/:sessionId/element/:id/click') and per
+ * session.  The number of command types and sessions tracked is bounded: once the command type limit is reached,
+ * further command types are counted as {@link #OTHER_COMMAND_TYPE}, and the least recently used session is discarded
+ * when the session limit is reached.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandCommandStats {
+
+    static final int DEFAULT_MAX_COMMAND_TYPES = 256;
+    static final int DEFAULT_MAX_SESSIONS = 500;
+    static final String OTHER_COMMAND_TYPE = "other";
+
+    /**
+     * Path segments whose following segment is an id, mapped to the placeholder used in the endpoint template.
+     */
+    private static final Map<String, String> PLACEHOLDERS = new HashMap<String, String>();
+
+    static {
+        PLACEHOLDERS.put("session", ":sessionId");
+        PLACEHOLDERS.put("element", ":id");
+        PLACEHOLDERS.put("equals", ":other");
+        PLACEHOLDERS.put("window", ":windowHandle");
+        PLACEHOLDERS.put("cookie", ":name");
+        PLACEHOLDERS.put("attribute", ":name");
+        PLACEHOLDERS.put("property", ":name");
+        PLACEHOLDERS.put("css", ":propertyName");
+        PLACEHOLDERS.put("key", ":key");
+    }
+
+    /**
+     * Path segments which are part of the endpoint even though they follow one of the {@link #PLACEHOLDERS}.
+     */
+    private static final Set<String> FIXED_SEGMENTS = new HashSet<String>(Arrays.asList(
+            "active", "current", "handles", "rect", "maximize", "minimize", "fullscreen", "new"));
+
+    private final int maxCommandTypes;
+    private final ConcurrentMap<String, Stats> commandTypes = new ConcurrentHashMap<String, Stats>();
+    private final Map<String, Stats> sessions;
+
+    public SauceOnDemandCommandStats() {
+        this(DEFAULT_MAX_COMMAND_TYPES, DEFAULT_MAX_SESSIONS);
+    }
+
+    public SauceOnDemandCommandStats(int maxCommandTypes, final int maxSessions) {
+        this.maxCommandTypes = maxCommandTypes;
+        this.sessions = new LinkedHashMap<String, Stats>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+                return size() > maxSessions;
+            }
+        };
+    }
+
+    /**
+     * @param request
+     * @return the HTTP method and endpoint template of a WebDriver request, or the request type of a Selenium RC
+     *         request
+     */
+    static String getCommandType(HttpServletRequest request) {
+        if (request instanceof WebDriverRequest) {
+            String path = request.getPathInfo() == null ? request.getRequestURI() : request.getPathInfo();
+            return request.getMethod() + " " + getTemplate(path);
+        } else if (request instanceof SeleniumBasedRequest) {
+            return "selenium " + ((SeleniumBasedRequest) request).getRequestType();
+        }
+        return request.getMethod();
+    }
+
+    /**
+     * @param path WebDriver request path, eg. /session/1234/element/5678/click
+     * @return the path with its ids replaced by placeholders, eg. /session/:sessionId/element/:id/click
+     */
+    static String getTemplate(String path) {
+        StringBuilder builder = new StringBuilder(path.length());
+        String previous = null;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            String segment = path.substring(start, end);
+            if (start > 0) {
+                builder.append('/');
+            }
+            String placeholder = previous == null ? null : PLACEHOLDERS.get(previous);
+            if (placeholder != null && segment.length() != 0 && !FIXED_SEGMENTS.contains(segment)) {
+                builder.append(placeholder);
+                previous = null;
+            } else {
+                builder.append(segment);
+                previous = segment;
+            }
+            start = end + 1;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param commandType
+     * @return the stats of the command type, or of {@link #OTHER_COMMAND_TYPE} if the command type limit has been
+     *         reached
+     */
+    public Stats getCommandTypeStats(String commandType) {
+        Stats stats = commandTypes.get(commandType);
+        if (stats == null) {
+            if (commandTypes.size() >= maxCommandTypes) {
+                commandType = OTHER_COMMAND_TYPE;
+                stats = commandTypes.get(commandType);
+                if (stats != null) {
+                    return stats;
+                }
+            }
+            stats = new Stats();
+            Stats existing = commandTypes.putIfAbsent(commandType, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @param sessionKey internal key of the session
+     * @return the stats of the session, which are created if the session isn't being tracked
+     */
+    public synchronized Stats getSessionStats(String sessionKey) {
+        Stats stats = sessions.get(sessionKey);
+        if (stats == null) {
+            stats = new Stats();
+            sessions.put(sessionKey, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Records a command which was forwarded to Sauce.
+     *
+     * @param session       stats of the session the command was run against, may be null
+     * @param commandType
+     * @param nanos         time taken to forward the command and receive its response
+     * @param requestBytes
+     * @param responseBytes
+     * @param error         whether Sauce returned an error response
+     */
+    public void record(Stats session, String commandType, long nanos, long requestBytes, long responseBytes,
+                       boolean error) {
+        getCommandTypeStats(commandType).record(nanos, requestBytes, responseBytes, error);
+        if (session != null) {
+            session.record(nanos, requestBytes, responseBytes, error);
+        }
+    }
+
+    /**
+     * Records a command which couldn't be forwarded to Sauce.
+     *
+     * @param session     stats of the session the command was run against, may be null
+     * @param commandType
+     */
+    public void recordFailure(Stats session, String commandType) {
+        getCommandTypeStats(commandType).recordFailure();
+        if (session != null) {
+            session.recordFailure();
+        }
+    }
+
+    /**
+     * @return the stats of each command type, sorted by command type
+     */
+    public Map<String, Stats> getCommandTypes() {
+        return new TreeMap<String, Stats>(commandTypes);
+    }
+
+    /**
+     * @return the stats of each tracked session, least recently used first
+     */
+    public synchronized Map<String, Stats> getSessions() {
+        return new LinkedHashMap<String, Stats>(sessions);
+    }
+
+    /**
+     * @return JSON representation of the command type and session stats
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        JSONObject commandTypesJson = new JSONObject();
+        for (Map.Entry<String, Stats> entry : getCommandTypes().entrySet()) {
+            commandTypesJson.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("commandTypes", commandTypesJson);
+        JSONObject sessionsJson = new JSONObject();
+        for (Map.Entry<String, Stats> entry : getSessions().entrySet()) {
+            sessionsJson.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put("sessions", sessionsJson);
+        return json;
+    }
+
+    /**
+     * Appends the command type counters in the Prometheus text exposition format.  Session stats are only included
+     * in the JSON representation, as each session would be a separate time series.
+     *
+     * @param builder
+     */
+    public void writePrometheus(StringBuilder builder) {
+        Map<String, Stats> stats = getCommandTypes();
+        List<String> names = new ArrayList<String>(stats.keySet());
+        writeCounter(builder, "sauce_command_calls_total", "Commands forwarded to Sauce", names, stats, 0);
+        writeCounter(builder, "sauce_command_errors_total", "Commands which failed or returned an error", names, stats, 1);
+        writeCounter(builder, "sauce_command_request_bytes_total", "Bytes sent to Sauce", names, stats, 2);
+        writeCounter(builder, "sauce_command_response_bytes_total", "Bytes received from Sauce", names, stats, 3);
+    }
+
+    private static void writeCounter(StringBuilder builder, String metric, String help, List<String> names,
+                                     Map<String, Stats> stats, int field) {
+        builder.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(metric).append(" counter\n");
+        for (String name : names) {
+            Stats commandStats = stats.get(name);
+            long value = field == 0 ? commandStats.getCalls() : field == 1 ? commandStats.getErrors()
+                    : field == 2 ? commandStats.getRequestBytes() : commandStats.getResponseBytes();
+            builder.append(metric).append("{command=\"").append(name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\"} ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * Counters for a command type or session.
+     */
+    public static class Stats {
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final SauceOnDemandHistogram latency = new SauceOnDemandHistogram("command",
+                "Time taken to forward a command to Sauce and receive its response");
+        /**
+         * Sauce job id of the session.
+         */
+        private volatile String jobId;
+
+        void record(long nanos, long requestBytes, long responseBytes, boolean error) {
+            calls.incrementAndGet();
+            if (error) {
+                errors.incrementAndGet();
+            }
+            this.requestBytes.addAndGet(requestBytes);
+            this.responseBytes.addAndGet(responseBytes);
+            latency.record(nanos);
+        }
+
+        void recordFailure() {
+            calls.incrementAndGet();
+            errors.incrementAndGet();
+        }
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        public SauceOnDemandHistogram getLatency() {
+            return latency;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public void setJobId(String jobId) {
+            this.jobId = jobId;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            if (jobId != null) {
+                json.put("jobId", jobId);
+            }
+            json.put("calls", getCalls());
+            json.put("errors", getErrors());
+            json.put("requestBytes", getRequestBytes());
+            json.put("responseBytes", getResponseBytes());
+            json.put("p50", latency.getQuantile(0.5));
+            json.put("p90", latency.getQuantile(0.9));
+            json.put("p99", latency.getQuantile(0.99));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.saucelabs.grid;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An endpoint which Selenium commands can be forwarded to (eg. ondemand.saucelabs.com, a Sauce data center or a
+ * Sauce Connect tunnel), along with the latencies observed when connecting to it and creating sessions through it.
+ * <p/>
+ * Latencies are tracked as exponentially weighted moving averages, so that recent measurements dominate.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandEndpoint {
+
+    /**
+     * Weight given to each new latency measurement.
+     */
+    static final double ALPHA = 0.3;
+
+    private final URL url;
+    private final int weight;
+    private volatile boolean healthy = true;
+    private volatile double connectLatency;
+    private volatile double sessionLatency;
+    private volatile boolean sessionLatencyMeasured;
+    private final AtomicInteger sessions = new AtomicInteger();
+
+    /**
+     * @param url
+     * @param weight relative share of sessions the endpoint should receive when latencies are equal
+     */
+    public SauceOnDemandEndpoint(URL url, int weight) {
+        this.url = url;
+        this.weight = Math.max(1, weight);
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Records the time taken to open a connection to the endpoint.
+     *
+     * @param millis
+     */
+    public synchronized void recordConnect(double millis) {
+        connectLatency = connectLatency == 0 ? millis : ALPHA * millis + (1 - ALPHA) * connectLatency;
+        healthy = true;
+    }
+
+    /**
+     * Records that a connection to the endpoint couldn't be opened.
+     */
+    public void recordConnectFailure() {
+        healthy = false;
+    }
+
+    /**
+     * Records the time taken to create a new session through the endpoint.
+     *
+     * @param millis
+     */
+    public synchronized void recordSession(double millis) {
+        sessionLatency = sessionLatencyMeasured ? ALPHA * millis + (1 - ALPHA) * sessionLatency : millis;
+        sessionLatencyMeasured = true;
+    }
+
+    /**
+     * Records that a session has been assigned to the endpoint.
+     */
+    public void sessionStarted() {
+        sessions.incrementAndGet();
+    }
+
+    public void sessionFinished() {
+        sessions.decrementAndGet();
+    }
+
+    /**
+     * @return the number of sessions assigned to the endpoint which are still running
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    public double getConnectLatency() {
+        return connectLatency;
+    }
+
+    public double getSessionLatency() {
+        return sessionLatency;
+    }
+
+    /**
+     * @return the cost of assigning another session to the endpoint, lower is better: the expected latency, scaled by
+     *         the sessions already running on the endpoint relative to its weight.  New session latency is used once
+     *         it has been measured, as it reflects the load on the endpoint as well as the network.
+     */
+    public double getScore() {
+        double latency = sessionLatencyMeasured ? sessionLatency : connectLatency;
+        return Math.max(1, latency) * (sessions.get() + 1) / weight;
+    }
+
+    @Override
+    public String toString() {
+        return url.toString();
+    }
+}
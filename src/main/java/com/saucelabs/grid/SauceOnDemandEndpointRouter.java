@@ -0,0 +1,119 @@
+package com.saucelabs.grid;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which of the proxy's endpoints a new session is forwarded to.  The endpoints are probed in the background
+ * by opening a connection to each of them, so that endpoints which can't be reached are avoided, and new sessions
+ * are routed to the healthy endpoint with the lowest {@link SauceOnDemandEndpoint#getScore() score}.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandEndpointRouter {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandEndpointRouter.class.getName());
+
+    public static final long DEFAULT_PROBE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            SauceOnDemandThreads.newThreadFactory("sauce-endpoint-probe-%d"));
+
+    private final List<SauceOnDemandEndpoint> endpoints;
+    private ScheduledFuture<?> prober;
+
+    public SauceOnDemandEndpointRouter(List<SauceOnDemandEndpoint> endpoints) {
+        this.endpoints = Collections.unmodifiableList(new ArrayList<SauceOnDemandEndpoint>(endpoints));
+    }
+
+    public List<SauceOnDemandEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Starts probing the endpoints.  A single endpoint isn't probed, as there is nothing to route between.
+     *
+     * @param probeInterval time (in milliseconds) between probes
+     */
+    public synchronized void start(long probeInterval) {
+        if (prober != null) {
+            prober.cancel(false);
+        }
+        if (endpoints.size() > 1) {
+            prober = executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    probe();
+                }
+            }, 0, probeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (prober != null) {
+            prober.cancel(false);
+            prober = null;
+        }
+    }
+
+    /**
+     * Measures the time taken to open a connection to each endpoint.
+     */
+    public void probe() {
+        for (SauceOnDemandEndpoint endpoint : endpoints) {
+            URL url = endpoint.getUrl();
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            Socket socket = new Socket();
+            long start = System.nanoTime();
+            try {
+                socket.connect(new InetSocketAddress(url.getHost(), port), CONNECT_TIMEOUT);
+                endpoint.recordConnect((System.nanoTime() - start) / 1000000d);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to connect to " + endpoint);
+                endpoint.recordConnectFailure();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the healthy endpoint with the lowest score, or the first endpoint if none of them are healthy
+     */
+    public synchronized SauceOnDemandEndpoint select() {
+        SauceOnDemandEndpoint selected = null;
+        for (SauceOnDemandEndpoint endpoint : endpoints) {
+            if (endpoint.isHealthy() && (selected == null || endpoint.getScore() < selected.getScore())) {
+                selected = endpoint;
+            }
+        }
+        return selected == null ? endpoints.get(0) : selected;
+    }
+
+    /**
+     * Selects an endpoint for a new session, and records that the session has been assigned to it.
+     *
+     * @return
+     */
+    public synchronized SauceOnDemandEndpoint acquire() {
+        SauceOnDemandEndpoint endpoint = select();
+        endpoint.sessionStarted();
+        return endpoint;
+    }
+}
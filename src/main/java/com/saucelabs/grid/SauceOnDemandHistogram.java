@@ -0,0 +1,158 @@
+package com.saucelabs.grid;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, with buckets whose upper bounds are successive powers of two microseconds (from
+ * 1 microsecond to roughly 35 minutes).  Recording a duration doesn't allocate, so histograms can be left enabled
+ * on the paths which forward every command to Sauce.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final String name;
+    private final String description;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public SauceOnDemandHistogram(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @param nanos duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>.
+     *
+     * @param startNanos value of {@link System#nanoTime()} when the operation started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucket(long micros) {
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @param bucket
+     * @return the upper bound of the bucket, in microseconds
+     */
+    static long getUpperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of the recorded durations, in microseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the upper bound (in milliseconds) of the bucket containing the quantile, or 0 if nothing was recorded
+     */
+    public double getQuantile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return getUpperBound(i) / 1000d;
+            }
+        }
+        return getUpperBound(BUCKETS - 1) / 1000d;
+    }
+
+    /**
+     * @return JSON representation of the histogram, with durations in milliseconds
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("description", description);
+        json.put("count", getCount());
+        json.put("sumMillis", getSum() / 1000d);
+        json.put("p50", getQuantile(0.5));
+        json.put("p90", getQuantile(0.9));
+        json.put("p99", getQuantile(0.99));
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = getBucketCount(i);
+            if (bucketCount != 0) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("le", getUpperBound(i) / 1000d);
+                bucket.put("count", bucketCount);
+                buckets.put(bucket);
+            }
+        }
+        json.put("buckets", buckets);
+        return json;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text exposition format, with durations in seconds.
+     *
+     * @param builder
+     */
+    public void writePrometheus(StringBuilder builder) {
+        String metric = "sauce_" + name + "_seconds";
+        builder.append("# HELP ").append(metric).append(' ').append(description).append('\n');
+        builder.append("# TYPE ").append(metric).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += getBucketCount(i);
+            builder.append(metric).append("_bucket{le=\"").append(getUpperBound(i) / (double) TimeUnit.SECONDS.toMicros(1))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        builder.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        builder.append(metric).append("_sum ").append(getSum() / (double) TimeUnit.SECONDS.toMicros(1)).append('\n');
+        builder.append(metric).append("_count ").append(cumulative).append('\n');
+    }
+}
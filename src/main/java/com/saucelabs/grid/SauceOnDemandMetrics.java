@@ -0,0 +1,262 @@
+package com.saucelabs.grid;
+
+import com.google.common.collect.MapMaker;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and command stats recorded by the Sauce proxies and REST client, which are exported by
+ * {@link SauceOnDemandMetricsServlet}.
+ *
+ * @author Ross Rowe
+ */
+public final class SauceOnDemandMetrics {
+
+    public static final SauceOnDemandHistogram QUEUE_WAIT = new SauceOnDemandHistogram("queue_wait",
+            "Time new session requests waited for a Sauce proxy slot");
+    public static final SauceOnDemandHistogram NEW_SESSION = new SauceOnDemandHistogram("new_session",
+            "Time taken by Sauce to create a new session");
+    public static final SauceOnDemandHistogram COMMAND_FORWARD = new SauceOnDemandHistogram("command_forward",
+            "Time taken to forward a command to Sauce and receive its response");
+    public static final SauceOnDemandHistogram REST_CALL = new SauceOnDemandHistogram("rest_call",
+            "Time taken by calls to the Sauce REST API");
+
+    /**
+     * Per command type and per session stats of the commands forwarded to Sauce.
+     */
+    public static final SauceOnDemandCommandStats COMMANDS = new SauceOnDemandCommandStats();
+
+    /**
+     * Counts of the compressed responses received from Sauce, of their size as received, and of their size once
+     * decompressed.
+     */
+    private static final AtomicLong compressedResponses = new AtomicLong();
+    private static final AtomicLong compressedBytes = new AtomicLong();
+    private static final AtomicLong uncompressedBytes = new AtomicLong();
+
+    private static final List<SauceOnDemandHistogram> HISTOGRAMS = Collections.unmodifiableList(
+            Arrays.asList(QUEUE_WAIT, NEW_SESSION, COMMAND_FORWARD, REST_CALL));
+
+    /**
+     * Time (from {@link System#nanoTime()}) that each pending new session request was first offered to a Sauce
+     * proxy.  Keys are compared by identity (the Registry offers the same map each time it retries the request), and
+     * are weakly held so that requests which are never assigned don't accumulate.
+     */
+    private static final ConcurrentMap<Map<String, Object>, Long> queued = new MapMaker().weakKeys().makeMap();
+
+    private static final int STARTED = 0;
+    private static final int RESPONSE_STATUS = 1;
+    private static final int RESPONSE_BYTES = 2;
+
+    /**
+     * Holds the time the command being forwarded by the current thread started, and the status and size of the
+     * response received from Sauce, reused to avoid allocating.
+     */
+    private static final ThreadLocal<long[]> command = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[3];
+        }
+    };
+
+    private SauceOnDemandMetrics() {
+    }
+
+    public static List<SauceOnDemandHistogram> getHistograms() {
+        return HISTOGRAMS;
+    }
+
+    /**
+     * Records the first time a new session request is offered to a Sauce proxy.
+     *
+     * @param requestedCapability
+     */
+    static void requestQueued(Map<String, Object> requestedCapability) {
+        if (!queued.containsKey(requestedCapability)) {
+            queued.putIfAbsent(requestedCapability, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records the time the new session request waited to be assigned to a slot.
+     *
+     * @param requestedCapability
+     */
+    static void requestAssigned(Map<String, Object> requestedCapability) {
+        Long started = queued.remove(requestedCapability);
+        if (started != null) {
+            QUEUE_WAIT.recordSince(started);
+        }
+    }
+
+    /**
+     * Records that the current thread has started forwarding a command.
+     */
+    static void commandStarted() {
+        long[] current = command.get();
+        current[STARTED] = System.nanoTime();
+        current[RESPONSE_STATUS] = 0;
+        current[RESPONSE_BYTES] = 0;
+    }
+
+    /**
+     * Records the status of the response the current thread received from Sauce.
+     *
+     * @param status HTTP status code
+     */
+    static void responseReceived(int status) {
+        command.get()[RESPONSE_STATUS] = status;
+    }
+
+    /**
+     * Records bytes of the response body the current thread read from Sauce.
+     *
+     * @param bytes
+     */
+    static void responseRead(long bytes) {
+        command.get()[RESPONSE_BYTES] += bytes;
+    }
+
+    /**
+     * Records that a compressed response was received from Sauce.
+     */
+    static void compressedResponseReceived() {
+        compressedResponses.incrementAndGet();
+    }
+
+    /**
+     * Records bytes of a compressed response body received from Sauce.
+     *
+     * @param compressed   bytes as received
+     * @param uncompressed bytes once decompressed
+     */
+    static void compressedResponseRead(long compressed, long uncompressed) {
+        if (compressed > 0) {
+            compressedBytes.addAndGet(compressed);
+        }
+        if (uncompressed > 0) {
+            uncompressedBytes.addAndGet(uncompressed);
+        }
+    }
+
+    /**
+     * @return the number of compressed responses received from Sauce
+     */
+    public static long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    /**
+     * @return the number of bytes of compressed response bodies received from Sauce
+     */
+    public static long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return the size of the compressed response bodies received from Sauce, once decompressed
+     */
+    public static long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * @return the ratio of the uncompressed to compressed size of the compressed responses, or 0 if none have been
+     *         received
+     */
+    public static double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 0 : (double) uncompressedBytes.get() / compressed;
+    }
+
+    /**
+     * @return the number of bytes compression has saved receiving responses from Sauce
+     */
+    public static long getCompressionBytesSaved() {
+        return Math.max(0, uncompressedBytes.get() - compressedBytes.get());
+    }
+
+    /**
+     * @return the HTTP status of the response received for the current thread's command, or 0 if none was received
+     */
+    static int getResponseStatus() {
+        return (int) command.get()[RESPONSE_STATUS];
+    }
+
+    /**
+     * @return the number of bytes of the response body read for the current thread's command
+     */
+    static long getResponseBytes() {
+        return command.get()[RESPONSE_BYTES];
+    }
+
+    /**
+     * Records the time taken to forward the current thread's command.
+     *
+     * @param newSession whether the command created a new session
+     * @return the time taken, in nanoseconds
+     */
+    static long commandFinished(boolean newSession) {
+        long elapsed = System.nanoTime() - command.get()[STARTED];
+        COMMAND_FORWARD.record(elapsed);
+        if (newSession) {
+            NEW_SESSION.record(elapsed);
+        }
+        return elapsed;
+    }
+
+    /**
+     * @return JSON representation of the histograms, keyed by name, and of the command stats
+     * @throws JSONException
+     */
+    public static JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (SauceOnDemandHistogram histogram : HISTOGRAMS) {
+            json.put(histogram.getName(), histogram.toJSON());
+        }
+        json.put("commands", COMMANDS.toJSON());
+        JSONObject compression = new JSONObject();
+        compression.put("responses", getCompressedResponses());
+        compression.put("compressedBytes", getCompressedBytes());
+        compression.put("uncompressedBytes", getUncompressedBytes());
+        compression.put("ratio", getCompressionRatio());
+        compression.put("bytesSaved", getCompressionBytesSaved());
+        json.put("compression", compression);
+        return json;
+    }
+
+    /**
+     * Appends the histograms, command type and compression counters in the Prometheus text exposition format.
+     *
+     * @param builder
+     */
+    public static void writePrometheus(StringBuilder builder) {
+        for (SauceOnDemandHistogram histogram : HISTOGRAMS) {
+            histogram.writePrometheus(builder);
+        }
+        COMMANDS.writePrometheus(builder);
+        writeMetric(builder, "sauce_compressed_responses_total", "counter", "Compressed responses received from Sauce",
+                getCompressedResponses());
+        writeMetric(builder, "sauce_response_compressed_bytes_total", "counter",
+                "Bytes of compressed responses received from Sauce", getCompressedBytes());
+        writeMetric(builder, "sauce_response_uncompressed_bytes_total", "counter",
+                "Bytes of compressed responses received from Sauce once decompressed", getUncompressedBytes());
+        writeMetric(builder, "sauce_response_compression_ratio", "gauge",
+                "Ratio of the uncompressed to compressed size of compressed responses", getCompressionRatio());
+        writeMetric(builder, "sauce_response_compression_bytes_saved_total", "counter",
+                "Bytes compression has saved receiving responses from Sauce", getCompressionBytesSaved());
+    }
+
+    private static void writeMetric(StringBuilder builder, String metric, String type, String help, Object value) {
+        builder.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        builder.append(metric).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,115 @@
+package com.saucelabs.grid;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.RemoteProxy;
+import org.openqa.grid.web.servlet.RegistryBasedServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports the latency histograms recorded by the Sauce proxies, along with the capability match counts and session
+ * usage of each Sauce proxy.  The metrics are returned as JSON, or in the Prometheus text format if the request path
+ * ends with 'prometheus' (eg. /grid/admin/SauceOnDemandMetricsServlet/prometheus).
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandMetricsServlet extends RegistryBasedServlet {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandMetricsServlet.class.getName());
+
+    private static final String PROMETHEUS = "prometheus";
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    public SauceOnDemandMetricsServlet() {
+        this(null);
+    }
+
+    public SauceOnDemandMetricsServlet(Registry registry) {
+        super(registry);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String body;
+        if (request.getPathInfo() != null && request.getPathInfo().endsWith(PROMETHEUS)) {
+            response.setContentType(PROMETHEUS_CONTENT_TYPE);
+            body = toPrometheus();
+        } else {
+            response.setContentType("application/json");
+            try {
+                body = toJSON().toString();
+            } catch (JSONException e) {
+                logger.log(Level.SEVERE, "Error writing metrics", e);
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                return;
+            }
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(200);
+        response.getWriter().print(body);
+        response.getWriter().close();
+    }
+
+    private List<SauceOnDemandRemoteProxy> getSauceProxies() {
+        List<SauceOnDemandRemoteProxy> proxies = new ArrayList<SauceOnDemandRemoteProxy>();
+        for (RemoteProxy proxy : getRegistry().getAllProxies()) {
+            if (proxy instanceof SauceOnDemandRemoteProxy) {
+                proxies.add((SauceOnDemandRemoteProxy) proxy);
+            }
+        }
+        return proxies;
+    }
+
+    JSONObject toJSON() throws JSONException {
+        JSONObject json = SauceOnDemandMetrics.toJSON();
+        JSONObject proxies = new JSONObject();
+        for (SauceOnDemandRemoteProxy proxy : getSauceProxies()) {
+            JSONObject proxyJson = new JSONObject();
+            proxyJson.put("matcherHits", proxy.getCapabilityHelper().getHits());
+            proxyJson.put("matcherMisses", proxy.getCapabilityHelper().getMisses());
+            proxyJson.put("usage", proxy.getUsage().toJSON(proxy.getTestSlots().size()));
+            proxies.put(proxy.getId(), proxyJson);
+        }
+        json.put("proxies", proxies);
+        return json;
+    }
+
+    String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        SauceOnDemandMetrics.writePrometheus(builder);
+        List<SauceOnDemandRemoteProxy> proxies = getSauceProxies();
+        writeHeader(builder, "sauce_matcher_hits_total", "counter", "Capability matches served from the memo");
+        for (SauceOnDemandRemoteProxy proxy : proxies) {
+            writeSample(builder, "sauce_matcher_hits_total", proxy, proxy.getCapabilityHelper().getHits());
+        }
+        writeHeader(builder, "sauce_matcher_misses_total", "counter", "Capability matches computed by the index");
+        for (SauceOnDemandRemoteProxy proxy : proxies) {
+            writeSample(builder, "sauce_matcher_misses_total", proxy, proxy.getCapabilityHelper().getMisses());
+        }
+        writeHeader(builder, "sauce_sessions", "gauge", "Sessions running on the proxy");
+        for (SauceOnDemandRemoteProxy proxy : proxies) {
+            writeSample(builder, "sauce_sessions", proxy, proxy.getUsage().getTotal());
+        }
+        return builder.toString();
+    }
+
+    private static void writeHeader(StringBuilder builder, String metric, String type, String help) {
+        builder.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder builder, String metric, RemoteProxy proxy, long value) {
+        builder.append(metric).append("{proxy=\"").append(proxy.getId().replace("\\", "\\\\").replace("\"", "\\\""))
+                .append("\"} ").append(value).append('\n');
+    }
+}
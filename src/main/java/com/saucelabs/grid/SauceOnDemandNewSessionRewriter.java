@@ -0,0 +1,413 @@
+package com.saucelabs.grid;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.openqa.grid.web.servlet.handler.SeleniumBasedRequest;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adds the Sauce username and access key to the body of a new session request, and replaces the platform with the
+ * value of the 'sauce:platform' capability if it is specified.
+ * <p/>
+ * New session bodies can include Firefox profiles and Chrome extensions which are megabytes in size, so rather than
+ * parsing the body into a JSONObject and serializing it again, the body is read twice as a stream of tokens: once to
+ * find the capabilities which need to be updated (without copying any values), and once to copy the tokens to the new
+ * body, updating the capabilities as they are copied.
+ * <p/>
+ * The credentials are added to the JSON Wire Protocol 'desiredCapabilities' as username and accessKey.  For W3C
+ * 'capabilities', they are added to the 'sauce:options' of 'alwaysMatch', or to the 'sauce:options' of each
+ * 'firstMatch' entry if the 'sauce:options' are specified by the 'firstMatch' entries rather than by 'alwaysMatch'.
+ *
+ * @author Ross Rowe
+ */
+public final class SauceOnDemandNewSessionRewriter {
+
+    static final String DESIRED_CAPABILITIES = "desiredCapabilities";
+    static final String CAPABILITIES = "capabilities";
+    static final String ALWAYS_MATCH = "alwaysMatch";
+    static final String FIRST_MATCH = "firstMatch";
+    static final String SAUCE_OPTIONS = "sauce:options";
+    static final String SAUCE_PLATFORM = "sauce:platform";
+    private static final String PLATFORM = "platform";
+    private static final String PLATFORM_NAME = "platformName";
+    private static final String USERNAME = "username";
+    private static final String ACCESS_KEY = "accessKey";
+    private static final String UTF_8 = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+
+    private SauceOnDemandNewSessionRewriter() {
+    }
+
+    /**
+     * Source of the new session body, which is opened once for each pass.
+     */
+    private interface Body {
+        InputStream open() throws IOException;
+
+        int length();
+    }
+
+    /**
+     * The capabilities which are updated, found by the first pass over the body.
+     */
+    private static class Plan {
+        private Capabilities desiredCapabilities;
+        private boolean capabilities;
+        private Capabilities alwaysMatch;
+        private final List<Capabilities> firstMatch = new ArrayList<Capabilities>();
+
+        /**
+         * @return whether the W3C credentials are added to each firstMatch entry, rather than to alwaysMatch
+         */
+        boolean isFirstMatchCredentials() {
+            if (alwaysMatch != null && alwaysMatch.sauceOptions) {
+                return false;
+            }
+            for (Capabilities entry : firstMatch) {
+                if (entry.sauceOptions) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Capabilities {
+        private String platform;
+        private boolean sauceOptions;
+    }
+
+    /**
+     * @param request   new session request
+     * @param userName
+     * @param accessKey
+     * @return the updated body, or null if the body doesn't include any capabilities
+     * @throws IOException if the body isn't a valid JSON object
+     */
+    public static byte[] rewrite(final SeleniumBasedRequest request, String userName, String accessKey)
+            throws IOException {
+        return rewrite(new Body() {
+            public InputStream open() throws IOException {
+                return request.getInputStream();
+            }
+
+            public int length() {
+                return request.getContentLength();
+            }
+        }, userName, accessKey);
+    }
+
+    /**
+     * @param body      new session body, in UTF-8
+     * @param userName
+     * @param accessKey
+     * @return the updated body, or null if the body doesn't include any capabilities
+     * @throws IOException if the body isn't a valid JSON object
+     */
+    public static byte[] rewrite(final byte[] body, String userName, String accessKey) throws IOException {
+        return rewrite(new Body() {
+            public InputStream open() {
+                return new ByteArrayInputStream(body);
+            }
+
+            public int length() {
+                return body.length;
+            }
+        }, userName, accessKey);
+    }
+
+    private static byte[] rewrite(Body body, String userName, String accessKey) throws IOException {
+        try {
+            Plan plan = scan(reader(body));
+            if (plan.desiredCapabilities == null && !plan.capabilities) {
+                return null;
+            }
+            int length = Math.max(body.length(), 0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length + 256);
+            //copies large strings to the encoder in chunks, rather than the encoder copying each string in one go
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, UTF_8),
+                    Math.min(Math.max(length, 64), BUFFER_SIZE)));
+            writer.setLenient(true);
+            copyRequest(reader(body), writer, plan, userName, accessKey);
+            writer.close();
+            return out.toByteArray();
+        } catch (IllegalStateException e) {
+            //thrown by JsonReader when the body has an unexpected structure
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static JsonReader reader(Body body) throws IOException {
+        Reader reader = new InputStreamReader(body.open(), UTF_8);
+        JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+        return json;
+    }
+
+    private static Plan scan(JsonReader reader) throws IOException {
+        Plan plan = new Plan();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(DESIRED_CAPABILITIES) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                plan.desiredCapabilities = scanCapabilities(reader);
+            } else if (name.equals(CAPABILITIES) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                plan.capabilities = true;
+                scanW3CCapabilities(reader, plan);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return plan;
+    }
+
+    private static void scanW3CCapabilities(JsonReader reader, Plan plan) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(ALWAYS_MATCH) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                plan.alwaysMatch = scanCapabilities(reader);
+            } else if (name.equals(FIRST_MATCH) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        plan.firstMatch.add(scanCapabilities(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static Capabilities scanCapabilities(JsonReader reader) throws IOException {
+        Capabilities capabilities = new Capabilities();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(SAUCE_PLATFORM) && reader.peek() == JsonToken.STRING) {
+                capabilities.platform = reader.nextString();
+            } else if (name.equals(SAUCE_OPTIONS) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                capabilities.sauceOptions = true;
+                reader.skipValue();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return capabilities;
+    }
+
+    private static void copyRequest(JsonReader reader, JsonWriter writer, Plan plan, String userName,
+                                    String accessKey) throws IOException {
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            writer.name(name);
+            if (name.equals(DESIRED_CAPABILITIES) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                copyCapabilities(reader, writer, plan.desiredCapabilities, false, true, userName, accessKey);
+            } else if (name.equals(CAPABILITIES) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                copyW3CCapabilities(reader, writer, plan, userName, accessKey);
+            } else {
+                copyValue(reader, writer);
+            }
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    private static void copyW3CCapabilities(JsonReader reader, JsonWriter writer, Plan plan, String userName,
+                                            String accessKey) throws IOException {
+        boolean firstMatchCredentials = plan.isFirstMatchCredentials();
+        int firstMatchIndex = 0;
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            writer.name(name);
+            if (name.equals(ALWAYS_MATCH) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                copyCapabilities(reader, writer, plan.alwaysMatch, true, !firstMatchCredentials, userName, accessKey);
+            } else if (name.equals(FIRST_MATCH) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        copyCapabilities(reader, writer, plan.firstMatch.get(firstMatchIndex++), true,
+                                firstMatchCredentials, userName, accessKey);
+                    } else {
+                        copyValue(reader, writer);
+                    }
+                }
+                reader.endArray();
+                writer.endArray();
+            } else {
+                copyValue(reader, writer);
+            }
+        }
+        if (plan.alwaysMatch == null && !firstMatchCredentials) {
+            writer.name(ALWAYS_MATCH).beginObject();
+            writeSauceOptions(writer, userName, accessKey);
+            writer.endObject();
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * Copies a capabilities object, replacing the platform with the sauce:platform (if specified) and adding the
+     * credentials, either directly (for the JSON Wire Protocol) or within the sauce:options (for W3C).
+     */
+    private static void copyCapabilities(JsonReader reader, JsonWriter writer, Capabilities capabilities, boolean w3c,
+                                         boolean addCredentials, String userName, String accessKey)
+            throws IOException {
+        String platformKey = w3c ? PLATFORM_NAME : PLATFORM;
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ((capabilities.platform != null && name.equals(platformKey))
+                    || (!w3c && (name.equals(USERNAME) || name.equals(ACCESS_KEY)))) {
+                reader.skipValue();
+            } else if (w3c && addCredentials && name.equals(SAUCE_OPTIONS)) {
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    writer.name(name);
+                    copySauceOptions(reader, writer, userName, accessKey);
+                } else {
+                    //replaced by the sauce:options holding the credentials
+                    reader.skipValue();
+                }
+            } else {
+                writer.name(name);
+                copyValue(reader, writer);
+            }
+        }
+        if (capabilities.platform != null) {
+            writer.name(platformKey).value(capabilities.platform);
+        }
+        if (!w3c) {
+            writer.name(USERNAME).value(userName);
+            writer.name(ACCESS_KEY).value(accessKey);
+        } else if (addCredentials && !capabilities.sauceOptions) {
+            writeSauceOptions(writer, userName, accessKey);
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    private static void copySauceOptions(JsonReader reader, JsonWriter writer, String userName, String accessKey)
+            throws IOException {
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(USERNAME) || name.equals(ACCESS_KEY)) {
+                reader.skipValue();
+            } else {
+                writer.name(name);
+                copyValue(reader, writer);
+            }
+        }
+        writer.name(USERNAME).value(userName);
+        writer.name(ACCESS_KEY).value(accessKey);
+        reader.endObject();
+        writer.endObject();
+    }
+
+    private static void writeSauceOptions(JsonWriter writer, String userName, String accessKey) throws IOException {
+        writer.name(SAUCE_OPTIONS).beginObject();
+        writer.name(USERNAME).value(userName);
+        writer.name(ACCESS_KEY).value(accessKey);
+        writer.endObject();
+    }
+
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case NUMBER:
+                writer.value(new RawNumber(reader.nextString()));
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                writer.value(reader.nextString());
+                break;
+        }
+    }
+
+    /**
+     * Number which is written as it was read, so that its precision and format are preserved.
+     */
+    private static class RawNumber extends Number {
+
+        private final String value;
+
+        RawNumber(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(value);
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.saucelabs.grid;
+
+import com.google.gson.JsonObject;
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import org.openqa.grid.common.RegistrationRequest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The configuration needed to construct a {@link SauceOnDemandRemoteProxy}, read once from sauce-ondemand.json and
+ * the registration request, along with the REST calls to Sauce which were issued (concurrently) while registering the
+ * proxy.  The results of the calls are shared by the capability rewrite and the proxy instance.
+ *
+ * @author Ross Rowe
+ */
+class SauceOnDemandProxyConfiguration {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandProxyConfiguration.class.getName());
+
+    private final RegistrationRequest request;
+    private final JsonObject sauceConfiguration;
+    private final String[] webDriverCapabilities;
+    private final String[] seleniumCapabilities;
+    private final List<String[]> accounts;
+    private final List<Future<Integer>> maximumSessions;
+    private final Future<?> webDriverBrowsers;
+    private final Future<?> seleniumBrowsers;
+    private List<Map<String, Object>> supportedCapabilities = Collections.emptyList();
+
+    SauceOnDemandProxyConfiguration(RegistrationRequest request, JsonObject sauceConfiguration,
+                                    String[] webDriverCapabilities, String[] seleniumCapabilities,
+                                    List<String[]> accounts, List<Future<Integer>> maximumSessions,
+                                    Future<?> webDriverBrowsers, Future<?> seleniumBrowsers) {
+        this.request = request;
+        this.sauceConfiguration = sauceConfiguration;
+        this.webDriverCapabilities = webDriverCapabilities;
+        this.seleniumCapabilities = seleniumCapabilities;
+        this.accounts = accounts;
+        this.maximumSessions = maximumSessions;
+        this.webDriverBrowsers = webDriverBrowsers;
+        this.seleniumBrowsers = seleniumBrowsers;
+    }
+
+    RegistrationRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the contents of sauce-ondemand.json, or null if the file doesn't exist
+     */
+    JsonObject getSauceConfiguration() {
+        return sauceConfiguration;
+    }
+
+    /**
+     * @return whether the proxy runs its sessions on Sauce, which is the case unless it has been disabled with
+     *         sauceEnable, as long as sauce-ondemand.json exists or Sauce credentials were registered
+     */
+    boolean isSauceBacked() {
+        Object enabled = request.getConfiguration().get(SauceOnDemandRemoteProxy.SAUCE_ENABLE);
+        return (enabled == null || Boolean.valueOf(enabled.toString()))
+                && (sauceConfiguration != null || !accounts.isEmpty());
+    }
+
+    String[] getWebDriverCapabilities() {
+        return webDriverCapabilities;
+    }
+
+    String[] getSeleniumCapabilities() {
+        return seleniumCapabilities;
+    }
+
+    /**
+     * @return the capabilities which the proxy's slots can run, as determined by the capability rewrite
+     */
+    List<Map<String, Object>> getSupportedCapabilities() {
+        return supportedCapabilities;
+    }
+
+    void setSupportedCapabilities(List<Map<String, Object>> supportedCapabilities) {
+        this.supportedCapabilities = supportedCapabilities;
+    }
+
+    /**
+     * @return the user name and access key of each of the Sauce accounts used by the proxy
+     */
+    List<String[]> getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @param account index of the account in {@link #getAccounts()}
+     * @return the concurrency limit of the Sauce account (-1 if unlimited), or null if the limit couldn't be retrieved
+     */
+    Integer getMaximumSessions(int account) {
+        return await(maximumSessions.get(account));
+    }
+
+    /**
+     * @return the number of sessions which can be run across all of the Sauce accounts, or null if no credentials are
+     *         configured or none of the limits could be retrieved
+     */
+    Integer getMaximumSessions() {
+        Integer total = null;
+        for (int i = 0; i < maximumSessions.size(); i++) {
+            Integer limit = getMaximumSessions(i);
+            if (limit != null) {
+                total = (total == null ? 0 : total) + SauceOnDemandRemoteProxy.toSessions(limit);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Waits for the browser catalogs required by the configured capabilities to be loaded.
+     */
+    void awaitBrowsers() {
+        await(webDriverBrowsers);
+        await(seleniumBrowsers);
+    }
+
+    private static <T> T await(Future<T> future) {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SauceOnDemandRestAPIException) {
+                logger.log(Level.SEVERE, "Error invoking Sauce REST API", e.getCause());
+            } else {
+                logger.log(Level.SEVERE, "Error configuring Sauce OnDemand proxy", e.getCause());
+            }
+        }
+        return null;
+    }
+}
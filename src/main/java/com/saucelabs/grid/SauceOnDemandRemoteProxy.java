@@ -3,28 +3,35 @@ package com.saucelabs.grid;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.saucelabs.grid.services.CircuitBreakingSauceOnDemandService;
+import com.saucelabs.grid.services.SauceOnDemandCircuitBreaker;
 import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
 import com.saucelabs.grid.services.SauceOnDemandService;
 import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import com.saucelabs.grid.services.SauceOnDemandStatusMonitor;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.openqa.grid.common.JSONConfigurationUtils;
 import org.openqa.grid.common.RegistrationRequest;
 import org.openqa.grid.internal.Registry;
 import org.openqa.grid.internal.RemoteProxy;
 import org.openqa.grid.internal.TestSession;
 import org.openqa.grid.internal.TestSlot;
-import org.openqa.grid.internal.utils.CapabilityMatcher;
 import org.openqa.grid.internal.utils.HtmlRenderer;
 import org.openqa.grid.selenium.proxy.DefaultRemoteProxy;
 import org.openqa.grid.web.servlet.handler.RequestType;
+import org.openqa.grid.web.servlet.handler.SeleniumBasedRequest;
 import org.openqa.grid.web.servlet.handler.WebDriverRequest;
+import org.openqa.selenium.remote.CapabilityType;
 import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.internal.HttpClientFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,8 +39,19 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -48,8 +66,21 @@ import java.util.logging.Logger;
  */
 public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
 
-    private static final Logger logger = Logger.getLogger(SauceOnDemandRemoteProxy.class.getName());
-    private static final SauceOnDemandService service = new SauceOnDemandServiceImpl();
+    private static final String CLASS_NAME = SauceOnDemandRemoteProxy.class.getName();
+
+    private static final Logger logger = Logger.getLogger(CLASS_NAME);
+    private static final SauceOnDemandCircuitBreaker circuitBreaker = new SauceOnDemandCircuitBreaker();
+    private static final SauceOnDemandServiceImpl restClient = new SauceOnDemandServiceImpl();
+    private static final SauceOnDemandService service = new CircuitBreakingSauceOnDemandService(restClient,
+            circuitBreaker);
+    private static final SauceOnDemandStatusMonitor statusMonitor = new SauceOnDemandStatusMonitor(service);
+    private static final SauceOnDemandSnapshot snapshot = new SauceOnDemandSnapshot();
+    private static final BrowsersCache webDriverBrowsers = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER, snapshot);
+    private static final BrowsersCache seleniumBrowsers = new BrowsersCache(service, BrowsersCache.Catalog.SELENIUM_RC, snapshot);
+    private static final Executor reconciler = Executors.newSingleThreadExecutor(
+            SauceOnDemandThreads.newThreadFactory("sauce-snapshot-reconcile-%d"));
+    private static final ExecutorService configurer = SauceOnDemandThreads.newTaskExecutor("sauce-proxy-configure-%d");
+    private static final Set<String> reconcilingLimits = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public static final String SAUCE_ONDEMAND_CONFIG_FILE = "sauce-ondemand.json";
     public static final String SAUCE_USER_NAME = "sauceUserName";
@@ -59,6 +90,80 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
     public static final String SAUCE_ENABLE = "sauceEnable";
     public static final String SAUCE_WEB_DRIVER_CAPABILITIES = "sauceWebDriverCapabilities";
     public static final String SAUCE_RC_CAPABILITIES = "sauceSeleniumRCCapabilities";
+    public static final String SAUCE_STATUS_POLL_INTERVAL = "sauceStatusPollInterval";
+    public static final String SAUCE_STATUS_MAX_AGE = "sauceStatusMaxAge";
+    public static final String SAUCE_STATUS_STALE_POLICY = "sauceStatusStalePolicy";
+    public static final String SAUCE_CIRCUIT_FAILURE_THRESHOLD = "sauceCircuitFailureThreshold";
+    public static final String SAUCE_CIRCUIT_PROBE_INTERVAL = "sauceCircuitProbeInterval";
+    public static final String SAUCE_BROWSERS_CACHE_TTL = "sauceBrowsersCacheTtl";
+    public static final String SAUCE_ACCOUNT_POLL_INTERVAL = "sauceAccountPollInterval";
+    /**
+     * Number of slots registered by a Sauce-backed proxy whose account limits are known, which caps the sessions it
+     * runs if the limits are raised after registration.  Defaults to {@link #DEFAULT_MAX_SESSIONS}, or to the limits
+     * if they're higher.
+     */
+    public static final String SAUCE_POOL_SIZE = "saucePoolSize";
+    /**
+     * Additional Sauce accounts to run sessions against, as a JSON array of objects with sauceUserName and
+     * sauceAccessKey attributes.
+     */
+    public static final String SAUCE_ACCOUNTS = "sauceAccounts";
+    /**
+     * Endpoints to forward sessions to, as a JSON array of objects with url and (optionally) weight attributes.  If
+     * not specified, sessions are forwarded to seleniumHost:seleniumPort.
+     */
+    public static final String SAUCE_ENDPOINTS = "sauceEndpoints";
+    public static final String SAUCE_ENDPOINT_PROBE_INTERVAL = "sauceEndpointProbeInterval";
+    /**
+     * Settings of the pooled client which calls the Sauce REST API: the maximum number of connections (in total and
+     * to a single host), the connect and socket timeouts in milliseconds, and the milliseconds to keep connections
+     * alive when Sauce doesn't specify a timeout.
+     */
+    public static final String SAUCE_REST_MAX_CONNECTIONS = "sauceRestMaxConnections";
+    public static final String SAUCE_REST_MAX_CONNECTIONS_PER_ROUTE = "sauceRestMaxConnectionsPerRoute";
+    public static final String SAUCE_REST_CONNECT_TIMEOUT = "sauceRestConnectTimeout";
+    public static final String SAUCE_REST_SOCKET_TIMEOUT = "sauceRestSocketTimeout";
+    public static final String SAUCE_REST_KEEP_ALIVE = "sauceRestKeepAlive";
+    /**
+     * Number of sessions the proxy runs when the account's concurrency is unlimited, or its limit couldn't be
+     * retrieved.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 20;
+    /**
+     * Session attribute holding the type of the command being forwarded to Sauce, which is cleared once the command
+     * has completed.
+     */
+    private static final String COMMAND_IN_PROGRESS = "sauceCommandInProgress";
+    /**
+     * Session attribute holding the session's command stats.
+     */
+    private static final String COMMAND_STATS = "sauceCommandStats";
+    /**
+     * Session attribute holding the name of the capability the session's usage is counted against.
+     */
+    private static final String USAGE_CAPABILITY = "sauceUsageCapability";
+    /**
+     * Session attribute holding the account the session was assigned to.
+     */
+    private static final String SAUCE_ACCOUNT = "sauceAccount";
+    /**
+     * Session attribute holding the endpoint the session was routed to, so that all of its commands are forwarded to
+     * the same endpoint.
+     */
+    private static final String SAUCE_ENDPOINT = "sauceEndpoint";
+    /**
+     * Session attribute which is set while the new session request is being forwarded.
+     */
+    private static final String NEW_SESSION_STARTED = "sauceNewSessionStarted";
+    /**
+     * Session attribute which is set if the session is the single probe allowed through the open circuit breaker,
+     * until the outcome of starting the session has been recorded.
+     */
+    private static final String CIRCUIT_PROBE = "sauceCircuitProbe";
+    /**
+     * Name which usage is counted against for sessions which don't match a supported capability.
+     */
+    static final String UNSPECIFIED_CAPABILITY = "unspecified";
     private static final String URL_FORMAT = "http://{0}:{1}";
     private static final String SELENIUM_HOST = "seleniumHost";
     private static final String SELENIUM_PORT = "seleniumPort";
@@ -70,8 +175,24 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
     private String accessKey;
     private boolean shouldProxySauceOnDemand = true;
     private boolean shouldHandleUnspecifiedCapabilities;
-    private CapabilityMatcher capabilityHelper;
+    private SauceOnDemandCapabilityMatcher capabilityHelper;
+    private final List<Map<String, Object>> supportedCapabilities;
+    /**
+     * Whether the proxy's slots form a single pool, which is the case for Sauce-backed proxies.
+     */
+    private final boolean pooled;
+    /**
+     * Incremented whenever the capabilities handled by the proxy change, so that cached matches are discarded.
+     */
+    private final AtomicInteger capabilitiesVersion = new AtomicInteger();
+    private final SauceOnDemandUsage usage = new SauceOnDemandUsage();
     private int maxSauceSessions;
+    private SauceOnDemandAccountPool accounts;
+    private SauceOnDemandEndpointRouter router;
+    /**
+     * The endpoint of the session whose command is being forwarded by the current thread.
+     */
+    private final ThreadLocal<SauceOnDemandEndpoint> currentEndpoint = new ThreadLocal<SauceOnDemandEndpoint>();
     private String[] webDriverCapabilities;
     private String[] seleniumCapabilities;
     private final SauceHttpClientFactory httpClientFactory;
@@ -100,140 +221,442 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
      * Defaults to 80.
      */
     private String seleniumPort = "80";
+    /**
+     * Url of seleniumHost:seleniumPort, built when first needed.
+     */
+    private volatile URL configuredHost;
 
     public boolean shouldProxySauceOnDemand() {
         return shouldProxySauceOnDemand;
     }
 
     public SauceOnDemandRemoteProxy(RegistrationRequest req, Registry registry) {
-        super(updateDesiredCapabilities(req), registry);
+        this(configure(req), registry);
+    }
+
+    SauceOnDemandRemoteProxy(SauceOnDemandProxyConfiguration configuration, Registry registry) {
+        super(updateDesiredCapabilities(configuration), registry);
         httpClientFactory = new SauceHttpClientFactory(this);
         //TODO include proxy id in json file
+        RegistrationRequest req = configuration.getRequest();
+        this.userName = (String) req.getConfiguration().get(SAUCE_USER_NAME);
+        this.accessKey = (String) req.getConfiguration().get(SAUCE_ACCESS_KEY);
+        String configHost = (String) req.getConfiguration().get(SELENIUM_HOST);
+        if (configHost != null) {
+            this.seleniumHost = configHost;
+        }
+        String configPort = (String) req.getConfiguration().get(SELENIUM_PORT);
+        if (configPort != null) {
+            this.seleniumPort = configPort;
+        }
+        String handleUnspecifiedCapabilities = (String) req.getConfiguration().get(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES);
+        if (handleUnspecifiedCapabilities != null) {
+            this.shouldHandleUnspecifiedCapabilities = Boolean.valueOf(handleUnspecifiedCapabilities);
+        }
+
+        Integer maximumSessions = configuration.getMaximumSessions();
+        if (maximumSessions != null) {
+            this.maxSauceSessions = maximumSessions;
+        }
+        Object b = req.getConfiguration().get(SAUCE_ENABLE);
+        if (b != null) {
+            shouldProxySauceOnDemand = Boolean.valueOf(b.toString());
+        }
+        List<SauceOnDemandAccountMonitor> monitors = new ArrayList<SauceOnDemandAccountMonitor>();
+        if (shouldProxySauceOnDemand) {
+            List<String[]> credentials = configuration.getAccounts();
+            for (int i = 0; i < credentials.size(); i++) {
+                Integer limit = configuration.getMaximumSessions(i);
+                monitors.add(new SauceOnDemandAccountMonitor(service, credentials.get(i)[0], credentials.get(i)[1],
+                        new SauceOnDemandUsage(), limit == null ? SauceOnDemandAccountMonitor.UNLIMITED : limit));
+            }
+        }
+        accounts = new SauceOnDemandAccountPool(monitors);
+        Object pollInterval = req.getConfiguration().get(SAUCE_ACCOUNT_POLL_INTERVAL);
+        accounts.start(pollInterval == null ? SauceOnDemandAccountMonitor.DEFAULT_POLL_INTERVAL
+                : Long.parseLong(pollInterval.toString()));
+        router = new SauceOnDemandEndpointRouter(getEndpoints(req, getConfiguredHost()));
+        Object probeInterval = req.getConfiguration().get(SAUCE_ENDPOINT_PROBE_INTERVAL);
+        router.start(probeInterval == null ? SauceOnDemandEndpointRouter.DEFAULT_PROBE_INTERVAL
+                : Long.parseLong(probeInterval.toString()));
+        configureStatusMonitor(req);
+        configureCircuitBreaker(req);
+
+        this.webDriverCapabilities = configuration.getWebDriverCapabilities();
+        this.seleniumCapabilities = configuration.getSeleniumCapabilities();
+        this.supportedCapabilities = Collections.unmodifiableList(configuration.getSupportedCapabilities());
+        this.pooled = configuration.isSauceBacked();
+    }
+
+    /**
+     * Reads sauce-ondemand.json (once) into the registration request, and issues the REST calls needed to register
+     * the proxy concurrently, so that registration takes roughly as long as the slowest call rather than the sum of
+     * all of them.
+     *
+     * @param request
+     * @return
+     */
+    static SauceOnDemandProxyConfiguration configure(RegistrationRequest request) {
         JsonObject sauceConfiguration = readConfigurationFromFile();
-        try {
-            this.userName = (String) req.getConfiguration().get(SAUCE_USER_NAME);
-            this.accessKey = (String) req.getConfiguration().get(SAUCE_ACCESS_KEY);
-            String configHost = (String) req.getConfiguration().get(SELENIUM_HOST);
-            if (configHost != null) {
-                this.seleniumHost = configHost;
-            }
-            String configPort = (String) req.getConfiguration().get(SELENIUM_PORT);
-            if (configPort != null) {
-                this.seleniumPort = configPort;
-            }
-            String handleUnspecifiedCapabilities = (String) req.getConfiguration().get(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES);
-            if (handleUnspecifiedCapabilities != null) {
-                this.shouldHandleUnspecifiedCapabilities = Boolean.valueOf(handleUnspecifiedCapabilities);
-            }
-
-            if (userName != null && accessKey != null) {
-                this.maxSauceSessions = service.getMaxiumumSessions(userName, accessKey);
-                if (maxSauceSessions == -1) {
-                    //this is actually infinity, but set it to 100
-                    maxSauceSessions = 100;
-                }
+        String[] webDriverKeys = null;
+        String[] seleniumKeys = null;
+        if (sauceConfiguration != null) {
+            if (sauceConfiguration.has(SELENIUM_HOST)) {
+                request.getConfiguration().put(SELENIUM_HOST, sauceConfiguration.get(SELENIUM_HOST).getAsString());
+            }
+            if (sauceConfiguration.has(SELENIUM_PORT)) {
+                request.getConfiguration().put(SELENIUM_PORT, sauceConfiguration.get(SELENIUM_PORT).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_USER_NAME)) {
+                request.getConfiguration().put(SAUCE_USER_NAME, sauceConfiguration.get(SAUCE_USER_NAME).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_ACCESS_KEY)) {
+                request.getConfiguration().put(SAUCE_ACCESS_KEY, sauceConfiguration.get(SAUCE_ACCESS_KEY).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES)) {
+                request.getConfiguration().put(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES, sauceConfiguration.get(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_ENABLE)) {
+                request.getConfiguration().put(SAUCE_ENABLE, sauceConfiguration.get(SAUCE_ENABLE).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_STATUS_POLL_INTERVAL)) {
+                request.getConfiguration().put(SAUCE_STATUS_POLL_INTERVAL, sauceConfiguration.get(SAUCE_STATUS_POLL_INTERVAL).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_STATUS_MAX_AGE)) {
+                request.getConfiguration().put(SAUCE_STATUS_MAX_AGE, sauceConfiguration.get(SAUCE_STATUS_MAX_AGE).getAsString());
             }
-            Object b = req.getConfiguration().get(SAUCE_ENABLE);
-            if (b != null) {
-                shouldProxySauceOnDemand = Boolean.valueOf(b.toString());
+            if (sauceConfiguration.has(SAUCE_STATUS_STALE_POLICY)) {
+                request.getConfiguration().put(SAUCE_STATUS_STALE_POLICY, sauceConfiguration.get(SAUCE_STATUS_STALE_POLICY).getAsString());
             }
+            if (sauceConfiguration.has(SAUCE_CIRCUIT_FAILURE_THRESHOLD)) {
+                request.getConfiguration().put(SAUCE_CIRCUIT_FAILURE_THRESHOLD, sauceConfiguration.get(SAUCE_CIRCUIT_FAILURE_THRESHOLD).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_CIRCUIT_PROBE_INTERVAL)) {
+                request.getConfiguration().put(SAUCE_CIRCUIT_PROBE_INTERVAL, sauceConfiguration.get(SAUCE_CIRCUIT_PROBE_INTERVAL).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_ACCOUNT_POLL_INTERVAL)) {
+                request.getConfiguration().put(SAUCE_ACCOUNT_POLL_INTERVAL, sauceConfiguration.get(SAUCE_ACCOUNT_POLL_INTERVAL).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_POOL_SIZE)) {
+                request.getConfiguration().put(SAUCE_POOL_SIZE, sauceConfiguration.get(SAUCE_POOL_SIZE).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_ACCOUNTS)) {
+                request.getConfiguration().put(SAUCE_ACCOUNTS, sauceConfiguration.get(SAUCE_ACCOUNTS).toString());
+            }
+            if (sauceConfiguration.has(SAUCE_ENDPOINTS)) {
+                request.getConfiguration().put(SAUCE_ENDPOINTS, sauceConfiguration.get(SAUCE_ENDPOINTS).toString());
+            }
+            if (sauceConfiguration.has(SAUCE_ENDPOINT_PROBE_INTERVAL)) {
+                request.getConfiguration().put(SAUCE_ENDPOINT_PROBE_INTERVAL, sauceConfiguration.get(SAUCE_ENDPOINT_PROBE_INTERVAL).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_REST_MAX_CONNECTIONS)) {
+                request.getConfiguration().put(SAUCE_REST_MAX_CONNECTIONS, sauceConfiguration.get(SAUCE_REST_MAX_CONNECTIONS).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_REST_MAX_CONNECTIONS_PER_ROUTE)) {
+                request.getConfiguration().put(SAUCE_REST_MAX_CONNECTIONS_PER_ROUTE, sauceConfiguration.get(SAUCE_REST_MAX_CONNECTIONS_PER_ROUTE).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_REST_CONNECT_TIMEOUT)) {
+                request.getConfiguration().put(SAUCE_REST_CONNECT_TIMEOUT, sauceConfiguration.get(SAUCE_REST_CONNECT_TIMEOUT).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_REST_SOCKET_TIMEOUT)) {
+                request.getConfiguration().put(SAUCE_REST_SOCKET_TIMEOUT, sauceConfiguration.get(SAUCE_REST_SOCKET_TIMEOUT).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_REST_KEEP_ALIVE)) {
+                request.getConfiguration().put(SAUCE_REST_KEEP_ALIVE, sauceConfiguration.get(SAUCE_REST_KEEP_ALIVE).getAsString());
+            }
+            if (sauceConfiguration.has(SAUCE_BROWSERS_CACHE_TTL)) {
+                long ttl = sauceConfiguration.get(SAUCE_BROWSERS_CACHE_TTL).getAsLong();
+                webDriverBrowsers.setTtl(ttl);
+                seleniumBrowsers.setTtl(ttl);
+            }
+            if (sauceConfiguration.has(SAUCE_WEB_DRIVER_CAPABILITIES)) {
+                webDriverKeys = toArray(sauceConfiguration.getAsJsonArray(SAUCE_WEB_DRIVER_CAPABILITIES));
+            }
+            if (sauceConfiguration.has(SAUCE_RC_CAPABILITIES)) {
+                seleniumKeys = toArray(sauceConfiguration.getAsJsonArray(SAUCE_RC_CAPABILITIES));
+            }
+        }
 
-            if (sauceConfiguration != null) {
-                if (sauceConfiguration.has(SAUCE_WEB_DRIVER_CAPABILITIES)) {
-                    JsonArray keyArray = sauceConfiguration.getAsJsonArray(SAUCE_WEB_DRIVER_CAPABILITIES);
-                    this.webDriverCapabilities = new String[keyArray.size()];
-                    for (int i = 0; i < keyArray.size(); i++) {
-                        webDriverCapabilities[i] = keyArray.get(i).getAsString();
-                    }
+        configureRestClient(request);
+
+        List<String[]> accounts = getAccounts(request);
+        List<Future<Integer>> maximumSessions = new ArrayList<Future<Integer>>();
+        for (final String[] account : accounts) {
+            maximumSessions.add(configurer.submit(new Callable<Integer>() {
+                public Integer call() throws SauceOnDemandRestAPIException {
+                    return getMaximumSessions(account[0], account[1]);
                 }
-                if (sauceConfiguration.has(SAUCE_RC_CAPABILITIES)) {
-                    JsonArray keyArray = sauceConfiguration.getAsJsonArray(SAUCE_RC_CAPABILITIES);
-                    this.seleniumCapabilities = new String[keyArray.size()];
-                    for (int i = 0; i < keyArray.size(); i++) {
-                        seleniumCapabilities[i] = keyArray.get(i).getAsString();
-                    }
+            }));
+        }
+        Future<?> webDriver = webDriverKeys == null ? null : configurer.submit(loadBrowsers(webDriverBrowsers));
+        Future<?> selenium = seleniumKeys == null ? null : configurer.submit(loadBrowsers(seleniumBrowsers));
+        return new SauceOnDemandProxyConfiguration(request, sauceConfiguration, webDriverKeys, seleniumKeys,
+                accounts, maximumSessions, webDriver, selenium);
+    }
+
+    /**
+     * Returns the endpoints listed in sauceEndpoints, or the default endpoint if none are listed.
+     *
+     * @param request
+     * @param defaultUrl
+     * @return
+     */
+    static List<SauceOnDemandEndpoint> getEndpoints(RegistrationRequest request, URL defaultUrl) {
+        List<SauceOnDemandEndpoint> endpoints = new ArrayList<SauceOnDemandEndpoint>();
+        Object configured = request.getConfiguration().get(SAUCE_ENDPOINTS);
+        if (configured != null) {
+            try {
+                for (JsonElement element : new JsonParser().parse(configured.toString()).getAsJsonArray()) {
+                    JsonObject endpoint = element.getAsJsonObject();
+                    int weight = endpoint.has("weight") ? endpoint.get("weight").getAsInt() : 1;
+                    endpoints.add(new SauceOnDemandEndpoint(new URL(endpoint.get("url").getAsString()), weight));
                 }
+            } catch (MalformedURLException e) {
+                logger.log(Level.SEVERE, "Error parsing " + SAUCE_ENDPOINTS, e);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error parsing " + SAUCE_ENDPOINTS, e);
             }
-        } catch (SauceOnDemandRestAPIException e) {
-            logger.log(Level.SEVERE, "Error invoking Sauce REST API", e);
         }
-
+        if (endpoints.isEmpty()) {
+            endpoints.add(new SauceOnDemandEndpoint(defaultUrl, 1));
+        }
+        return endpoints;
     }
 
-    private static RegistrationRequest updateDesiredCapabilities(RegistrationRequest request) {
-        JsonObject sauceConfiguration = readConfigurationFromFile();
-        try {
-            if (sauceConfiguration != null) {
-                if (sauceConfiguration.has(SELENIUM_HOST)) {
-                    request.getConfiguration().put(SELENIUM_HOST, sauceConfiguration.get(SELENIUM_HOST).getAsString());
-                }
-                if (sauceConfiguration.has(SELENIUM_PORT)) {
-                    request.getConfiguration().put(SELENIUM_PORT, sauceConfiguration.get(SELENIUM_PORT).getAsString());
-                }
-                if (sauceConfiguration.has(SAUCE_USER_NAME)) {
-                    request.getConfiguration().put(SAUCE_USER_NAME, sauceConfiguration.get(SAUCE_USER_NAME).getAsString());
-                }
-                if (sauceConfiguration.has(SAUCE_ACCESS_KEY)) {
-                    request.getConfiguration().put(SAUCE_ACCESS_KEY, sauceConfiguration.get(SAUCE_ACCESS_KEY).getAsString());
-                }
-                if (sauceConfiguration.has(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES)) {
-                    request.getConfiguration().put(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES, sauceConfiguration.get(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES).getAsString());
-                }
-                if (sauceConfiguration.has(SAUCE_ENABLE)) {
-                    request.getConfiguration().put(SAUCE_ENABLE, sauceConfiguration.get(SAUCE_ENABLE).getAsString());
+    /**
+     * Returns the credentials of the Sauce accounts configured for the proxy: the sauceUserName/sauceAccessKey
+     * account, followed by those listed in sauceAccounts.
+     *
+     * @param request
+     * @return list of user name/access key pairs
+     */
+    static List<String[]> getAccounts(RegistrationRequest request) {
+        List<String[]> accounts = new ArrayList<String[]>();
+        Set<String> userNames = new HashSet<String>();
+        String userName = (String) request.getConfiguration().get(SAUCE_USER_NAME);
+        String accessKey = (String) request.getConfiguration().get(SAUCE_ACCESS_KEY);
+        if (userName != null && accessKey != null) {
+            accounts.add(new String[]{userName, accessKey});
+            userNames.add(userName);
+        }
+        Object configured = request.getConfiguration().get(SAUCE_ACCOUNTS);
+        if (configured != null) {
+            try {
+                for (JsonElement element : new JsonParser().parse(configured.toString()).getAsJsonArray()) {
+                    JsonObject account = element.getAsJsonObject();
+                    if (account.has(SAUCE_USER_NAME) && account.has(SAUCE_ACCESS_KEY)
+                            && userNames.add(account.get(SAUCE_USER_NAME).getAsString())) {
+                        accounts.add(new String[]{account.get(SAUCE_USER_NAME).getAsString(),
+                                account.get(SAUCE_ACCESS_KEY).getAsString()});
+                    }
                 }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error parsing " + SAUCE_ACCOUNTS, e);
+            }
+        }
+        return accounts;
+    }
 
-                List<SauceOnDemandCapabilities> caps = new ArrayList<SauceOnDemandCapabilities>();
-                if (sauceConfiguration.has(SAUCE_WEB_DRIVER_CAPABILITIES)) {
-                    request.getCapabilities().clear();
-                    BrowsersCache webDriverBrowsers = new BrowsersCache(service.getWebDriverBrowsers());
+    private static Runnable loadBrowsers(final BrowsersCache cache) {
+        return new Runnable() {
+            public void run() {
+                cache.getAllBrowsers();
+            }
+        };
+    }
 
-                    JsonArray keyArray = sauceConfiguration.getAsJsonArray(SAUCE_WEB_DRIVER_CAPABILITIES);
-                    for (JsonElement element : keyArray) {
-                        SauceOnDemandCapabilities sauceOnDemandCapabilities = webDriverBrowsers.get(element.getAsString());
-                        if (sauceOnDemandCapabilities != null) {
-                            caps.add(sauceOnDemandCapabilities);
-                        }
+    private static String[] toArray(JsonArray keyArray) {
+        String[] result = new String[keyArray.size()];
+        for (int i = 0; i < keyArray.size(); i++) {
+            result[i] = keyArray.get(i).getAsString();
+        }
+        return result;
+    }
 
-                    }
-                }
-                if (sauceConfiguration.has(SAUCE_RC_CAPABILITIES)) {
-                    request.getCapabilities().clear();
-                    BrowsersCache seleniumBrowsers = new BrowsersCache(service.getSeleniumBrowsers());
-
-                    JsonArray keyArray = sauceConfiguration.getAsJsonArray(SAUCE_RC_CAPABILITIES);
-                    for (JsonElement element : keyArray) {
-                        SauceOnDemandCapabilities sauceOnDemandCapabilities = seleniumBrowsers.get(element.getAsString());
-                        if (sauceOnDemandCapabilities != null) {
-                            caps.add(sauceOnDemandCapabilities);
-                        }
-                    }
-                }
+    /**
+     * Replaces the capabilities in the registration request of a Sauce-backed proxy with a single pool of slots, sized
+     * to the concurrency limit of the Sauce accounts or {@link #SAUCE_POOL_SIZE}, whichever is larger.  Any slot in
+     * the pool can run any of the capabilities supported by the proxy (the selected Sauce browsers, or else the
+     * capabilities originally registered), so the number of slots doesn't grow with the number of supported browsers.
+     * Other proxies keep the capabilities (and number of instances) they registered.
+     *
+     * @param configuration
+     * @return
+     */
+    private static RegistrationRequest updateDesiredCapabilities(SauceOnDemandProxyConfiguration configuration) {
+        RegistrationRequest request = configuration.getRequest();
+        if (!configuration.isSauceBacked()) {
+            List<Map<String, Object>> supported = new ArrayList<Map<String, Object>>();
+            for (DesiredCapabilities capability : request.getCapabilities()) {
+                Map<String, Object> map = new HashMap<String, Object>(capability.asMap());
+                map.remove(RegistrationRequest.MAX_INSTANCES);
+                supported.add(map);
+            }
+            configuration.setSupportedCapabilities(supported);
+            return request;
+        }
+        configuration.awaitBrowsers();
 
-                int maxiumumSessions = service.getMaxiumumSessions(
-                        sauceConfiguration.get(SAUCE_USER_NAME).getAsString(),
-                        sauceConfiguration.get(SAUCE_ACCESS_KEY).getAsString());
-                if (maxiumumSessions == -1) {
-                    maxiumumSessions = 20;
+        List<Map<String, Object>> supported = new ArrayList<Map<String, Object>>();
+        boolean selected = false;
+        if (configuration.getWebDriverCapabilities() != null) {
+            selected = true;
+            for (String md5 : configuration.getWebDriverCapabilities()) {
+                SauceOnDemandCapabilities sauceOnDemandCapabilities = webDriverBrowsers.get(md5);
+                if (sauceOnDemandCapabilities != null) {
+                    supported.add(sauceOnDemandCapabilities.asMap());
                 }
-                if (caps.isEmpty()) {
-                    for (DesiredCapabilities capability : request.getCapabilities()) {
-                        capability.setCapability(RegistrationRequest.MAX_INSTANCES, maxiumumSessions);
-                    }
-                } else {
-                    for (SauceOnDemandCapabilities cap : caps) {
-                        DesiredCapabilities c = new DesiredCapabilities(cap.asMap());
-                        c.setCapability(RegistrationRequest.MAX_INSTANCES, maxiumumSessions);
-                        request.getCapabilities().add(c);
-                    }
+
+            }
+        }
+        if (configuration.getSeleniumCapabilities() != null) {
+            selected = true;
+            for (String md5 : configuration.getSeleniumCapabilities()) {
+                SauceOnDemandCapabilities sauceOnDemandCapabilities = seleniumBrowsers.get(md5);
+                if (sauceOnDemandCapabilities != null) {
+                    supported.add(sauceOnDemandCapabilities.asMap());
                 }
             }
-        } catch (SauceOnDemandRestAPIException e) {
-            logger.log(Level.SEVERE, "Error invoking Sauce REST API", e);
         }
+        int poolSize = 0;
+        if (!selected) {
+            for (DesiredCapabilities capability : request.getCapabilities()) {
+                Map<String, Object> map = new HashMap<String, Object>(capability.asMap());
+                Object instances = map.remove(RegistrationRequest.MAX_INSTANCES);
+                poolSize = Math.max(poolSize, instances == null ? 1 : Integer.parseInt(instances.toString()));
+                supported.add(map);
+            }
+        }
+        configuration.setSupportedCapabilities(supported);
+
+        //if the limit couldn't be retrieved, size the pool from the registered capabilities
+        Integer maximumSessions = configuration.getMaximumSessions();
+        if (maximumSessions != null) {
+            //leave headroom for the limits to be raised, the account monitors admit sessions within the limits
+            Object configuredPoolSize = request.getConfiguration().get(SAUCE_POOL_SIZE);
+            poolSize = Math.max(maximumSessions, configuredPoolSize == null ? DEFAULT_MAX_SESSIONS
+                    : Integer.parseInt(configuredPoolSize.toString()));
+        }
+        if (poolSize == 0) {
+            //browsers were selected, but the limit couldn't be retrieved (and wasn't in the snapshot)
+            poolSize = DEFAULT_MAX_SESSIONS;
+        }
+        request.getCapabilities().clear();
+        DesiredCapabilities pool = new DesiredCapabilities();
+        pool.setCapability(CapabilityType.BROWSER_NAME, "ANY");
+        pool.setCapability(CapabilityType.PLATFORM, "ANY");
+        pool.setCapability(RegistrationRequest.MAX_INSTANCES, poolSize);
+        request.getCapabilities().add(pool);
         return request;
     }
 
+    /**
+     * Returns the concurrency limit for the user from the snapshot, if available, and reconciles it with Sauce in the
+     * background.  Sauce is only called on the registering thread if the snapshot doesn't include the user.
+     *
+     * @param userName
+     * @param accessKey
+     * @return
+     * @throws SauceOnDemandRestAPIException
+     */
+    private static int getMaximumSessions(final String userName, final String accessKey) throws SauceOnDemandRestAPIException {
+        Integer stored = snapshot.getMaximumSessions(userName);
+        if (stored == null) {
+            int maximumSessions = service.getMaxiumumSessions(userName, accessKey);
+            snapshot.saveMaximumSessions(userName, maximumSessions);
+            return maximumSessions;
+        }
+        if (reconcilingLimits.add(userName)) {
+            reconciler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        snapshot.saveMaximumSessions(userName, service.getMaxiumumSessions(userName, accessKey));
+                    } catch (SauceOnDemandRestAPIException e) {
+                        logger.log(Level.WARNING, "Unable to refresh limits for " + userName + ", continuing to use snapshot", e);
+                    } finally {
+                        reconcilingLimits.remove(userName);
+                    }
+                }
+            });
+        }
+        return stored;
+    }
+
+    /**
+     * Applies the status polling settings (poll interval and maximum age in milliseconds, and the policy to apply
+     * when the status is stale) and ensures that the status monitor is running.
+     *
+     * @param req
+     */
+    private static void configureStatusMonitor(RegistrationRequest req) {
+        Object pollInterval = req.getConfiguration().get(SAUCE_STATUS_POLL_INTERVAL);
+        if (pollInterval != null) {
+            statusMonitor.setPollInterval(Long.parseLong(pollInterval.toString()));
+        }
+        Object maxAge = req.getConfiguration().get(SAUCE_STATUS_MAX_AGE);
+        if (maxAge != null) {
+            statusMonitor.setMaxAge(Long.parseLong(maxAge.toString()));
+        }
+        Object stalePolicy = req.getConfiguration().get(SAUCE_STATUS_STALE_POLICY);
+        if (stalePolicy != null) {
+            statusMonitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.valueOf(stalePolicy.toString()));
+        }
+        statusMonitor.start();
+    }
+
+    /**
+     * Applies the settings of the client which calls the Sauce REST API, which is shared by all proxies.  Settings
+     * which aren't specified keep their current values.
+     *
+     * @param req
+     */
+    static void configureRestClient(RegistrationRequest req) {
+        Object maxConnections = req.getConfiguration().get(SAUCE_REST_MAX_CONNECTIONS);
+        if (maxConnections != null) {
+            restClient.setMaxTotalConnections(Integer.parseInt(maxConnections.toString()));
+        }
+        Object maxConnectionsPerRoute = req.getConfiguration().get(SAUCE_REST_MAX_CONNECTIONS_PER_ROUTE);
+        if (maxConnectionsPerRoute != null) {
+            restClient.setMaxConnectionsPerRoute(Integer.parseInt(maxConnectionsPerRoute.toString()));
+        }
+        Object connectTimeout = req.getConfiguration().get(SAUCE_REST_CONNECT_TIMEOUT);
+        if (connectTimeout != null) {
+            restClient.setConnectTimeout(Integer.parseInt(connectTimeout.toString()));
+        }
+        Object socketTimeout = req.getConfiguration().get(SAUCE_REST_SOCKET_TIMEOUT);
+        if (socketTimeout != null) {
+            restClient.setSocketTimeout(Integer.parseInt(socketTimeout.toString()));
+        }
+        Object keepAlive = req.getConfiguration().get(SAUCE_REST_KEEP_ALIVE);
+        if (keepAlive != null) {
+            restClient.setKeepAlive(Long.parseLong(keepAlive.toString()));
+        }
+    }
+
+    /**
+     * @return the client which calls the Sauce REST API, shared by all proxies
+     */
+    static SauceOnDemandServiceImpl getRestClient() {
+        return restClient;
+    }
+
+    /**
+     * Applies the circuit breaker settings (number of consecutive failures before the circuit opens, and the interval
+     * in milliseconds before a probe call is allowed through an open circuit).
+     *
+     * @param req
+     */
+    private static void configureCircuitBreaker(RegistrationRequest req) {
+        Object failureThreshold = req.getConfiguration().get(SAUCE_CIRCUIT_FAILURE_THRESHOLD);
+        if (failureThreshold != null) {
+            circuitBreaker.setFailureThreshold(Integer.parseInt(failureThreshold.toString()));
+        }
+        Object probeInterval = req.getConfiguration().get(SAUCE_CIRCUIT_PROBE_INTERVAL);
+        if (probeInterval != null) {
+            circuitBreaker.setProbeInterval(Long.parseLong(probeInterval.toString()));
+        }
+    }
+
     public static JsonObject readConfigurationFromFile() {
 
         File file = new File(SAUCE_ONDEMAND_CONFIG_FILE);
@@ -246,12 +669,29 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
 
     @Override
     public boolean hasCapability(Map<String, Object> requestedCapability) {
-        logger.log(Level.INFO, "Checking capability: " + requestedCapability);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, CLASS_NAME, "hasCapability", "Checking capability: {0}", requestedCapability);
+        }
+        if (shouldProxySauceOnDemand && (!circuitBreaker.isCallPermitted() || !statusMonitor.isSauceAvailable())) {
+            //fail fast, so that the Registry can route the request to a local node or reject it
+            return false;
+        }
+        return supportsCapability(requestedCapability);
+    }
+
+    /**
+     * @param requestedCapability
+     * @return whether the proxy can handle the requested capability, regardless of the availability of Sauce
+     */
+    private boolean supportsCapability(Map<String, Object> requestedCapability) {
         if (shouldHandleUnspecifiedCapabilities/* && browser combination is supported by sauce labs*/) {
-            logger.log(Level.INFO, "Handling capability: " + requestedCapability);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.logp(Level.FINE, CLASS_NAME, "supportsCapability", "Handling capability: {0}",
+                        requestedCapability);
+            }
             return true;
         }
-        return super.hasCapability(requestedCapability);
+        return getCapabilityHelper().hasMatch(requestedCapability);
     }
 
     /**
@@ -264,27 +704,89 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
         //if no proxy can handle requested capability, and shouldHandleUnspecifiedCapabilities is set to true
         //(and the browser capabillitiy is supported by Sauce), create new desired capability that runs
         //against sauce
-        try {
-            this.sauceAvailable = service.isSauceLabUp();
+        boolean probe = false;
+        if (shouldProxySauceOnDemand) {
+            //only a single session is started to probe an open circuit
+            probe = circuitBreaker.getState() != SauceOnDemandCircuitBreaker.State.CLOSED;
+            if (!circuitBreaker.allowRequest()) {
+                return null;
+            }
+            //the status is polled in the background, so that the Registry isn't blocked by a call to Sauce
+            this.sauceAvailable = statusMonitor.isSauceAvailable();
             if (!sauceAvailable) {
+                if (probe) {
+                    circuitBreaker.releaseProbe();
+                }
                 throw new RuntimeException("Sauce OnDemand is not available");
             }
-        } catch (SauceOnDemandRestAPIException e) {
-            logger.log(Level.SEVERE, "Error invoking Sauce REST API", e);
         }
 
-        if ((shouldProxySauceOnDemand && sauceAvailable) || !shouldProxySauceOnDemand) {
-            logger.log(Level.INFO, "Creating new session for: " + requestedCapability);
-            TestSession session = super.getNewSession(requestedCapability);
-            logger.log(Level.INFO, "New session created for: " + requestedCapability);
-            return session;
-        } else {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, CLASS_NAME, "getNewSession", "Creating new session for: {0}",
+                    requestedCapability);
+        }
+        TestSession session = createSession(requestedCapability);
+        if (session == null) {
+            if (probe) {
+                circuitBreaker.releaseProbe();
+            }
             return null;
         }
+        if (probe) {
+            session.put(CIRCUIT_PROBE, Boolean.TRUE);
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, CLASS_NAME, "getNewSession", "New session created for: {0}",
+                    requestedCapability);
+        }
+        return session;
+    }
+
+    /**
+     * Equivalent to {@link org.openqa.grid.internal.BaseRemoteProxy#getNewSession(Map)}, except that the request is
+     * only offered to the slots whose capabilities match, which are found by the capability matcher.
+     *
+     * @param requestedCapability
+     * @return
+     */
+    private TestSession createSession(Map<String, Object> requestedCapability) {
+        //DefaultRemoteProxy#getNewSession isn't called, so check whether the node is down here
+        if (isDown()) {
+            return null;
+        }
+        if (!supportsCapability(requestedCapability)) {
+            return null;
+        }
+        SauceOnDemandMetrics.requestQueued(requestedCapability);
+        //the slots of a pool are sized with headroom above the account limits, which are checked below
+        int maxSessions = pooled ? getTestSlots().size() : super.getMaxNumberOfConcurrentTestSessions();
+        if (getTotalUsed() >= maxSessions) {
+            return null;
+        }
+        //leave the request in the Registry's queue until an account has capacity, rather than have Sauce reject it
+        SauceOnDemandAccountMonitor account = null;
+        if (shouldProxySauceOnDemand && !accounts.isEmpty()) {
+            account = accounts.acquire();
+            if (account == null) {
+                return null;
+            }
+        }
+        for (TestSlot slot : getCapabilityHelper().getMatchingSlots(requestedCapability)) {
+            TestSession session = slot.getNewSession(requestedCapability);
+            if (session != null) {
+                session.put(SAUCE_ACCOUNT, account);
+                SauceOnDemandMetrics.requestAssigned(requestedCapability);
+                return session;
+            }
+        }
+        if (account != null) {
+            accounts.release(account);
+        }
+        return null;
     }
 
     @Override
-    public CapabilityMatcher getCapabilityHelper() {
+    public SauceOnDemandCapabilityMatcher getCapabilityHelper() {
         if (capabilityHelper == null) {
             capabilityHelper = new SauceOnDemandCapabilityMatcher(this);
         }
@@ -333,9 +835,17 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
     }
 
     public void writeConfigurationToFile() {
-        JSONObject jsonObject = new JSONObject();
+        writeConfigurationToFile(new File(SAUCE_ONDEMAND_CONFIG_FILE));
+    }
 
+    /**
+     * Writes the settings which can be changed on the admin page to the file, keeping the other settings in the file.
+     *
+     * @param file configuration file to update
+     */
+    void writeConfigurationToFile(File file) {
         try {
+            JSONObject jsonObject = file.exists() ? readJSON(file) : new JSONObject();
             jsonObject.put(SAUCE_USER_NAME, getUserName());
             jsonObject.put(SAUCE_ACCESS_KEY, getAccessKey());
             jsonObject.put(SAUCE_HANDLE_UNSPECIFIED_CAPABILITIES, shouldHandleUnspecifiedCapabilities());
@@ -343,10 +853,10 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
             jsonObject.put(SELENIUM_HOST, getSeleniumHost());
             jsonObject.put(SELENIUM_PORT, getSeleniumPort());
             //TODO handle selected browsers
-            FileWriter file = new FileWriter(SAUCE_ONDEMAND_CONFIG_FILE);
-            file.write(jsonObject.toString());
-            file.flush();
-            file.close();
+            FileWriter writer = new FileWriter(file);
+            writer.write(jsonObject.toString());
+            writer.flush();
+            writer.close();
 
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Error parsing JSON", e);
@@ -355,12 +865,40 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
         }
     }
 
+    private static JSONObject readJSON(File file) throws IOException, JSONException {
+        FileReader reader = new FileReader(file);
+        try {
+            return new JSONObject(new JSONTokener(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
     public boolean shouldHandleUnspecifiedCapabilities() {
         return shouldHandleUnspecifiedCapabilities;
     }
 
     public void setShouldHandleUnspecifiedCapabilities(boolean shouldHandleUnspecifiedCapabilities) {
         this.shouldHandleUnspecifiedCapabilities = shouldHandleUnspecifiedCapabilities;
+        capabilitiesVersion.incrementAndGet();
+    }
+
+    /**
+     * @return the capabilities which can be run by the proxy's slots (by any of them, if the slots are pooled)
+     */
+    public List<Map<String, Object>> getSupportedCapabilities() {
+        return supportedCapabilities;
+    }
+
+    /**
+     * @return whether any of the proxy's slots can run any of its supported capabilities
+     */
+    boolean isPooled() {
+        return pooled;
+    }
+
+    int getCapabilitiesVersion() {
+        return capabilitiesVersion.get();
     }
 
     /**
@@ -370,9 +908,29 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
      * @return
      */
     public URL getRemoteHost() {
+        SauceOnDemandEndpoint endpoint = currentEndpoint.get();
+        if (endpoint != null) {
+            return endpoint.getUrl();
+        }
+        if (router != null) {
+            return router.select().getUrl();
+        }
+        return getConfiguredHost();
+    }
+
+    /**
+     * @return the url of seleniumHost:seleniumPort
+     */
+    private URL getConfiguredHost() {
+        URL host = configuredHost;
+        if (host != null) {
+            return host;
+        }
         if (seleniumHost != null && seleniumPort != null) {
             try {
-                return new URL(MessageFormat.format(URL_FORMAT, seleniumHost, seleniumPort));
+                host = new URL(MessageFormat.format(URL_FORMAT, seleniumHost, seleniumPort));
+                configuredHost = host;
+                return host;
             } catch (MalformedURLException e) {
                 e.printStackTrace();
                 return SAUCE_ONDEMAND_URL;
@@ -393,31 +951,82 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
     @Override
     public void afterCommand(TestSession session, HttpServletRequest request, HttpServletResponse response) {
         super.afterCommand(session, request, response);
-        logger.log(Level.INFO, "Finished executing " + request.toString());
+        boolean newSession = session.get(NEW_SESSION_STARTED) != null;
+        long elapsed = SauceOnDemandMetrics.commandFinished(newSession);
+        SauceOnDemandEndpoint endpoint = (SauceOnDemandEndpoint) session.get(SAUCE_ENDPOINT);
+        if (newSession) {
+            session.put(NEW_SESSION_STARTED, null);
+            if (endpoint != null) {
+                endpoint.recordSession(elapsed / 1000000d);
+            }
+            if (shouldProxySauceOnDemand) {
+                //only the outcome of starting a session is counted, so that the commands of a healthy session
+                //don't close the circuit
+                int status = SauceOnDemandMetrics.getResponseStatus();
+                if (status == 0 || status >= 500) {
+                    circuitBreaker.recordFailure();
+                } else {
+                    circuitBreaker.recordSuccess();
+                }
+                session.put(CIRCUIT_PROBE, null);
+            }
+        }
+        currentEndpoint.remove();
+        SauceHttpClientFactory.stopStreaming();
+        String commandType = (String) session.get(COMMAND_IN_PROGRESS);
+        if (commandType != null) {
+            int status = SauceOnDemandMetrics.getResponseStatus();
+            SauceOnDemandMetrics.COMMANDS.record(getCommandStats(session), commandType, elapsed,
+                    Math.max(0, request.getContentLength()), SauceOnDemandMetrics.getResponseBytes(), status >= 400);
+        }
+        session.put(COMMAND_IN_PROGRESS, null);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, CLASS_NAME, "afterCommand", "Finished executing {0}", commandType);
+        }
     }
 
     @Override
     public void beforeCommand(TestSession session, HttpServletRequest request, HttpServletResponse response) {
-
-        logger.log(Level.INFO, "About to execute " + request.toString());
+        String commandType = SauceOnDemandCommandStats.getCommandType(request);
+        //the request body isn't logged, as it contains the Sauce credentials once they have been added
+        if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, CLASS_NAME, "beforeCommand", "About to execute {0}", commandType);
+        }
+        session.put(COMMAND_IN_PROGRESS, commandType);
+        //route the session's first command, and keep the rest of its commands on the same endpoint
+        SauceOnDemandEndpoint endpoint = (SauceOnDemandEndpoint) session.get(SAUCE_ENDPOINT);
+        if (endpoint == null) {
+            endpoint = router.acquire();
+            session.put(SAUCE_ENDPOINT, endpoint);
+        }
+        currentEndpoint.set(endpoint);
+        SauceOnDemandMetrics.commandStarted();
+        //stream response bodies (eg. screenshots) to the client, except for new session responses which the Grid reads
+        if (request instanceof SeleniumBasedRequest
+                && ((SeleniumBasedRequest) request).getRequestType() != RequestType.START_SESSION) {
+            SauceHttpClientFactory.streamResponseTo(response);
+        } else {
+            SauceHttpClientFactory.stopStreaming();
+        }
         if (request instanceof WebDriverRequest && request.getMethod().equals("POST")) {
             WebDriverRequest seleniumRequest = (WebDriverRequest) request;
             if (seleniumRequest.getRequestType().equals(RequestType.START_SESSION)) {
-                String body = seleniumRequest.getBody();
-                //convert from String to JSON
+                session.put(NEW_SESSION_STARTED, Boolean.TRUE);
+                SauceOnDemandAccountMonitor account = (SauceOnDemandAccountMonitor) session.get(SAUCE_ACCOUNT);
+                String user = account == null ? this.userName : account.getUserName();
+                //add username/accessKey
                 try {
-                    JSONObject json = new JSONObject(body);
-                    //add username/accessKey
-                    JSONObject desiredCapabilities = json.getJSONObject("desiredCapabilities");
-                    if (desiredCapabilities.has("sauce:platform")) {
-                        desiredCapabilities.put("platform", desiredCapabilities.getString("sauce:platform"));
+                    byte[] body = SauceOnDemandNewSessionRewriter.rewrite(seleniumRequest, user,
+                            account == null ? this.accessKey : account.getAccessKey());
+                    if (body != null) {
+                        seleniumRequest.setBody(body);
+                        if (logger.isLoggable(Level.FINE)) {
+                            logger.logp(Level.FINE, CLASS_NAME, "beforeCommand",
+                                    "Added credentials for {0} to capabilities : {1}",
+                                    new Object[]{user, session.getRequestedCapabilities()});
+                        }
                     }
-                    desiredCapabilities.put("username", this.userName);
-                    desiredCapabilities.put("accessKey", this.accessKey);
-                    //convert from JSON to String
-                    seleniumRequest.setBody(json.toString());
-                    logger.log(Level.INFO, "Updating desired capabilities : " + desiredCapabilities);
-                } catch (JSONException e) {
+                } catch (IOException e) {
                     logger.log(Level.SEVERE, "Error parsing JSON", e);
                 }
             }
@@ -426,20 +1035,182 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
         super.beforeCommand(session, request, response);
     }
 
+    /**
+     * If the session is being terminated while a command was being forwarded, then the forwarding to Sauce failed,
+     * so record the failure against the command stats, and against the circuit breaker if the session was being
+     * started.
+     *
+     * @param session
+     */
+    @Override
+    public void afterSession(TestSession session) {
+        Object commandType = session.get(COMMAND_IN_PROGRESS);
+        if (commandType != null) {
+            if (shouldProxySauceOnDemand && session.get(NEW_SESSION_STARTED) != null) {
+                session.put(CIRCUIT_PROBE, null);
+                circuitBreaker.recordFailure();
+            }
+            SauceOnDemandMetrics.COMMANDS.recordFailure(getCommandStats(session), (String) commandType);
+        }
+        if (session.get(CIRCUIT_PROBE) != null) {
+            //the session ended before it was started on Sauce, so let another session probe
+            session.put(CIRCUIT_PROBE, null);
+            circuitBreaker.releaseProbe();
+        }
+        session.put(COMMAND_STATS, null);
+        Object endpoint = session.get(SAUCE_ENDPOINT);
+        if (endpoint != null) {
+            session.put(SAUCE_ENDPOINT, null);
+            ((SauceOnDemandEndpoint) endpoint).sessionFinished();
+        }
+        Object account = session.get(SAUCE_ACCOUNT);
+        if (account != null) {
+            session.put(SAUCE_ACCOUNT, null);
+            accounts.release((SauceOnDemandAccountMonitor) account);
+        }
+        Object capability = session.get(USAGE_CAPABILITY);
+        if (capability != null) {
+            session.put(USAGE_CAPABILITY, null);
+            usage.sessionFinished((String) capability);
+        }
+        super.afterSession(session);
+    }
+
+    /**
+     * @param session
+     * @return the command stats of the session, labelled with its Sauce job id once it is known
+     */
+    private static SauceOnDemandCommandStats.Stats getCommandStats(TestSession session) {
+        SauceOnDemandCommandStats.Stats stats = (SauceOnDemandCommandStats.Stats) session.get(COMMAND_STATS);
+        if (stats == null) {
+            stats = SauceOnDemandMetrics.COMMANDS.getSessionStats(session.getInternalKey());
+            session.put(COMMAND_STATS, stats);
+        }
+        if (stats.getJobId() == null && session.getExternalKey() != null) {
+            stats.setJobId(session.getExternalKey().getKey());
+        }
+        return stats;
+    }
+
+    /**
+     * Counts the session against the supported capability it was matched to.
+     *
+     * @param session
+     */
+    @Override
+    public void beforeSession(TestSession session) {
+        super.beforeSession(session);
+        Map<String, Object> capability = getCapabilityHelper().getSupportedCapability(session.getRequestedCapabilities());
+        String name = capability == null ? UNSPECIFIED_CAPABILITY : getCapabilityName(capability);
+        session.put(USAGE_CAPABILITY, name);
+        usage.sessionStarted(name);
+    }
+
+    /**
+     * @param capability
+     * @return the name of the Sauce browser for the capability, or else its browser name, version and platform
+     */
+    static String getCapabilityName(Map<String, Object> capability) {
+        Object name = capability.get(SauceOnDemandCapabilities.NAME);
+        if (name != null) {
+            return name.toString();
+        }
+        return capability.get(CapabilityType.BROWSER_NAME) + " " + capability.get(CapabilityType.VERSION)
+                + " " + capability.get(CapabilityType.PLATFORM);
+    }
+
+    /**
+     * @return the counts of the sessions running on the proxy
+     */
+    public SauceOnDemandUsage getUsage() {
+        return usage;
+    }
+
+    public static SauceOnDemandService getService() {
+        return service;
+    }
+
+    /**
+     * @return the cache of WebDriver browsers supported by Sauce, shared by all proxies and servlets
+     */
+    public static BrowsersCache getWebDriverBrowsers() {
+        return webDriverBrowsers;
+    }
+
+    /**
+     * @return the cache of Selenium RC browsers supported by Sauce, shared by all proxies and servlets
+     */
+    public static BrowsersCache getSeleniumBrowsers() {
+        return seleniumBrowsers;
+    }
+
+    public static SauceOnDemandSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public static SauceOnDemandCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the monitor which polls the Sauce status, shared by all proxies
+     */
+    public static SauceOnDemandStatusMonitor getStatusMonitor() {
+        return statusMonitor;
+    }
+
+    /**
+     * Converts a concurrency limit retrieved from Sauce into a number of sessions.
+     *
+     * @param maximumSessions the concurrency limit, -1 if unlimited
+     * @return
+     */
+    static int toSessions(int maximumSessions) {
+        return maximumSessions == SauceOnDemandAccountMonitor.UNLIMITED ? DEFAULT_MAX_SESSIONS : maximumSessions;
+    }
+
+    /**
+     * @return the Sauce accounts which sessions are run against
+     */
+    public SauceOnDemandAccountPool getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return the router which selects the endpoint new sessions are forwarded to
+     */
+    public SauceOnDemandEndpointRouter getRouter() {
+        return router;
+    }
+
+    @Override
+    public void teardown() {
+        accounts.stop();
+        router.stop();
+        super.teardown();
+    }
+
     @Override
     public int getMaxNumberOfConcurrentTestSessions() {
         int result;
-        if (shouldProxySauceOnDemand()) {
+        if (shouldProxySauceOnDemand() && !accounts.isEmpty()) {
+            //the limits are refreshed periodically, and can rise up to the number of slots in the pool
+            result = Math.min(accounts.getSessions(), getTestSlots().size());
+        } else if (shouldProxySauceOnDemand()) {
             result = maxSauceSessions;
         } else {
             result = super.getMaxNumberOfConcurrentTestSessions();
         }
-        logger.log(Level.INFO, "Maximum concurrent sessions: " + result);
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.logp(Level.FINEST, CLASS_NAME, "getMaxNumberOfConcurrentTestSessions",
+                    "Maximum concurrent sessions: {0}", result);
+        }
         return result;
     }
 
     public void setWebDriverCapabilities(String[] webDriverCapabilities) {
         this.webDriverCapabilities = webDriverCapabilities;
+        capabilitiesVersion.incrementAndGet();
     }
 
     public String[] getWebDriverCapabilities() {
@@ -448,6 +1219,7 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
 
     public void setSeleniumCapabilities(String[] seleniumCapabilities) {
         this.seleniumCapabilities = seleniumCapabilities;
+        capabilitiesVersion.incrementAndGet();
     }
 
     public boolean isWebDriverBrowserSelected(SauceOnDemandCapabilities cap) {
@@ -461,20 +1233,6 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
         return false;
     }
 
-    @Override
-    public int getTotalUsed() {
-        int totalUsed = super.getTotalUsed();
-        logger.log(Level.INFO, "Total Slots Used: " + totalUsed);
-        return totalUsed;
-    }
-
-    @Override
-    public boolean isBusy() {
-        boolean result = super.isBusy();
-        logger.log(Level.INFO, "Proxy isBusy: " + result);
-        return result;
-    }
-
     public String getSeleniumHost() {
         return seleniumHost;
     }
@@ -485,9 +1243,11 @@ public class SauceOnDemandRemoteProxy extends DefaultRemoteProxy {
 
     public void setSeleniumHost(String seleniumHost) {
         this.seleniumHost = seleniumHost;
+        this.configuredHost = null;
     }
 
     public void setSeleniumPort(String seleniumPort) {
         this.seleniumPort = seleniumPort;
+        this.configuredHost = null;
     }
 }
@@ -1,12 +1,10 @@
 package com.saucelabs.grid;
 
 import org.openqa.grid.internal.RemoteProxy;
-import org.openqa.grid.internal.TestSlot;
 import org.openqa.grid.web.servlet.beta.WebProxyHtmlRendererBeta;
 import org.openqa.grid.web.utils.BrowserNameUtils;
 import org.openqa.selenium.remote.DesiredCapabilities;
 
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -62,36 +60,20 @@ public class SauceOnDemandRenderer extends WebProxyHtmlRendererBeta {
             builder.append("Unspecified capabililities will be forwarded to Sauce OnDemand");
         } else {
 
-            int max = sauceProxy.getMaxNumberOfConcurrentTestSessions();
-            if (max > 0) {
-                builder.append("<ul>");
-                List<TestSlot> slots = sauceProxy.getTestSlots();
-                for (int i = 0; i < slots.size(); i += max) {
-                    TestSlot slot = slots.get(i);
-                    Object capability = slot.getCapabilities().get(SauceOnDemandCapabilities.NAME);
-                    if (capability != null) {
-                        builder.append("<li>" + capability);
-
-                        int used = 0;
-                        for (int j = 0; j < i + max; j++) {
-                            if (j >= slots.size()) {
-                                break;
-                            }
-                            TestSlot slo = slots.get(j);
-                            if (slo.getSession() != null) {
-                                used++;
-                            }
-                        }
-                        if (used != 0) {
-                            builder.append("(running : " + used + ")");
-                        }
-
-                        builder.append("</li>");
-                    }
-
+            SauceOnDemandUsage usage = sauceProxy.getUsage();
+            builder.append("Sessions in use : ").append(usage.getTotal()).append(" of ")
+                    .append(sauceProxy.getTestSlots().size());
+            builder.append("<ul>");
+            for (Map<String, Object> capability : sauceProxy.getSupportedCapabilities()) {
+                String name = SauceOnDemandRemoteProxy.getCapabilityName(capability);
+                builder.append("<li>").append(name);
+                int used = usage.get(name);
+                if (used != 0) {
+                    builder.append("(running : " + used + ")");
                 }
-                builder.append("</ul>");
+                builder.append("</li>");
             }
+            builder.append("</ul>");
         }
 
         builder.append("<br/><a href='/grid/admin/SauceOnDemandAdminServlet/admin?id=" + sauceProxy.getId()
@@ -0,0 +1,175 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.BrowsersResponse;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists the last browser catalogs and account limits which were successfully retrieved from Sauce, so that the
+ * hub can start (and the proxy register) without waiting for the Sauce REST API.  Values read from the snapshot should
+ * be treated as stale, and reconciled with Sauce in the background.
+ * <p/>
+ * The snapshot is written to a temporary file which is then renamed, so that a hub which is killed mid-write
+ * doesn't leave a truncated snapshot behind.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandSnapshot {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandSnapshot.class.getName());
+
+    public static final String SAUCE_ONDEMAND_SNAPSHOT_FILE = "sauce-ondemand-snapshot.json";
+
+    private static final String WEB_DRIVER = "webDriver";
+    private static final String SELENIUM_RC = "seleniumRC";
+    private static final String LIMITS = "limits";
+    private static final String BROWSERS = "browsers";
+    private static final String ETAG = "eTag";
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private final File file;
+    private final Map<BrowsersCache.Catalog, BrowsersResponse> catalogs =
+            new EnumMap<BrowsersCache.Catalog, BrowsersResponse>(BrowsersCache.Catalog.class);
+    private final Map<String, Integer> limits = new HashMap<String, Integer>();
+    private boolean loaded;
+
+    /**
+     * Creates a snapshot which is stored alongside sauce-ondemand.json.
+     */
+    public SauceOnDemandSnapshot() {
+        this(new File(SAUCE_ONDEMAND_SNAPSHOT_FILE));
+    }
+
+    public SauceOnDemandSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the browsers (and the validators needed to issue a conditional request) last retrieved for the catalog,
+     *         or null if the catalog hasn't been stored
+     */
+    public synchronized BrowsersResponse getBrowsers(BrowsersCache.Catalog catalog) {
+        load();
+        return catalogs.get(catalog);
+    }
+
+    /**
+     * @return the concurrency limit last retrieved for the user, or null if the limit hasn't been stored
+     */
+    public synchronized Integer getMaximumSessions(String userName) {
+        load();
+        return limits.get(userName);
+    }
+
+    public synchronized void saveBrowsers(BrowsersCache.Catalog catalog, BrowsersResponse browsers) {
+        load();
+        catalogs.put(catalog, browsers);
+        save();
+    }
+
+    public synchronized void saveMaximumSessions(String userName, int maximumSessions) {
+        load();
+        Integer previous = limits.put(userName, maximumSessions);
+        if (previous == null || previous != maximumSessions) {
+            save();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+            readCatalog(json, WEB_DRIVER, BrowsersCache.Catalog.WEB_DRIVER);
+            readCatalog(json, SELENIUM_RC, BrowsersCache.Catalog.SELENIUM_RC);
+            if (json.has(LIMITS)) {
+                JSONObject limitsJson = json.getJSONObject(LIMITS);
+                //getNames returns null if there are no limits
+                String[] userNames = JSONObject.getNames(limitsJson);
+                if (userNames != null) {
+                    for (String userName : userNames) {
+                        limits.put(userName, limitsJson.getInt(userName));
+                    }
+                }
+            }
+            logger.log(Level.INFO, "Loaded Sauce OnDemand snapshot from " + file.getAbsolutePath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to read " + file.getAbsolutePath() + ", ignoring snapshot", e);
+        } catch (JSONException e) {
+            logger.log(Level.WARNING, "Unable to parse " + file.getAbsolutePath() + ", ignoring snapshot", e);
+        }
+    }
+
+    private void readCatalog(JSONObject json, String key, BrowsersCache.Catalog catalog) throws JSONException {
+        if (!json.has(key)) {
+            return;
+        }
+        JSONObject catalogJson = json.getJSONObject(key);
+        JSONArray browsersJson = catalogJson.getJSONArray(BROWSERS);
+        List<SauceOnDemandCapabilities> browsers = new ArrayList<SauceOnDemandCapabilities>(browsersJson.length());
+        for (int i = 0; i < browsersJson.length(); i++) {
+            browsers.add(new SauceOnDemandCapabilities(browsersJson.getJSONObject(i).toString()));
+        }
+        catalogs.put(catalog, new BrowsersResponse(browsers, catalogJson.optString(ETAG, null),
+                catalogJson.optString(LAST_MODIFIED, null)));
+    }
+
+    private void save() {
+        try {
+            JSONObject json = new JSONObject();
+            writeCatalog(json, WEB_DRIVER, catalogs.get(BrowsersCache.Catalog.WEB_DRIVER));
+            writeCatalog(json, SELENIUM_RC, catalogs.get(BrowsersCache.Catalog.SELENIUM_RC));
+            json.put(LIMITS, new JSONObject(limits));
+
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            FileUtils.writeStringToFile(temp, json.toString(), "UTF-8");
+            if (!temp.renameTo(file)) {
+                //Windows won't rename over an existing file
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + temp + " to " + file);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write snapshot to " + file.getAbsolutePath(), e);
+        } catch (JSONException e) {
+            logger.log(Level.WARNING, "Unable to write snapshot to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private void writeCatalog(JSONObject json, String key, BrowsersResponse catalog) throws JSONException {
+        if (catalog == null) {
+            return;
+        }
+        JSONArray browsersJson = new JSONArray();
+        for (SauceOnDemandCapabilities browser : catalog.getBrowsers()) {
+            browsersJson.put(new JSONObject(browser.toJSON()));
+        }
+        JSONObject catalogJson = new JSONObject();
+        catalogJson.put(BROWSERS, browsersJson);
+        catalogJson.put(ETAG, catalog.getETag());
+        catalogJson.put(LAST_MODIFIED, catalog.getLastModified());
+        json.put(key, catalogJson);
+    }
+}
@@ -0,0 +1,124 @@
+package com.saucelabs.grid;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads used by the plugin's background tasks (REST polling, probes and the admin servlet's tasks).
+ * <p/>
+ * If the sauce.virtualThreads system property is true and the JVM supports virtual threads (Java 21 or later), the
+ * tasks are run on virtual threads, which are looked up reflectively so that the plugin still builds and runs on
+ * Java 6.  Otherwise they're run on named daemon platform threads.
+ *
+ * @author Ross Rowe
+ */
+public final class SauceOnDemandThreads {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandThreads.class.getName());
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "sauce.virtualThreads";
+
+    /**
+     * Thread.ofVirtual(), or null if virtual threads aren't supported.
+     */
+    private static final Method OF_VIRTUAL = getMethod(Thread.class, "ofVirtual");
+
+    private static final boolean VIRTUAL = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && OF_VIRTUAL != null;
+
+    static {
+        if (Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) && OF_VIRTUAL == null) {
+            logger.log(Level.WARNING, "{0} is set, but virtual threads aren''t supported by Java {1}",
+                    new Object[]{VIRTUAL_THREADS_PROPERTY, System.getProperty("java.version")});
+        }
+    }
+
+    private SauceOnDemandThreads() {
+    }
+
+    /**
+     * @return whether background tasks are run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * @return whether the JVM supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param nameFormat thread name, with %d replaced by the thread's number
+     * @return factory for the threads of a background task
+     */
+    public static ThreadFactory newThreadFactory(String nameFormat) {
+        return newThreadFactory(nameFormat, VIRTUAL);
+    }
+
+    static ThreadFactory newThreadFactory(String nameFormat, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = getMethod(builder.getClass(), "name", String.class, long.class)
+                        .invoke(builder, nameFormat.replace("%d", ""), 0L);
+                return (ThreadFactory) getMethod(builder.getClass(), "factory").invoke(builder);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Unable to create virtual threads, using platform threads", e);
+            }
+        }
+        return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+    }
+
+    /**
+     * @param nameFormat thread name, with %d replaced by the thread's number
+     * @return executor for concurrent blocking tasks, which runs each task on a virtual thread, or on a cached pool of
+     *         platform threads
+     */
+    public static ExecutorService newTaskExecutor(String nameFormat) {
+        return newTaskExecutor(nameFormat, VIRTUAL);
+    }
+
+    static ExecutorService newTaskExecutor(String nameFormat, boolean virtual) {
+        ThreadFactory threadFactory = newThreadFactory(nameFormat, virtual);
+        if (virtual) {
+            Method newThreadPerTaskExecutor = getMethod(Executors.class, "newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+            if (newThreadPerTaskExecutor != null) {
+                try {
+                    return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Unable to create virtual thread executor, using a cached pool", e);
+                }
+            }
+        }
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * @return the public method, looked up on the public interface or class declaring it (as the implementations of
+     *         Thread.Builder aren't public), or null if it doesn't exist
+     */
+    private static Method getMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getMethod(name, parameterTypes);
+            for (Class<?> declaring : type.getInterfaces()) {
+                try {
+                    return declaring.getMethod(name, parameterTypes);
+                } catch (NoSuchMethodException e) {
+                    //not declared by this interface
+                }
+            }
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
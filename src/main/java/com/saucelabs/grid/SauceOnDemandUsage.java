@@ -0,0 +1,101 @@
+package com.saucelabs.grid;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the sessions running on a Sauce proxy, in total and for each of the proxy's supported capabilities.  The
+ * counters are updated as sessions start and stop, so that they can be read without walking the proxy's slots.
+ * <p/>
+ * Each capability has its own counter, so sessions for different capabilities don't contend with each other, and
+ * no locks are taken.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandUsage {
+
+    private final ConcurrentMap<String, AtomicInteger> capabilities = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger total = new AtomicInteger();
+
+    /**
+     * Records that a session has started for the capability.
+     *
+     * @param capability
+     */
+    public void sessionStarted(String capability) {
+        counter(capability).incrementAndGet();
+        total.incrementAndGet();
+    }
+
+    /**
+     * Records that a session for the capability has finished.
+     *
+     * @param capability
+     */
+    public void sessionFinished(String capability) {
+        counter(capability).decrementAndGet();
+        total.decrementAndGet();
+    }
+
+    private AtomicInteger counter(String capability) {
+        AtomicInteger counter = capabilities.get(capability);
+        if (counter == null) {
+            AtomicInteger created = new AtomicInteger();
+            counter = capabilities.putIfAbsent(capability, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the number of sessions running on the proxy
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @param capability
+     * @return the number of sessions running for the capability
+     */
+    public int get(String capability) {
+        AtomicInteger counter = capabilities.get(capability);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return the number of sessions running for each capability which has been used, ordered by capability
+     */
+    public Map<String, Integer> getCapabilities() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : capabilities.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * @param maximum the number of sessions which can be run by the proxy
+     * @return JSON representation of the usage
+     * @throws JSONException
+     */
+    public JSONObject toJSON(int maximum) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("total", getTotal());
+        json.put("maximum", maximum);
+        JSONObject capabilities = new JSONObject();
+        for (Map.Entry<String, Integer> entry : getCapabilities().entrySet()) {
+            capabilities.put(entry.getKey(), entry.getValue());
+        }
+        json.put("capabilities", capabilities);
+        return json;
+    }
+}
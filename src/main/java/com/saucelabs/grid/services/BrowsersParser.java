@@ -0,0 +1,84 @@
+package com.saucelabs.grid.services;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.saucelabs.grid.SauceOnDemandCapabilities;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses a browser catalog returned by the Sauce REST API in a single pass over the response, building each
+ * {@link SauceOnDemandCapabilities} from the fields of its JSON object as they're read, rather than buffering the
+ * catalog (or the entry) first.
+ *
+ * @author Ross Rowe
+ */
+public final class BrowsersParser {
+
+    private BrowsersParser() {
+    }
+
+    public static List<SauceOnDemandCapabilities> parse(Reader reader) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        List<SauceOnDemandCapabilities> browsers = new ArrayList<SauceOnDemandCapabilities>();
+        json.beginArray();
+        while (json.hasNext()) {
+            browsers.add(readBrowser(json));
+        }
+        json.endArray();
+        return browsers;
+    }
+
+    /**
+     * Reads the fields of a browser used by the plugin, the other fields (including nested values) are skipped.
+     */
+    private static SauceOnDemandCapabilities readBrowser(JsonReader json) throws IOException {
+        String name = null;
+        String shortVersion = null;
+        String longName = null;
+        String longVersion = null;
+        String preferredVersion = null;
+        String os = null;
+        String apiName = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (field.equals(SauceOnDemandCapabilities.NAME)) {
+                name = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.SHORT_VERSION)) {
+                shortVersion = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.LONG_NAME)) {
+                longName = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.LONG_VERSION)) {
+                longVersion = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.PREFERRED_VERSION)) {
+                preferredVersion = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.OS)) {
+                os = readString(json);
+            } else if (field.equals(SauceOnDemandCapabilities.API_NAME)) {
+                apiName = readString(json);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return new SauceOnDemandCapabilities(name, shortVersion, longName, longVersion, preferredVersion, os, apiName);
+    }
+
+    /**
+     * @return the scalar value as a String, or null (skipping the value) if it's null or nested
+     */
+    private static String readString(JsonReader json) throws IOException {
+        JsonToken token = json.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return json.nextString();
+        } else if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(json.nextBoolean());
+        }
+        json.skipValue();
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package com.saucelabs.grid.services;
+
+import com.saucelabs.grid.SauceOnDemandCapabilities;
+
+import java.util.List;
+
+/**
+ * Result of a conditional request for a browser catalog.  If the catalog hasn't changed since the supplied
+ * validators were issued, {@link #isNotModified()} returns true and no browsers are included.
+ *
+ * @author Ross Rowe
+ */
+public class BrowsersResponse {
+
+    private final List<SauceOnDemandCapabilities> browsers;
+    private final String eTag;
+    private final String lastModified;
+    private final boolean notModified;
+
+    public BrowsersResponse(List<SauceOnDemandCapabilities> browsers, String eTag, String lastModified) {
+        this(browsers, eTag, lastModified, false);
+    }
+
+    private BrowsersResponse(List<SauceOnDemandCapabilities> browsers, String eTag, String lastModified, boolean notModified) {
+        this.browsers = browsers;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.notModified = notModified;
+    }
+
+    public static BrowsersResponse notModified(String eTag, String lastModified) {
+        return new BrowsersResponse(null, eTag, lastModified, true);
+    }
+
+    /**
+     * @return the browsers in the catalog, or null if the catalog was not modified
+     */
+    public List<SauceOnDemandCapabilities> getBrowsers() {
+        return browsers;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+}
@@ -0,0 +1,134 @@
+package com.saucelabs.grid.services;
+
+import com.saucelabs.grid.SauceOnDemandCapabilities;
+
+import java.util.List;
+
+/**
+ * {@link SauceOnDemandService} decorator which rejects calls immediately while the
+ * {@link SauceOnDemandCircuitBreaker} is open, and records the outcome of each call that is made.  Only connection
+ * failures, invalid responses and 5xx responses count as failures.
+ *
+ * @author Ross Rowe
+ */
+public class CircuitBreakingSauceOnDemandService implements SauceOnDemandService {
+
+    private final SauceOnDemandService delegate;
+    private final SauceOnDemandCircuitBreaker circuitBreaker;
+
+    public CircuitBreakingSauceOnDemandService(SauceOnDemandService delegate, SauceOnDemandCircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public boolean isSauceLabUp() throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            boolean result = delegate.isSauceLabUp();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public List<SauceOnDemandCapabilities> getWebDriverBrowsers() throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            List<SauceOnDemandCapabilities> result = delegate.getWebDriverBrowsers();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public List<SauceOnDemandCapabilities> getSeleniumBrowsers() throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            List<SauceOnDemandCapabilities> result = delegate.getSeleniumBrowsers();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public BrowsersResponse getWebDriverBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            BrowsersResponse result = delegate.getWebDriverBrowsers(eTag, lastModified);
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public BrowsersResponse getSeleniumBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            BrowsersResponse result = delegate.getSeleniumBrowsers(eTag, lastModified);
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public int getMaxiumumSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            int result = delegate.getMaxiumumSessions(userName, accessKey);
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public int getActiveSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException {
+        checkCircuit();
+        try {
+            int result = delegate.getActiveSessions(userName, accessKey);
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (SauceOnDemandRestAPIException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        return delegate.getConnectionPoolStatistics();
+    }
+
+    public SauceOnDemandCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Records a failed call, unless Sauce rejected the request itself (a 4xx response, such as for an invalid access
+     * key), which shows that Sauce is up.
+     */
+    private void recordFailure(SauceOnDemandRestAPIException e) {
+        int statusCode = e.getStatusCode();
+        if (statusCode >= 400 && statusCode < 500) {
+            circuitBreaker.recordSuccess();
+        } else {
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    private void checkCircuit() throws SauceOnDemandRestAPIException {
+        if (!circuitBreaker.allowRequest()) {
+            throw new SauceOnDemandRestAPIException("Sauce OnDemand circuit is open, call rejected");
+        }
+    }
+}
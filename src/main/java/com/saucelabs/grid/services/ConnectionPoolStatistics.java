@@ -0,0 +1,80 @@
+package com.saucelabs.grid.services;
+
+/**
+ * Point-in-time view of the connection pool used by {@link SauceOnDemandServiceImpl} to invoke the Sauce REST API.
+ *
+ * @author Ross Rowe
+ */
+public class ConnectionPoolStatistics {
+
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final int max;
+    private final long leaseCount;
+    private final long totalLeaseWaitNanos;
+    private final long maxLeaseWaitNanos;
+
+    public ConnectionPoolStatistics(int leased, int available, int pending, int max,
+                                    long leaseCount, long totalLeaseWaitNanos, long maxLeaseWaitNanos) {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.max = max;
+        this.leaseCount = leaseCount;
+        this.totalLeaseWaitNanos = totalLeaseWaitNanos;
+        this.maxLeaseWaitNanos = maxLeaseWaitNanos;
+    }
+
+    /**
+     * @return number of connections currently handed out to a request
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return number of idle, kept-alive connections ready to be reused
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return number of requests waiting for a connection to become free
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public long getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * @return average time (in milliseconds) a request waited to lease a connection from the pool
+     */
+    public double getAverageLeaseWaitMillis() {
+        if (leaseCount == 0) {
+            return 0;
+        }
+        return totalLeaseWaitNanos / (double) leaseCount / 1000000d;
+    }
+
+    /**
+     * @return longest time (in milliseconds) a request waited to lease a connection from the pool
+     */
+    public double getMaxLeaseWaitMillis() {
+        return maxLeaseWaitNanos / 1000000d;
+    }
+
+    @Override
+    public String toString() {
+        return "[leased: " + leased + "; pending: " + pending + "; available: " + available + "; max: " + max
+                + "; leases: " + leaseCount + "; average lease wait: " + getAverageLeaseWaitMillis() + "ms]";
+    }
+}
@@ -0,0 +1,129 @@
+package com.saucelabs.grid.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks failures of calls to Sauce OnDemand (both REST API calls and requests to start new sessions), and stops
+ * further calls from being made once a threshold of consecutive failures has been reached.
+ * <p/>
+ * The breaker starts {@link State#CLOSED}.  After the failure threshold is reached it becomes {@link State#OPEN},
+ * and calls are rejected immediately.  Once the probe interval has elapsed, a single call is permitted
+ * ({@link State#HALF_OPEN}); if it succeeds the breaker closes, otherwise it re-opens for another probe interval.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandCircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandCircuitBreaker.class.getName());
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_PROBE_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long probeInterval = DEFAULT_PROBE_INTERVAL;
+
+    /**
+     * Determines whether a call may be made, without changing the state of the breaker.  Callers which go on to make
+     * the call must still use {@link #allowRequest()}, so that only a single probe is made once the breaker is open.
+     *
+     * @return false if the breaker is open and the probe interval hasn't elapsed, or if a probe is in progress
+     */
+    public boolean isCallPermitted() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= probeInterval;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Determines whether a call may be made.  If the breaker is open and the probe interval has elapsed, the breaker
+     * moves to {@link State#HALF_OPEN} and the caller is allowed to make the single probe call.
+     *
+     * @return true if the call should be made
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt >= probeInterval) {
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the probe granted by {@link #allowRequest()} when the caller didn't make the call after all, so that the
+     * next caller can probe instead.
+     */
+    public void releaseProbe() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            logger.log(Level.INFO, "Sauce OnDemand circuit closed");
+        }
+    }
+
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state.get() != State.CLOSED) {
+            open();
+        } else if (failures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+                logger.log(Level.WARNING, "Sauce OnDemand circuit opened after " + failures + " consecutive failures");
+            }
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        state.set(State.OPEN);
+        logger.log(Level.WARNING, "Sauce OnDemand call failed while circuit was not closed, circuit re-opened");
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getProbeInterval() {
+        return probeInterval;
+    }
+
+    /**
+     * @param probeInterval time (in milliseconds) to wait after the breaker opens before allowing a probe call
+     */
+    public void setProbeInterval(long probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+}
@@ -1,5 +1,7 @@
 package com.saucelabs.grid.services;
 
+import org.apache.http.client.HttpResponseException;
+
 /**
  * @author François Reynaud - Initial version of plugin
  * @author Ross Rowe - Additional functionality
@@ -11,7 +13,19 @@ public class SauceOnDemandRestAPIException extends Exception {
     super(t);
   }
 
+  public SauceOnDemandRestAPIException(String msg) {
+    super(msg);
+  }
+
   public SauceOnDemandRestAPIException(String msg, Exception e) {
    super(msg, e);
   }
+
+  /**
+   * @return the HTTP status of Sauce's response, or 0 if the call failed without an error response
+   */
+  public int getStatusCode() {
+    Throwable cause = getCause();
+    return cause instanceof HttpResponseException ? ((HttpResponseException) cause).getStatusCode() : 0;
+  }
 }
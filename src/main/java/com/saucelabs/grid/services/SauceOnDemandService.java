@@ -16,5 +16,28 @@ public interface SauceOnDemandService {
 
     List<SauceOnDemandCapabilities> getSeleniumBrowsers() throws SauceOnDemandRestAPIException;
 
+    /**
+     * Conditionally retrieves the WebDriver browser catalog.
+     *
+     * @param eTag         ETag returned by the previous request, can be null
+     * @param lastModified Last-Modified value returned by the previous request, can be null
+     */
+    BrowsersResponse getWebDriverBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException;
+
+    /**
+     * Conditionally retrieves the Selenium RC browser catalog.
+     *
+     * @param eTag         ETag returned by the previous request, can be null
+     * @param lastModified Last-Modified value returned by the previous request, can be null
+     */
+    BrowsersResponse getSeleniumBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException;
+
     int getMaxiumumSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException;
+
+    /**
+     * @return the number of jobs which are running or queued for the account, including those of its sub-accounts
+     */
+    int getActiveSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException;
+
+    ConnectionPoolStatistics getConnectionPoolStatistics();
 }
@@ -2,26 +2,57 @@ package com.saucelabs.grid.services;
 
 import com.saucelabs.grid.Helper;
 import com.saucelabs.grid.SauceOnDemandCapabilities;
-import com.saucelabs.saucerest.SauceREST;
-import org.apache.http.HttpHost;
+import com.saucelabs.grid.SauceOnDemandMetrics;
+import com.saucelabs.grid.SauceOnDemandThreads;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHttpRequest;
-import org.json.JSONArray;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
  * Handles invoking the Sauce REST API to return information about browsers/server status.
  *
+ * All requests are issued through a single long-lived {@link CloseableHttpClient} backed by a pooled connection
+ * manager, so that connections to saucelabs.com are kept alive and reused between calls.
+ *
  * TODO use the Sauce REST Java API
  *
  * @author François Reynaud - Initial version of plugin
@@ -30,15 +61,79 @@ import java.util.List;
 public class SauceOnDemandServiceImpl implements SauceOnDemandService {
 
     private static final String host = "saucelabs.com";
-    private final HttpHost h = new HttpHost(host);
     public final static String STATUS = "http://" + host + "/rest/v1/info/status";
     public final static String BROWSERS = "http://" + host + "/rest/v1/info/browsers";
-    public final static String PROVISIONING = "https://{0}:{1}@" + host + "/rest/v1/{0}/limits";
-    private static final String SELENIUM_BROWSERS = BROWSERS + "/selenium-rc";
-    private static final String WEB_DRIVER_BROWSERS = BROWSERS + "/webdriver";
+    private final static String LIMITS = "https://" + host + "/rest/v1/{0}/limits";
+    private final static String ACTIVITY = "https://" + host + "/rest/v1/{0}/activity";
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    /**
+     * Connections which don't specify a Keep-Alive timeout are kept for this many milliseconds.
+     */
+    public static final long DEFAULT_KEEP_ALIVE = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Connections which have been idle for longer than this many milliseconds are closed by the evictor.
+     */
+    private static final long IDLE_CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            SauceOnDemandThreads.newThreadFactory("sauce-rest-connection-evictor-%d"));
 
+    private final String statusUrl;
+    private final String webDriverBrowsersUrl;
+    private final String seleniumBrowsersUrl;
+    private final String limitsUrl;
+    private final String activityUrl;
+    private final LeaseTimingConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final ScheduledFuture<?> eviction;
+    private volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+    private volatile RequestConfig requestConfig = RequestConfig.DEFAULT;
 
     public SauceOnDemandServiceImpl() {
+        this(DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    /**
+     * @param maxTotalConnections maximum number of connections held open across all routes
+     * @param maxConnectionsPerRoute maximum number of connections held open to a single host
+     */
+    public SauceOnDemandServiceImpl(int maxTotalConnections, int maxConnectionsPerRoute) {
+        this(STATUS, BROWSERS, LIMITS, ACTIVITY, maxTotalConnections, maxConnectionsPerRoute);
+    }
+
+    /**
+     * Creates a service which invokes a REST API other than saucelabs.com (eg. a local stand-in server).
+     *
+     * @param restUrl base url of the REST API, eg. http://localhost:8080
+     */
+    public SauceOnDemandServiceImpl(String restUrl) {
+        this(restUrl + "/rest/v1/info/status", restUrl + "/rest/v1/info/browsers", restUrl + "/rest/v1/{0}/limits",
+                restUrl + "/rest/v1/{0}/activity", DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    private SauceOnDemandServiceImpl(String statusUrl, String browsersUrl, String limitsUrl, String activityUrl,
+                                     int maxTotalConnections, int maxConnectionsPerRoute) {
+        this.statusUrl = statusUrl;
+        this.webDriverBrowsersUrl = browsersUrl + "/webdriver";
+        this.seleniumBrowsersUrl = browsersUrl + "/selenium-rc";
+        this.limitsUrl = limitsUrl;
+        this.activityUrl = activityUrl;
+        this.connectionManager = new LeaseTimingConnectionManager();
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy())
+                .build();
+        this.eviction = evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -48,7 +143,7 @@ public class SauceOnDemandServiceImpl implements SauceOnDemandService {
     public boolean isSauceLabUp() throws SauceOnDemandRestAPIException {
         String s = "none";
         try {
-            s = executeCommand(STATUS);
+            s = executeCommand(statusUrl);
             JSONObject result = new JSONObject(s);
             return result.getBoolean("service_operational");
         } catch (Exception e) {
@@ -57,20 +152,25 @@ public class SauceOnDemandServiceImpl implements SauceOnDemandService {
     }
 
     public List<SauceOnDemandCapabilities> getWebDriverBrowsers() throws SauceOnDemandRestAPIException {
-        return getBrowsers(WEB_DRIVER_BROWSERS);
+        return getBrowsers(webDriverBrowsersUrl);
     }
 
     public List<SauceOnDemandCapabilities> getSeleniumBrowsers() throws SauceOnDemandRestAPIException {
-        return getBrowsers(SELENIUM_BROWSERS);
+        return getBrowsers(seleniumBrowsersUrl);
+    }
+
+    public BrowsersResponse getWebDriverBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+        return getBrowsers(webDriverBrowsersUrl, eTag, lastModified);
+    }
+
+    public BrowsersResponse getSeleniumBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+        return getBrowsers(seleniumBrowsersUrl, eTag, lastModified);
     }
 
     public int getMaxiumumSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException {
         String json = "none";
         try {
-            SauceREST sauceRest = new SauceREST(userName, accessKey);
-            json = sauceRest.retrieveResults(new URL(MessageFormat.format(PROVISIONING, userName, accessKey)));
-
-            //json = executeCommand(MessageFormat.format(PROVISIONING, userName, accessKey));
+            json = executeCommand(MessageFormat.format(limitsUrl, userName), userName, accessKey);
             JSONObject jsonObject = new JSONObject(json);
             return jsonObject.getInt("concurrency");
         } catch (Exception e) {
@@ -78,36 +178,234 @@ public class SauceOnDemandServiceImpl implements SauceOnDemandService {
         }
     }
 
+    public int getActiveSessions(String userName, String accessKey) throws SauceOnDemandRestAPIException {
+        String json = "none";
+        try {
+            json = executeCommand(MessageFormat.format(activityUrl, userName), userName, accessKey);
+            JSONObject jsonObject = new JSONObject(json);
+            return jsonObject.getJSONObject("totals").getInt("all");
+        } catch (Exception e) {
+            throw new SauceOnDemandRestAPIException("raw response:" + json, e);
+        }
+    }
+
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        PoolStats stats = connectionManager.getTotalStats();
+        return new ConnectionPoolStatistics(stats.getLeased(), stats.getAvailable(), stats.getPending(),
+                stats.getMax(), connectionManager.leaseCount.get(), connectionManager.totalLeaseWait.get(),
+                connectionManager.maxLeaseWait.get());
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        connectionManager.setMaxTotal(maxTotalConnections);
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    }
+
+    /**
+     * @param keepAlive milliseconds to keep connections open when Sauce doesn't specify a Keep-Alive timeout
+     */
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param connectTimeout milliseconds subsequent requests wait for a connection to be established or leased from
+     *                       the pool, 0 for no timeout (requests wait indefinitely by default)
+     */
+    public synchronized void setConnectTimeout(int connectTimeout) {
+        requestConfig = RequestConfig.copy(requestConfig)
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .build();
+    }
+
+    /**
+     * @param socketTimeout milliseconds subsequent requests wait for data from Sauce, 0 for no timeout (requests wait
+     *                      indefinitely by default)
+     */
+    public synchronized void setSocketTimeout(int socketTimeout) {
+        requestConfig = RequestConfig.copy(requestConfig).setSocketTimeout(socketTimeout).build();
+    }
+
+    /**
+     * Releases the pooled connections.  The service can't be used once it has been closed.
+     */
+    public void close() {
+        eviction.cancel(false);
+        try {
+            client.close();
+        } catch (IOException e) {
+            //ignore, the connection manager is shut down regardless
+        }
+        connectionManager.shutdown();
+    }
+
     private List<SauceOnDemandCapabilities> getBrowsers(String url) throws SauceOnDemandRestAPIException {
-        List<SauceOnDemandCapabilities> res = new ArrayList<SauceOnDemandCapabilities>();
         String s = "none";
         try {
             s = executeCommand(url);
-            JSONArray results = new JSONArray(s);
-            for (int i = 0; i < results.length(); i++) {
-                JSONObject cap = results.getJSONObject(i);
-                res.add(new SauceOnDemandCapabilities(cap.toString()));
+            return parseBrowsers(s);
+        } catch (Exception e) {
+            throw new SauceOnDemandRestAPIException("raw response:" + s, e);
+        }
+    }
+
+    /**
+     * Issues a conditional GET for the browser catalog, so that an unchanged catalog only costs a 304 response.
+     */
+    private BrowsersResponse getBrowsers(String url, String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+        String s = "none";
+        try {
+            HttpGet get = new HttpGet(url);
+            get.setConfig(requestConfig);
+            if (eTag != null) {
+                get.setHeader("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                get.setHeader("If-Modified-Since", lastModified);
+            }
+            long start = System.nanoTime();
+            CloseableHttpResponse response = client.execute(get);
+            SauceOnDemandMetrics.REST_CALL.recordSince(start);
+            try {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == 304) {
+                    return BrowsersResponse.notModified(eTag, lastModified);
+                } else if (statusCode == 200) {
+                    s = "streamed";
+                    return new BrowsersResponse(parseBrowsers(response.getEntity()), headerValue(response, "ETag"),
+                            headerValue(response, "Last-Modified"));
+                } else {
+                    throw new HttpResponseException(statusCode,
+                            "failed to execute " + url + " on " + host + " - " + response.getStatusLine());
+                }
+            } finally {
+                EntityUtils.consume(response.getEntity());
+                response.close();
             }
-            return res;
         } catch (Exception e) {
             throw new SauceOnDemandRestAPIException("raw response:" + s, e);
         }
     }
 
+    private List<SauceOnDemandCapabilities> parseBrowsers(String s) throws JSONException, IOException {
+        return BrowsersParser.parse(new StringReader(s));
+    }
+
+    /**
+     * Parses the catalog directly from the response stream, without buffering it as a String.
+     */
+    private List<SauceOnDemandCapabilities> parseBrowsers(HttpEntity entity) throws JSONException, IOException {
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        Reader reader = new InputStreamReader(entity.getContent(), charset == null ? Consts.UTF_8 : charset);
+        try {
+            return BrowsersParser.parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
 
     protected String executeCommand(String url) throws JSONException, IOException {
-        HttpClient client = new DefaultHttpClient();
-        BasicHttpRequest r = new BasicHttpRequest("GET", url);
-        HttpResponse response = client.execute(h, r);
-        if (response.getStatusLine().getStatusCode() == 200) {
-            String result = Helper.extractResponse(response);
-            return result;
-        } else {
-            throw new RuntimeException("failed to execute " + url + " on " + host + " - " + response.getStatusLine());
+        return execute(new HttpGet(url));
+    }
+
+    protected String executeCommand(String url, String userName, String accessKey) throws JSONException, IOException {
+        HttpGet get = new HttpGet(url);
+        String credentials = userName + ':' + accessKey;
+        get.setHeader("Authorization", "Basic " + Base64.encodeBase64String(credentials.getBytes("UTF-8")));
+        return execute(get);
+    }
+
+    /**
+     * Executes the request, and ensures that the response entity is fully consumed so that the underlying
+     * connection is returned to the pool.
+     */
+    private String execute(HttpGet request) throws JSONException, IOException {
+        request.setConfig(requestConfig);
+        long start = System.nanoTime();
+        CloseableHttpResponse response = client.execute(request);
+        SauceOnDemandMetrics.REST_CALL.recordSince(start);
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 200) {
+                return Helper.extractResponse(response);
+            } else {
+                throw new HttpResponseException(statusCode,
+                        "failed to execute " + request.getURI() + " on " + host + " - " + response.getStatusLine());
+            }
+        } finally {
+            EntityUtils.consume(response.getEntity());
+            response.close();
+        }
+    }
+
+    /**
+     * Honours the Keep-Alive header returned by the server, and otherwise keeps connections open for
+     * {@link #setKeepAlive(long) keepAlive} milliseconds rather than indefinitely.
+     */
+    private class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout")) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException ignore) {
+                        //fall through to the default
+                    }
+                }
+            }
+            return keepAlive;
         }
     }
 
+    /**
+     * Records how long requests wait for a connection to be leased from the pool.
+     */
+    private static class LeaseTimingConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final AtomicLong leaseCount = new AtomicLong();
+        private final AtomicLong totalLeaseWait = new AtomicLong();
+        private final AtomicLong maxLeaseWait = new AtomicLong();
 
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ConnectionRequest request = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    long start = System.nanoTime();
+                    try {
+                        return request.get(timeout, tunit);
+                    } finally {
+                        recordLeaseWait(System.nanoTime() - start);
+                    }
+                }
 
+                public boolean cancel() {
+                    return request.cancel();
+                }
+            };
+        }
 
+        private void recordLeaseWait(long waited) {
+            leaseCount.incrementAndGet();
+            totalLeaseWait.addAndGet(waited);
+            long max = maxLeaseWait.get();
+            while (waited > max && !maxLeaseWait.compareAndSet(max, waited)) {
+                max = maxLeaseWait.get();
+            }
+        }
+    }
 }
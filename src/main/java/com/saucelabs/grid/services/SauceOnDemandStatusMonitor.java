@@ -0,0 +1,190 @@
+package com.saucelabs.grid.services;
+
+import com.saucelabs.grid.SauceOnDemandThreads;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the Sauce status REST API in the background and retains the last result, so that the availability of
+ * Sauce OnDemand can be checked without making a network call while the Registry is matching requests.
+ *
+ * @author Ross Rowe
+ */
+public class SauceOnDemandStatusMonitor {
+
+    private static final Logger logger = Logger.getLogger(SauceOnDemandStatusMonitor.class.getName());
+
+    public static final long DEFAULT_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * Determines how the monitor reports availability when the last successful poll is older than the maximum age.
+     */
+    public enum StalePolicy {
+        /**
+         * Treat Sauce as available, so that sessions continue to be forwarded.
+         */
+        ASSUME_AVAILABLE,
+        /**
+         * Treat Sauce as unavailable, so that requests are routed elsewhere.
+         */
+        ASSUME_UNAVAILABLE,
+        /**
+         * Use the last known status, regardless of its age.
+         */
+        LAST_KNOWN
+    }
+
+    /**
+     * Immutable snapshot of the Sauce status.
+     */
+    public static class Status {
+
+        private final boolean available;
+        private final long checkedAt;
+
+        public Status(boolean available, long checkedAt) {
+            this.available = available;
+            this.checkedAt = checkedAt;
+        }
+
+        public boolean isAvailable() {
+            return available;
+        }
+
+        /**
+         * @return the time (in milliseconds since the epoch) that the status was last successfully retrieved, 0 if
+         *         it has never been retrieved
+         */
+        public long getCheckedAt() {
+            return checkedAt;
+        }
+    }
+
+    private final SauceOnDemandService service;
+    private final ScheduledExecutorService executor;
+    private volatile Status status = new Status(false, 0);
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private volatile StalePolicy stalePolicy = StalePolicy.LAST_KNOWN;
+    private ScheduledFuture<?> poller;
+
+    public SauceOnDemandStatusMonitor(SauceOnDemandService service) {
+        this.service = service;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                SauceOnDemandThreads.newThreadFactory("sauce-status-monitor-%d"));
+    }
+
+    /**
+     * Starts polling, or reschedules the poller if it has already been started.
+     */
+    public synchronized void start() {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+        poller = executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, 0, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling, and waits for a poll which is in progress to finish.
+     */
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.cancel(false);
+            poller = null;
+            try {
+                executor.submit(new Runnable() {
+                    public void run() {
+                    }
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                //can't happen, the task does nothing
+            }
+        }
+    }
+
+    /**
+     * Retrieves the current status from Sauce.  If the REST call fails, the previous snapshot is retained, and will
+     * eventually be treated as stale.
+     */
+    public void refresh() {
+        try {
+            status = new Status(service.isSauceLabUp(), System.currentTimeMillis());
+        } catch (SauceOnDemandRestAPIException e) {
+            logger.log(Level.WARNING, "Unable to retrieve Sauce OnDemand status", e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to retrieve Sauce OnDemand status", e);
+        }
+    }
+
+    /**
+     * @return whether Sauce OnDemand should be considered available, based on the last retrieved status and the
+     *         {@link StalePolicy}.  A status that has never been retrieved is treated as stale.
+     */
+    public boolean isSauceAvailable() {
+        Status current = status;
+        if (current.getCheckedAt() != 0 && System.currentTimeMillis() - current.getCheckedAt() <= maxAge) {
+            return current.isAvailable();
+        }
+        switch (stalePolicy) {
+            case ASSUME_AVAILABLE:
+                return true;
+            case ASSUME_UNAVAILABLE:
+                return false;
+            default:
+                //if the status has never been retrieved it is unknown, which isn't evidence that Sauce is down
+                return current.getCheckedAt() == 0 || current.isAvailable();
+        }
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Changes the polling interval, restarting the poller if it is running.
+     *
+     * @param pollInterval interval between polls, in milliseconds
+     */
+    public synchronized void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+        if (poller != null) {
+            start();
+        }
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @param maxAge age (in milliseconds) after which the last retrieved status is considered stale
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public StalePolicy getStalePolicy() {
+        return stalePolicy;
+    }
+
+    public void setStalePolicy(StalePolicy stalePolicy) {
+        this.stalePolicy = stalePolicy;
+    }
+}
@@ -0,0 +1,87 @@
+package com.saucelabs.grid;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+public class AsyncLogHandlerTest {
+
+    @Test
+    public void recordsAreWrittenInOrderWithTheirCaller() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogHandler handler = new AsyncLogHandler(out, 100, 10);
+        handler.setInferCaller(true);
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        for (int i = 0; i < 50; i++) {
+            logger.log(Level.INFO, "record {0}", i);
+        }
+        handler.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals(lines.length, 50);
+        Assert.assertTrue(lines[0].contains("[" + getClass().getName() + ".recordsAreWrittenInOrderWithTheirCaller]"),
+                lines[0]);
+        Assert.assertTrue(lines[49].endsWith("record 49"), lines[49]);
+    }
+
+    @Test
+    public void callerIsOnlyWrittenWhenNamed() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogHandler handler = new AsyncLogHandler(out, 100, 10);
+        Logger logger = Logger.getLogger("com.saucelabs.grid.test");
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        try {
+            logger.logp(Level.INFO, "com.saucelabs.grid.Source", "method", "named");
+            logger.log(Level.INFO, "unnamed");
+        } finally {
+            logger.removeHandler(handler);
+            logger.setUseParentHandlers(true);
+        }
+        handler.close();
+
+        String[] lines = out.toString("UTF-8").split("\n");
+        Assert.assertEquals(lines.length, 2);
+        Assert.assertTrue(lines[0].contains("[com.saucelabs.grid.Source.method]"), lines[0]);
+        Assert.assertTrue(lines[1].contains("[com.saucelabs.grid.test]"), lines[1]);
+    }
+
+    @Test
+    public void recordsAreDroppedWhenTheBufferIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        AsyncLogHandler handler = new AsyncLogHandler(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.write(b, off, len);
+            }
+        }, 10, 1);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new LogRecord(Level.INFO, "record " + i));
+        }
+        Assert.assertTrue(handler.getDropped() >= 89, "dropped " + handler.getDropped());
+        release.countDown();
+        handler.close();
+
+        Assert.assertTrue(written.toString("UTF-8").contains("log records dropped"));
+    }
+}
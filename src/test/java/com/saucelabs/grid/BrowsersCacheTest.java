@@ -0,0 +1,129 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.BrowsersResponse;
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BrowsersCacheTest {
+
+    private static final String FIREFOX = "{\"selenium_name\" : \"firefox\", \"short_version\" : \"12\","
+            + "\"long_name\" : \"Firefox\", \"long_version\" : \"12.0.\", \"preferred_version\" : \"12\","
+            + "\"os\" : \"Windows 2008\", \"api_name\" : \"firefox\"}";
+
+    private static final String CHROME = "{\"selenium_name\" : \"googlechrome\", \"short_version\" : \"\","
+            + "\"long_name\" : \"Google Chrome\", \"long_version\" : \"19.0.1084.46.\", \"preferred_version\" : \"\","
+            + "\"os\" : \"Windows 2008\", \"api_name\" : \"chrome\"}";
+
+    private static class CatalogService extends SauceOnDemandServiceImpl {
+
+        private volatile List<SauceOnDemandCapabilities> browsers;
+        private volatile String eTag = "\"v1\"";
+        private final List<String> requestedETags = new ArrayList<String>();
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public BrowsersResponse getWebDriverBrowsers(String eTag, String lastModified) throws SauceOnDemandRestAPIException {
+            try {
+                requestedETags.add(eTag);
+                if (this.eTag.equals(eTag)) {
+                    return BrowsersResponse.notModified(eTag, lastModified);
+                }
+                return new BrowsersResponse(browsers, this.eTag, null);
+            } finally {
+                latch.countDown();
+            }
+        }
+    }
+
+    @Test
+    public void loadsOnFirstUse() throws Exception {
+        CatalogService service = new CatalogService();
+        service.browsers = Arrays.asList(new SauceOnDemandCapabilities(FIREFOX));
+        BrowsersCache cache = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER);
+
+        Assert.assertEquals(cache.getAllBrowsers().size(), 1);
+        Assert.assertNotNull(cache.get(service.browsers.get(0).getMD5()));
+        cache.getAllBrowsers();
+        Assert.assertEquals(service.requestedETags.size(), 1, "fresh cache should not call Sauce again");
+    }
+
+    @Test
+    public void refreshUsesConditionalRequest() throws Exception {
+        CatalogService service = new CatalogService();
+        service.browsers = Arrays.asList(new SauceOnDemandCapabilities(FIREFOX));
+        BrowsersCache cache = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER);
+        cache.getAllBrowsers();
+
+        cache.refresh();
+        Assert.assertEquals(service.requestedETags.get(1), "\"v1\"");
+        Assert.assertEquals(cache.getAllBrowsers().size(), 1);
+    }
+
+    @Test
+    public void expiredCacheServesStaleBrowsersWhileRefreshing() throws Exception {
+        CatalogService service = new CatalogService();
+        service.browsers = Arrays.asList(new SauceOnDemandCapabilities(FIREFOX));
+        BrowsersCache cache = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER);
+        cache.getAllBrowsers();
+
+        service.browsers = browsers(FIREFOX, CHROME);
+        service.eTag = "\"v2\"";
+        service.latch = new CountDownLatch(1);
+        cache.setTtl(-1);
+        Assert.assertEquals(cache.getAllBrowsers().size(), 1, "stale browsers should be served immediately");
+
+        Assert.assertTrue(service.latch.await(5, TimeUnit.SECONDS));
+        cache.setTtl(BrowsersCache.DEFAULT_TTL);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getAllBrowsers().size() != 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(cache.getAllBrowsers().size(), 2);
+    }
+
+    @Test
+    public void servesSnapshotWhileReconciling() throws Exception {
+        File file = File.createTempFile("sauce-ondemand-snapshot", ".json");
+        file.delete();
+        try {
+            new SauceOnDemandSnapshot(file).saveBrowsers(BrowsersCache.Catalog.WEB_DRIVER,
+                    new BrowsersResponse(browsers(FIREFOX), "\"v1\"", null));
+
+            CatalogService service = new CatalogService();
+            service.browsers = browsers(FIREFOX, CHROME);
+            service.eTag = "\"v2\"";
+            BrowsersCache cache = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER, new SauceOnDemandSnapshot(file));
+            Assert.assertEquals(cache.getAllBrowsers().size(), 1, "snapshot should be served without calling Sauce");
+
+            Assert.assertTrue(service.latch.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(service.requestedETags.get(0), "\"v1\"", "reconcile should be conditional");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getAllBrowsers().size() != 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(cache.getAllBrowsers().size(), 2);
+            Assert.assertEquals(new SauceOnDemandSnapshot(file).getBrowsers(BrowsersCache.Catalog.WEB_DRIVER).getETag(),
+                    "\"v2\"", "reconciled catalog should be written back to the snapshot");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<SauceOnDemandCapabilities> browsers(String... json) throws JSONException {
+        List<SauceOnDemandCapabilities> result = new ArrayList<SauceOnDemandCapabilities>();
+        for (String s : json) {
+            result.add(new SauceOnDemandCapabilities(s));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.BrowsersParser;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time taken and bytes allocated per catalog load by the streaming parser and the previous
+ * String/JSONArray parse of informationBrowsers.json.
+ * <p/>
+ * Allocation is measured with the HotSpot per-thread allocation counter.  Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class BrowsersParserBenchmarkTest {
+
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 5000;
+
+    private interface Load {
+        int run(byte[] catalog) throws Exception;
+    }
+
+    public void streamingParseAllocatesLess() throws Exception {
+        byte[] catalog = readCatalog().getBytes("UTF-8");
+        Load legacy = new Load() {
+            public int run(byte[] catalog) throws Exception {
+                String s = IOUtils.toString(new ByteArrayInputStream(catalog), "UTF-8");
+                List<SauceOnDemandCapabilities> res = new ArrayList<SauceOnDemandCapabilities>();
+                JSONArray results = new JSONArray(s);
+                for (int i = 0; i < results.length(); i++) {
+                    res.add(new SauceOnDemandCapabilities(results.getJSONObject(i).toString()));
+                }
+                return res.size();
+            }
+        };
+        Load streaming = new Load() {
+            public int run(byte[] catalog) throws Exception {
+                return BrowsersParser.parse(new InputStreamReader(new ByteArrayInputStream(catalog), "UTF-8")).size();
+            }
+        };
+
+        long[] legacyResult = measure(legacy, catalog);
+        long[] streamingResult = measure(streaming, catalog);
+        System.out.println("Catalog load (" + catalog.length + " bytes): JSONArray " + legacyResult[0] + "us, "
+                + legacyResult[1] + " bytes; streaming " + streamingResult[0] + "us, " + streamingResult[1] + " bytes");
+        Assert.assertTrue(streamingResult[1] < legacyResult[1], "streaming parse should allocate less");
+    }
+
+    /**
+     * @return average microseconds and bytes allocated per load
+     */
+    private static long[] measure(Load load, byte[] catalog) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            load.run(catalog);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            load.run(catalog);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        return new long[]{elapsed / ITERATIONS / 1000, allocated / ITERATIONS};
+    }
+
+    static String readCatalog() throws Exception {
+        InputStream is = BrowsersParserBenchmarkTest.class.getResourceAsStream(BrowsersParserTest.CATALOG);
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.BrowsersParser;
+import org.json.JSONArray;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.List;
+
+public class BrowsersParserTest {
+
+    static final String CATALOG = "/com/saucelabs/grid/utils/informationBrowsers.json";
+
+    @Test
+    public void streamingParseMatchesJSONArrayParse() throws Exception {
+        String catalog = BrowsersParserBenchmarkTest.readCatalog();
+        JSONArray array = new JSONArray(catalog);
+
+        List<SauceOnDemandCapabilities> browsers = BrowsersParser.parse(
+                new InputStreamReader(getClass().getResourceAsStream(CATALOG), "UTF-8"));
+        Assert.assertEquals(browsers.size(), array.length());
+        for (int i = 0; i < array.length(); i++) {
+            SauceOnDemandCapabilities expected = new SauceOnDemandCapabilities(array.getJSONObject(i).toString());
+            Assert.assertEquals(browsers.get(i).getMD5(), expected.getMD5());
+            Assert.assertEquals(browsers.get(i).asMap(), expected.asMap());
+        }
+    }
+
+    @Test
+    public void skipsNestedValues() throws Exception {
+        List<SauceOnDemandCapabilities> browsers = BrowsersParser.parse(new StringReader(
+                "[{\"selenium_name\" : \"firefox\", \"short_version\" : 12, \"long_name\" : \"Firefox\","
+                        + "\"long_version\" : \"12.0.\", \"preferred_version\" : \"12\", \"os\" : \"Windows 2008\","
+                        + "\"api_name\" : \"firefox\", \"resolutions\" : [\"1024x768\"], \"scale\" : {\"x\" : 1},"
+                        + "\"device\" : null}]"));
+        Assert.assertEquals(browsers.size(), 1);
+        Assert.assertEquals(browsers.get(0).getShortVersion(), "12");
+        Assert.assertEquals(browsers.get(0).asMap().get("browserName"), "firefox");
+    }
+}
@@ -0,0 +1,61 @@
+package com.saucelabs.grid;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Compares the records formatted per second and bytes allocated per record by {@link LogFormatter} and the previous
+ * formatter, which created a date format for every record.
+ * <p/>
+ * Allocation is measured with the HotSpot per-thread allocation counter.  Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class LogFormatterBenchmarkTest {
+
+    private static final int WARMUP = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    public void cachedTimestampAllocatesLess() {
+        LogRecord[] records = new LogRecord[1000];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < records.length; i++) {
+            //as handed over by AsyncLogHandler, with the message already formatted
+            records[i] = new LogRecord(Level.FINE, "About to execute POST /wd/hub/session/1234/element");
+            records[i].setSourceClassName(SauceOnDemandRemoteProxy.class.getName());
+            records[i].setSourceMethodName("beforeCommand");
+            records[i].setMillis(start + i);
+        }
+        long[] legacy = measure(new LogFormatterTest.LegacyLogFormatter(), records);
+        long[] cached = measure(new LogFormatter(), records);
+        System.out.println("Log formatting: legacy " + legacy[0] + " records/s, " + legacy[1]
+                + " bytes/record; cached " + cached[0] + " records/s, " + cached[1] + " bytes/record");
+        Assert.assertTrue(cached[1] < legacy[1], "cached formatter should allocate less");
+    }
+
+    /**
+     * @return records formatted per second, and bytes allocated per record
+     */
+    private static long[] measure(Formatter formatter, LogRecord[] records) {
+        int length = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            length += formatter.format(records[i % records.length]).length();
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            length += formatter.format(records[i % records.length]).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        Assert.assertTrue(length > 0);
+        return new long[]{ITERATIONS * TimeUnit.SECONDS.toNanos(1) / elapsed, allocated / ITERATIONS};
+    }
+}
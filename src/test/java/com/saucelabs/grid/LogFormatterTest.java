@@ -0,0 +1,62 @@
+package com.saucelabs.grid;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class LogFormatterTest {
+
+    /**
+     * The previous implementation of {@link LogFormatter}, which allocated a date format for every record.
+     */
+    static class LegacyLogFormatter extends Formatter {
+
+        private static final String DATE_FORMAT = "yyyy/MM/dd hh:mm:ss.SSSS";
+
+        @Override
+        public String format(LogRecord record) {
+            DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+            StringBuilder builder = new StringBuilder();
+            builder.append("[Thread-").append(record.getThreadID()).append("] ");
+            builder.append(dateFormat.format(new Date(record.getMillis()))).append(' ');
+            builder.append('[').append(record.getSourceClassName()).append(".");
+            builder.append(record.getSourceMethodName()).append("] -");
+            builder.append('[').append(record.getLevel()).append("] - ");
+            builder.append(formatMessage(record));
+            builder.append("\n");
+            return builder.toString();
+        }
+    }
+
+    static LogRecord record(long millis) {
+        LogRecord record = new LogRecord(Level.INFO, "Checking capability: {0}");
+        record.setParameters(new Object[]{"{browserName=firefox}"});
+        record.setSourceClassName(SauceOnDemandRemoteProxy.class.getName());
+        record.setSourceMethodName("hasCapability");
+        record.setMillis(millis);
+        return record;
+    }
+
+    @Test
+    public void outputMatchesPreviousFormatter() {
+        LogFormatter formatter = new LogFormatter();
+        LegacyLogFormatter legacy = new LegacyLogFormatter();
+        long now = System.currentTimeMillis();
+        long[] times = {now, now + 1, now + 999, now + 1000, now + 3600000, 0, 5, 43200000, 1441929599999L,
+                1441929600000L, -1};
+        for (long time : times) {
+            LogRecord record = record(time);
+            Assert.assertEquals(formatter.format(record), legacy.format(record));
+        }
+        for (long time = now; time < now + 5000; time += 7) {
+            LogRecord record = record(time);
+            Assert.assertEquals(formatter.format(record), legacy.format(record));
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package com.saucelabs.grid;
 
 import com.saucelabs.grid.SauceOnDemandCapabilities;
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.openqa.selenium.remote.DesiredCapabilities;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
 public class ModelTests {
 
 
@@ -56,6 +61,42 @@ public class ModelTests {
 
 
 
+  @Test
+  public void md5IsStable() throws JSONException {
+    // ids are stored in sauce-ondemand.json, so must not change between versions
+    SauceOnDemandCapabilities slc = new SauceOnDemandCapabilities(stringCapabilities);
+    Assert.assertEquals(slc.getMD5(), "ccc567635585bee057485fa583a7b87e");
+  }
+
+  @Test
+  public void md5MatchesPreviousFormat() throws Exception {
+    JSONArray catalog = new JSONArray(BrowsersParserBenchmarkTest.readCatalog());
+    for (int i = 0; i < catalog.length(); i++) {
+      JSONObject raw = catalog.getJSONObject(i);
+      StringBuilder b = new StringBuilder();
+      for (String key : new String[]{SauceOnDemandCapabilities.NAME, SauceOnDemandCapabilities.SHORT_VERSION,
+          SauceOnDemandCapabilities.LONG_VERSION, SauceOnDemandCapabilities.LONG_NAME,
+          SauceOnDemandCapabilities.PREFERRED_VERSION, SauceOnDemandCapabilities.OS}) {
+        if (raw.has(key)) {
+          b.append(key).append(raw.getString(key));
+        }
+      }
+      String expected = new BigInteger(1, MessageDigest.getInstance("MD5").digest(b.toString().getBytes())).toString(16);
+      if (expected.length() == 31) {
+        expected = "0" + expected;
+      }
+      Assert.assertEquals(new SauceOnDemandCapabilities(raw).getMD5(), expected);
+    }
+  }
+
+  @Test
+  public void stringsAreShared() throws JSONException {
+    SauceOnDemandCapabilities slc = new SauceOnDemandCapabilities(stringCapabilities);
+    SauceOnDemandCapabilities slc2 = new SauceOnDemandCapabilities(stringCapabilities2);
+    Assert.assertSame(slc.getOs(), slc2.getOs());
+    Assert.assertSame(slc.getLongName(), slc2.getLongName());
+  }
+
   @Test(expectedExceptions = {JSONException.class})
   public void sauceLabCapabilityInvalid() throws JSONException {
     new SauceOnDemandCapabilities(stringCapabilitiesInvalid);
@@ -0,0 +1,70 @@
+package com.saucelabs.grid;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class RotatingLogFileTest {
+
+    private File directory;
+    private File file;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = File.createTempFile("sauce-rotating-log", "");
+        directory.delete();
+        directory.mkdir();
+        file = new File(directory, "grid.log");
+    }
+
+    @AfterMethod
+    public void deleteDirectory() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void fileIsRotatedOnceLimitIsReached() throws Exception {
+        RotatingLogFile log = new RotatingLogFile(file, true, 10, 3, 0);
+        for (int i = 0; i < 4; i++) {
+            log.write(("record " + i + "\n").getBytes("UTF-8"));
+            log.write(("record " + i + "\n").getBytes("UTF-8"));
+            log.flush();
+        }
+        log.write("current\n".getBytes("UTF-8"));
+        log.close();
+
+        Assert.assertEquals(FileUtils.readFileToString(file, "UTF-8"), "current\n");
+        Assert.assertEquals(FileUtils.readFileToString(log.getRotatedFile(1), "UTF-8"), "record 3\nrecord 3\n");
+        Assert.assertEquals(FileUtils.readFileToString(log.getRotatedFile(2), "UTF-8"), "record 2\nrecord 2\n");
+        Assert.assertFalse(log.getRotatedFile(3).exists());
+    }
+
+    @Test
+    public void fileIsRotatedOnceIntervalElapses() throws Exception {
+        RotatingLogFile log = new RotatingLogFile(file, true, 0, 2, 50);
+        log.write("first\n".getBytes("UTF-8"));
+        log.flush();
+        Thread.sleep(100);
+        log.write("second\n".getBytes("UTF-8"));
+        log.flush();
+        log.write("third\n".getBytes("UTF-8"));
+        log.close();
+
+        Assert.assertEquals(FileUtils.readFileToString(log.getRotatedFile(1), "UTF-8"), "first\nsecond\n");
+        Assert.assertEquals(FileUtils.readFileToString(file, "UTF-8"), "third\n");
+    }
+
+    @Test
+    public void writesLargerThanTheBufferAreKept() throws Exception {
+        RotatingLogFile log = new RotatingLogFile(file, false, 0, 1, 0);
+        byte[] bytes = new byte[200 * 1024];
+        log.write(bytes);
+        Assert.assertEquals(log.getSize(), bytes.length);
+        log.close();
+        Assert.assertEquals(file.length(), bytes.length);
+    }
+}
@@ -0,0 +1,287 @@
+package com.saucelabs.grid;
+
+import com.google.common.io.ByteStreams;
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SauceHttpClientFactoryTest {
+
+    private static final int SCREENSHOT_SIZE = 10 * 1024 * 1024;
+    private static final int THREADS = 50;
+
+    private StandInSauceRestServer server;
+    private String url;
+    private Registry registry;
+    private SauceHttpClientFactory factory;
+
+    @BeforeClass
+    public void start() throws Exception {
+        server = new StandInSauceRestServer(1, 0);
+        server.setScreenshotSize(SCREENSHOT_SIZE);
+        url = server.start() + "/wd/hub/session/1234/screenshot";
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(RegistrationRequest.MAX_SESSION, THREADS);
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, false);
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        registry = Registry.newInstance();
+        factory = new SauceHttpClientFactory(new SauceOnDemandRemoteProxy(request, registry));
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stop() {
+        registry.stop();
+        server.stop();
+    }
+
+    @Test
+    public void responsesAreBufferedWhenNotStreamed() throws Exception {
+        SauceOnDemandMetrics.commandStarted();
+        long allocated = allocatedBytes();
+        byte[] body = EntityUtils.toByteArray(forward(null, null).getEntity());
+
+        Assert.assertEquals(body.length, SCREENSHOT_SIZE);
+        Assert.assertTrue(allocatedBytes() - allocated >= SCREENSHOT_SIZE);
+        Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), SCREENSHOT_SIZE);
+    }
+
+    @Test
+    public void parallelLargeResponsesAreStreamedThroughPooledBuffers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        final AtomicLong written = new AtomicLong();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    start.await();
+                    SauceOnDemandMetrics.commandStarted();
+                    long allocated = allocatedBytes();
+                    byte[] body = EntityUtils.toByteArray(forward(response(written), null).getEntity());
+                    allocated = allocatedBytes() - allocated;
+
+                    Assert.assertEquals(body.length, 0);
+                    Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), SCREENSHOT_SIZE);
+                    return allocated;
+                }
+            }));
+        }
+        start.countDown();
+        long maxAllocated = 0;
+        for (Future<Long> result : results) {
+            maxAllocated = Math.max(maxAllocated, result.get());
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(written.get(), (long) THREADS * SCREENSHOT_SIZE);
+        //the copy buffer and the client's connection buffers (plus any classes loaded on first use), rather than a
+        //copy of the response
+        Assert.assertTrue(maxAllocated < SCREENSHOT_SIZE / 4, "allocated " + maxAllocated + " bytes");
+        Assert.assertTrue(SauceHttpClientFactory.BUFFERS.getAvailable() > 0);
+    }
+
+    @Test
+    public void compressionIsNegotiatedWithSauce() throws Exception {
+        forward(null, "identity");
+
+        Assert.assertEquals(server.getAcceptEncoding(), "gzip,deflate");
+    }
+
+    @Test
+    public void compressedResponsesAreDecompressedForClientsWhichDoNotAcceptThem() throws Exception {
+        long compressed = SauceOnDemandMetrics.getCompressedBytes();
+        long uncompressed = SauceOnDemandMetrics.getUncompressedBytes();
+        AtomicLong written = new AtomicLong();
+        HttpResponse response = forward(response(written), "identity");
+
+        Assert.assertEquals(EntityUtils.toByteArray(response.getEntity()).length, 0);
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+        Assert.assertNull(response.getFirstHeader("Content-Length"));
+        Assert.assertEquals(written.get(), SCREENSHOT_SIZE);
+        Assert.assertEquals(SauceOnDemandMetrics.getCompressedBytes() - compressed, server.getGzippedScreenshotSize());
+        Assert.assertEquals(SauceOnDemandMetrics.getUncompressedBytes() - uncompressed, SCREENSHOT_SIZE);
+    }
+
+    @Test
+    public void compressedResponsesArePassedThroughToClientsWhichAcceptThem() throws Exception {
+        long uncompressed = SauceOnDemandMetrics.getUncompressedBytes();
+        AtomicLong written = new AtomicLong();
+        SauceOnDemandMetrics.commandStarted();
+        HttpResponse response = forward(response(written), "deflate;q=0.5, gzip");
+
+        Assert.assertEquals(response.getFirstHeader("Content-Encoding").getValue(), "gzip");
+        Assert.assertEquals(written.get(), server.getGzippedScreenshotSize());
+        Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), server.getGzippedScreenshotSize());
+        Assert.assertEquals(SauceOnDemandMetrics.getUncompressedBytes() - uncompressed, SCREENSHOT_SIZE);
+        Assert.assertTrue(SauceOnDemandMetrics.getCompressionRatio() > 1);
+        long bytesSaved = SauceOnDemandMetrics.toJSON().getJSONObject("compression").getLong("bytesSaved");
+        Assert.assertTrue(bytesSaved > 0);
+        StringBuilder prometheus = new StringBuilder();
+        SauceOnDemandMetrics.writePrometheus(prometheus);
+        Assert.assertTrue(prometheus.toString().contains(
+                "\nsauce_response_compression_bytes_saved_total " + bytesSaved + "\n"), prometheus.toString());
+    }
+
+    @Test
+    public void newSessionResponsesAreAlwaysDecompressed() throws Exception {
+        byte[] body = EntityUtils.toByteArray(forward(null, "gzip").getEntity());
+
+        Assert.assertEquals(body.length, SCREENSHOT_SIZE);
+    }
+
+    @Test
+    public void acceptedEncodingsAreParsed() {
+        Assert.assertTrue(SauceHttpClientFactory.accepts("gzip, deflate", "gzip"));
+        Assert.assertTrue(SauceHttpClientFactory.accepts("x-gzip", "gzip"));
+        Assert.assertTrue(SauceHttpClientFactory.accepts("*;q=0.1", "gzip"));
+        Assert.assertFalse(SauceHttpClientFactory.accepts("gzip;q=0", "gzip"));
+        Assert.assertFalse(SauceHttpClientFactory.accepts("identity", "gzip"));
+        Assert.assertFalse(SauceHttpClientFactory.accepts(null, "gzip"));
+    }
+
+    @Test
+    public void clientsAreCachedPerTimeouts() {
+        HttpClient client = factory.getGridHttpClient(10000, 60000);
+
+        Assert.assertSame(factory.getGridHttpClient(10000, 60000), client);
+        Assert.assertNotSame(factory.getGridHttpClient(10000, 30000), client);
+        Assert.assertEquals(factory.getMaxConnections(), THREADS + SauceHttpClientFactory.CONNECTION_HEADROOM);
+    }
+
+    @Test
+    public void requestsAreSentThroughAnAuthenticatedProxy() throws Exception {
+        HttpClient direct = factory.getGridHttpClient(10000, 60000);
+        StandInSauceRestServer egress = new StandInSauceRestServer(1, 0);
+        String port = egress.start().substring("http://localhost:".length());
+        egress.setProxyCredentials("proxy", "secret");
+        System.setProperty("http.proxyHost", "localhost");
+        System.setProperty("http.proxyPort", port);
+        System.setProperty("http.proxyUser", "proxy");
+        System.setProperty("http.proxyPassword", "secret");
+        try {
+            HttpClient client = factory.getGridHttpClient(10000, 60000);
+            HttpResponse response = client.execute(new HttpGet("http://sauce.invalid/wd/hub/session/1234/url"));
+            EntityUtils.consume(response.getEntity());
+
+            Assert.assertNotSame(client, direct);
+            Assert.assertEquals(response.getStatusLine().getStatusCode(), 200);
+            //challenged, then authenticated
+            Assert.assertEquals(egress.getRequestCount(), 2);
+        } finally {
+            System.clearProperty("http.proxyHost");
+            System.clearProperty("http.proxyPort");
+            System.clearProperty("http.proxyUser");
+            System.clearProperty("http.proxyPassword");
+            egress.stop();
+        }
+        Assert.assertNotSame(factory.getGridHttpClient(10000, 60000), direct);
+    }
+
+    @Test
+    public void httpsRequestsAreRoutedThroughTheHttpsProxy() throws Exception {
+        HttpHost httpProxy = new HttpHost("http-proxy", 3128);
+        HttpHost httpsProxy = new HttpHost("https-proxy", 3129);
+        HttpHost sauce = new HttpHost("ondemand.saucelabs.com", 443, "https");
+        HttpHost node = new HttpHost("ondemand.saucelabs.com", 80, "http");
+
+        Assert.assertEquals(route(new SauceHttpClientFactory.ProxyRoutePlanner(httpProxy, httpsProxy), sauce),
+                httpsProxy);
+        Assert.assertEquals(route(new SauceHttpClientFactory.ProxyRoutePlanner(httpProxy, httpsProxy), node),
+                httpProxy);
+        Assert.assertEquals(route(new SauceHttpClientFactory.ProxyRoutePlanner(httpProxy, null), sauce), httpProxy);
+        Assert.assertNull(route(new SauceHttpClientFactory.ProxyRoutePlanner(null, httpsProxy), node));
+    }
+
+    private static HttpHost route(HttpRoutePlanner planner, HttpHost target) throws Exception {
+        return planner.determineRoute(target, new HttpGet("/"), new BasicHttpContext()).getProxyHost();
+    }
+
+    /**
+     * Reads the response to a screenshot command the way the Grid does, streaming it to the target if it's set.
+     *
+     * @return the response, with the body read by the Grid as its entity
+     */
+    private HttpResponse forward(HttpServletResponse target, String acceptEncoding) throws Exception {
+        if (target != null) {
+            SauceHttpClientFactory.streamResponseTo(target);
+        }
+        try {
+            HttpClient client = factory.getGridHttpClient(10000, 60000);
+            HttpGet request = new HttpGet(url);
+            if (acceptEncoding != null) {
+                request.setHeader(SauceHttpClientFactory.ACCEPT_ENCODING, acceptEncoding);
+            }
+            HttpResponse response = client.execute(request);
+            InputStream in = response.getEntity().getContent();
+            try {
+                response.setEntity(new ByteArrayEntity(ByteStreams.toByteArray(in)));
+            } finally {
+                in.close();
+            }
+            return response;
+        } finally {
+            SauceHttpClientFactory.stopStreaming();
+        }
+    }
+
+    /**
+     * @return client response whose output stream discards the bytes written to it, counting them
+     */
+    private static HttpServletResponse response(final AtomicLong written) {
+        final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written.addAndGet(len);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(SauceHttpClientFactoryTest.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutputStream")) {
+                            return out;
+                        }
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -1,11 +1,18 @@
 package com.saucelabs.grid;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.saucelabs.grid.services.ConnectionPoolStatistics;
 import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
 import com.saucelabs.grid.services.SauceOnDemandService;
 import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
 import com.saucelabs.grid.utils.SauceLabServiceHardcodedResponses;
+import com.saucelabs.grid.utils.StandInSauceRestServer;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -43,6 +50,88 @@ public class SauceLabServiceTests {
     Assert.assertEquals(first.getLongVersion(), "9.0.8112.16421.");
   }
 
+  @Test
+  public void testConnectionsAreReused() throws Exception {
+    StandInSauceRestServer server = new StandInSauceRestServer(1, 0);
+    SauceOnDemandServiceImpl service = new SauceOnDemandServiceImpl(server.start());
+    try {
+      for (int i = 0; i < 10; i++) {
+        Assert.assertTrue(service.isSauceLabUp());
+      }
+      Assert.assertEquals(server.getRequestCount(), 10);
+      Assert.assertEquals(server.getConnectionCount(), 1, "requests should be sent on a kept-alive connection");
+      ConnectionPoolStatistics stats = service.getConnectionPoolStatistics();
+      Assert.assertEquals(stats.getLeased(), 0);
+      Assert.assertEquals(stats.getAvailable(), 1);
+      Assert.assertEquals(stats.getPending(), 0);
+      Assert.assertEquals(stats.getMax(), SauceOnDemandServiceImpl.DEFAULT_MAX_TOTAL_CONNECTIONS);
+      Assert.assertEquals(stats.getLeaseCount(), 10);
+    } finally {
+      service.close();
+      server.stop();
+    }
+  }
 
+  @Test
+  public void testSocketTimeoutIsApplied() throws Exception {
+    StandInSauceRestServer server = new StandInSauceRestServer(1, 1000);
+    SauceOnDemandServiceImpl service = new SauceOnDemandServiceImpl(server.start());
+    service.setSocketTimeout(100);
+    try {
+      service.isSauceLabUp();
+      Assert.fail("exception expected");
+    } catch (SauceOnDemandRestAPIException expected) {
+      //expected
+    } finally {
+      service.close();
+      server.stop();
+    }
+  }
 
+  @Test
+  public void testExpiredConnectionsAreNotReused() throws Exception {
+    StandInSauceRestServer server = new StandInSauceRestServer(1, 0);
+    SauceOnDemandServiceImpl service = new SauceOnDemandServiceImpl(server.start());
+    service.setKeepAlive(1);
+    try {
+      Assert.assertTrue(service.isSauceLabUp());
+      Thread.sleep(50);
+      Assert.assertTrue(service.isSauceLabUp());
+      Assert.assertEquals(server.getConnectionCount(), 2);
+    } finally {
+      service.close();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testConcurrentRequestsAreLimitedPerRoute() throws Exception {
+    StandInSauceRestServer server = new StandInSauceRestServer(1, 100);
+    final SauceOnDemandServiceImpl service = new SauceOnDemandServiceImpl(server.start());
+    service.setMaxConnectionsPerRoute(2);
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < 6; i++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws Exception {
+            return service.isSauceLabUp();
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        Assert.assertTrue(result.get());
+      }
+      Assert.assertEquals(server.getConnectionCount(), 2);
+      ConnectionPoolStatistics stats = service.getConnectionPoolStatistics();
+      Assert.assertEquals(stats.getLeased(), 0);
+      Assert.assertEquals(stats.getAvailable(), 2);
+      Assert.assertEquals(stats.getLeaseCount(), 6);
+      Assert.assertTrue(stats.getMaxLeaseWaitMillis() >= 50, "requests should have waited for a free connection");
+    } finally {
+      executor.shutdown();
+      service.close();
+      server.stop();
+    }
+  }
 }
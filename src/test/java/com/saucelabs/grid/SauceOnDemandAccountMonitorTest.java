@@ -0,0 +1,129 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SauceOnDemandAccountMonitorTest {
+
+    private StandInSauceRestServer server;
+    private SauceOnDemandServiceImpl service;
+    private SauceOnDemandUsage usage;
+    private SauceOnDemandAccountMonitor monitor;
+
+    @BeforeMethod
+    public void startServer() throws Exception {
+        server = new StandInSauceRestServer(1, 0);
+        service = new SauceOnDemandServiceImpl(server.start());
+        usage = new SauceOnDemandUsage();
+        monitor = new SauceOnDemandAccountMonitor(service, "user", "key", usage, 5);
+    }
+
+    @AfterMethod
+    public void stopServer() {
+        monitor.stop();
+        service.close();
+        server.stop();
+    }
+
+    @Test
+    public void usesInitialLimitUntilPolled() {
+        Assert.assertEquals(monitor.getLimit(), 5);
+        Assert.assertEquals(monitor.getHeadroom(), 5);
+    }
+
+    @Test
+    public void limitChangesArePickedUp() {
+        monitor.refresh();
+        Assert.assertEquals(monitor.getLimit(), 10);
+
+        server.setConcurrency(3);
+        monitor.refresh();
+        Assert.assertEquals(monitor.getLimit(), 3);
+        Assert.assertEquals(monitor.getHeadroom(), 3);
+    }
+
+    @Test
+    public void sessionsStartedElsewhereReduceHeadroom() {
+        usage.sessionStarted("firefox");
+        usage.sessionStarted("firefox");
+        server.setActiveSessions(6);
+        monitor.refresh();
+
+        Assert.assertEquals(monitor.getOtherSessions(), 4);
+        Assert.assertEquals(monitor.getHeadroom(), 4);
+
+        usage.sessionStarted("chrome");
+        usage.sessionStarted("chrome");
+        usage.sessionStarted("chrome");
+        usage.sessionStarted("chrome");
+        Assert.assertEquals(monitor.getHeadroom(), 0);
+    }
+
+    @Test
+    public void failedPollRetainsPreviousLimits() {
+        server.setActiveSessions(2);
+        monitor.refresh();
+        server.stop();
+        monitor.refresh();
+
+        Assert.assertEquals(monitor.getLimit(), 10);
+        Assert.assertEquals(monitor.getHeadroom(), 8);
+    }
+
+    @Test
+    public void unlimitedAccountAlwaysHasHeadroom() {
+        server.setConcurrency(SauceOnDemandAccountMonitor.UNLIMITED);
+        server.setActiveSessions(100);
+        monitor.refresh();
+        Assert.assertEquals(monitor.getHeadroom(), Integer.MAX_VALUE);
+        Assert.assertEquals(SauceOnDemandRemoteProxy.toSessions(monitor.getLimit()),
+                SauceOnDemandRemoteProxy.DEFAULT_MAX_SESSIONS);
+    }
+
+    @Test
+    public void concurrentReservationsDoNotExceedHeadroom() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < 16; t++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    start.await();
+                    int reserved = 0;
+                    for (int i = 0; i < 100; i++) {
+                        if (monitor.tryReserve()) {
+                            reserved++;
+                        }
+                    }
+                    return reserved;
+                }
+            }));
+        }
+        start.countDown();
+        int reserved = 0;
+        for (Future<Integer> result : results) {
+            reserved += result.get();
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(reserved, 5);
+        Assert.assertEquals(usage.getTotal(), 5);
+        Assert.assertEquals(monitor.getHeadroom(), 0);
+
+        monitor.release();
+        Assert.assertTrue(monitor.tryReserve());
+        Assert.assertFalse(monitor.tryReserve());
+    }
+}
@@ -0,0 +1,114 @@
+package com.saucelabs.grid;
+
+import com.google.gson.JsonObject;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+public class SauceOnDemandAccountPoolTest {
+
+    private static SauceOnDemandAccountMonitor account(String userName, int limit) {
+        return new SauceOnDemandAccountMonitor(null, userName, userName + "-key",
+                new SauceOnDemandUsage(), limit);
+    }
+
+    @Test
+    public void throughputIsSumOfAccountLimits() {
+        SauceOnDemandAccountPool pool = new SauceOnDemandAccountPool(Arrays.asList(account("a", 2), account("b", 3)));
+        Assert.assertEquals(pool.getSessions(), 5);
+
+        Map<String, Integer> assigned = new HashMap<String, Integer>();
+        for (int i = 0; i < 5; i++) {
+            SauceOnDemandAccountMonitor account = pool.acquire();
+            Assert.assertNotNull(account, "session " + i + " should have been assigned");
+            Integer count = assigned.get(account.getUserName());
+            assigned.put(account.getUserName(), count == null ? 1 : count + 1);
+        }
+        Assert.assertNull(pool.acquire(), "no account should have headroom");
+        Assert.assertEquals(assigned.get("a").intValue(), 2);
+        Assert.assertEquals(assigned.get("b").intValue(), 3);
+    }
+
+    @Test
+    public void sessionsGoToLeastLoadedAccount() {
+        SauceOnDemandAccountMonitor small = account("small", 2);
+        SauceOnDemandAccountMonitor large = account("large", 10);
+        SauceOnDemandAccountPool pool = new SauceOnDemandAccountPool(Arrays.asList(small, large));
+
+        List<SauceOnDemandAccountMonitor> sessions = new ArrayList<SauceOnDemandAccountMonitor>();
+        for (int i = 0; i < 6; i++) {
+            sessions.add(pool.acquire());
+        }
+        Assert.assertEquals(small.getUsage().getTotal(), 1);
+        Assert.assertEquals(large.getUsage().getTotal(), 5);
+
+        for (SauceOnDemandAccountMonitor account : sessions) {
+            pool.release(account);
+        }
+        Assert.assertEquals(small.getUsage().getTotal(), 0);
+        Assert.assertEquals(large.getUsage().getTotal(), 0);
+    }
+
+    @Test
+    public void accountsAreReadFromConfiguration() {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_USER_NAME, "primary");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ACCESS_KEY, "primary-key");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ACCOUNTS,
+                "[{\"sauceUserName\" : \"second\", \"sauceAccessKey\" : \"second-key\"},"
+                        + "{\"sauceUserName\" : \"primary\", \"sauceAccessKey\" : \"primary-key\"},"
+                        + "{\"sauceUserName\" : \"incomplete\"}]");
+
+        List<String[]> accounts = SauceOnDemandRemoteProxy.getAccounts(request);
+        Assert.assertEquals(accounts.size(), 2);
+        Assert.assertEquals(accounts.get(0), new String[]{"primary", "primary-key"});
+        Assert.assertEquals(accounts.get(1), new String[]{"second", "second-key"});
+    }
+
+    @Test
+    public void limitRaisedAfterRegistrationIsAdmitted() {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ACCOUNT_POLL_INTERVAL, "3600000");
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        FutureTask<Integer> limit = new FutureTask<Integer>(new Callable<Integer>() {
+            public Integer call() {
+                return 5;
+            }
+        });
+        limit.run();
+        Registry registry = Registry.newInstance();
+        SauceOnDemandRemoteProxy proxy = new SauceOnDemandRemoteProxy(new SauceOnDemandProxyConfiguration(request,
+                new JsonObject(), null, null, Collections.singletonList(new String[]{"user", "key"}),
+                Collections.<Future<Integer>>singletonList(limit), null, null), registry);
+        try {
+            proxy.getAccounts().stop();
+            //the failed poll may have opened the shared circuit breaker
+            SauceOnDemandRemoteProxy.getCircuitBreaker().recordSuccess();
+            Assert.assertEquals(proxy.getTestSlots().size(), SauceOnDemandRemoteProxy.DEFAULT_MAX_SESSIONS);
+            Assert.assertEquals(proxy.getMaxNumberOfConcurrentTestSessions(), 5);
+
+            proxy.getAccounts().getAccounts().get(0).setLimit(12);
+            Assert.assertEquals(proxy.getMaxNumberOfConcurrentTestSessions(), 12);
+            for (int i = 0; i < 12; i++) {
+                Assert.assertNotNull(proxy.getAccounts().acquire(), "session " + i + " should have been admitted");
+            }
+            Assert.assertNull(proxy.getAccounts().acquire());
+        } finally {
+            proxy.getRouter().stop();
+            registry.stop();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.saucelabs.grid;
+
+import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares finding the registered capabilities which match a request using a linear scan with
+ * {@link DefaultCapabilityMatcher} (as the Grid does across the proxy's slots) against the capability index.
+ * <p/>
+ * Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandCapabilityIndexBenchmarkTest {
+
+    /**
+     * Number of capability checks performed by each measurement of the scan.
+     */
+    private static final int OPERATIONS = 2000000;
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][]{{10}, {100}, {1000}};
+    }
+
+    @Test(dataProvider = "sizes", groups = {"benchmark"})
+    public void indexedLookupIsFasterThanScan(int size) {
+        final DefaultCapabilityMatcher matcher = new DefaultCapabilityMatcher();
+        final List<Map<String, Object>> registered = SauceOnDemandCapabilityIndexTest.capabilities(size);
+        final SauceOnDemandCapabilityIndex<Map<String, Object>> index = new SauceOnDemandCapabilityIndex<Map<String, Object>>(matcher);
+        for (Map<String, Object> capability : registered) {
+            index.add(capability, capability);
+        }
+        final Map<String, Object> requested = new HashMap<String, Object>();
+        requested.put("browserName", "chrome");
+        requested.put("version", "5");
+        requested.put("platform", "WINDOWS");
+
+        Runnable scan = new Runnable() {
+            public void run() {
+                boolean found = false;
+                for (Map<String, Object> capability : registered) {
+                    if (matcher.matches(capability, requested)) {
+                        found = true;
+                    }
+                }
+                Assert.assertTrue(found || registered.size() < 10);
+            }
+        };
+        Runnable indexed = new Runnable() {
+            public void run() {
+                index.matches(requested);
+            }
+        };
+        int iterations = OPERATIONS / size;
+        long scanNanos = measure(scan, iterations);
+        long indexNanos = measure(indexed, iterations);
+        System.out.println("Matching against " + size + " capabilities: scan " + scanNanos + "ns/op, index "
+                + indexNanos + "ns/op");
+        if (size >= 100) {
+            Assert.assertTrue(indexNanos < scanNanos);
+        }
+    }
+
+    private static long measure(Runnable operation, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+}
@@ -0,0 +1,64 @@
+package com.saucelabs.grid;
+
+import org.openqa.grid.internal.utils.DefaultCapabilityMatcher;
+import org.openqa.selenium.Platform;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SauceOnDemandCapabilityIndexTest {
+
+    private static final String[] BROWSERS = {"firefox", "chrome", "internet explorer", "safari", null};
+    private static final Object[] VERSIONS = {"9", "12", "", "ANY", "*", null, 12};
+    private static final Object[] PLATFORMS = {"XP", "WINDOWS", "LINUX", "MAC", "ANY", Platform.VISTA, null};
+
+    static List<Map<String, Object>> capabilities(int count) {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        String[] platforms = {"XP", "VISTA", "LINUX", "MAC"};
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> capability = new HashMap<String, Object>();
+            capability.put("browserName", BROWSERS[i % (BROWSERS.length - 1)]);
+            capability.put("version", String.valueOf(i % 25));
+            capability.put("platform", platforms[(i / 25) % platforms.length]);
+            result.add(capability);
+        }
+        return result;
+    }
+
+    @Test
+    public void matchesSameCapabilitiesAsDefaultMatcher() {
+        DefaultCapabilityMatcher matcher = new DefaultCapabilityMatcher();
+        List<Map<String, Object>> registered = capabilities(200);
+        SauceOnDemandCapabilityIndex<Map<String, Object>> index = new SauceOnDemandCapabilityIndex<Map<String, Object>>(matcher);
+        for (Map<String, Object> capability : registered) {
+            index.add(capability, capability);
+        }
+        Assert.assertEquals(index.size(), 200);
+
+        for (String browser : BROWSERS) {
+            for (Object version : VERSIONS) {
+                for (Object platform : PLATFORMS) {
+                    Map<String, Object> requested = new HashMap<String, Object>();
+                    requested.put("browserName", browser);
+                    requested.put("version", version);
+                    requested.put("platform", platform);
+
+                    List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+                    for (Map<String, Object> capability : registered) {
+                        if (matcher.matches(capability, requested)) {
+                            expected.add(capability);
+                        }
+                    }
+                    List<Map<String, Object>> actual = index.matches(requested);
+                    Assert.assertEquals(actual.size(), expected.size(), requested.toString());
+                    Assert.assertTrue(actual.containsAll(expected), requested.toString());
+                    Assert.assertEquals(index.hasMatch(requested), !expected.isEmpty(), requested.toString());
+                }
+            }
+        }
+    }
+}
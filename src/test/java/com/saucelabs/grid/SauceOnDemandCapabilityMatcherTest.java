@@ -0,0 +1,137 @@
+package com.saucelabs.grid;
+
+import com.google.gson.JsonObject;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.common.exception.RemoteException;
+import org.openqa.grid.common.exception.RemoteNotReachableException;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+public class SauceOnDemandCapabilityMatcherTest {
+
+    private Registry registry;
+    private SauceOnDemandRemoteProxy proxy;
+
+    @BeforeMethod
+    public void createProxy() {
+        RegistrationRequest request = request();
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, false);
+        registry = Registry.newInstance();
+        proxy = new SauceOnDemandRemoteProxy(request, registry);
+    }
+
+    @AfterMethod
+    public void stopRegistry() {
+        registry.stop();
+    }
+
+    @Test
+    public void repeatedRequestsAreMemoized() {
+        SauceOnDemandCapabilityMatcher matcher = proxy.getCapabilityHelper();
+        Assert.assertTrue(matcher.hasMatch(requested("firefox", "ANY")));
+        Assert.assertTrue(matcher.hasMatch(requested("firefox", "ANY")));
+        Assert.assertFalse(matcher.hasMatch(requested("safari", null)));
+
+        Assert.assertEquals(matcher.getMisses(), 2);
+        Assert.assertEquals(matcher.getHits(), 1);
+        Assert.assertEquals(matcher.getMatchingSlots(requested("firefox", null)).size(),
+                matcher.getMatchingSlots(requested("firefox", "")).size());
+    }
+
+    @Test
+    public void memoIsDiscardedWhenCapabilitiesChange() {
+        SauceOnDemandCapabilityMatcher matcher = proxy.getCapabilityHelper();
+        Assert.assertFalse(matcher.hasMatch(requested("safari", null)));
+        Assert.assertEquals(matcher.getMemoSize(), 1);
+
+        proxy.setShouldHandleUnspecifiedCapabilities(true);
+        Assert.assertTrue(matcher.hasMatch(requested("safari", null)));
+
+        proxy.setShouldHandleUnspecifiedCapabilities(false);
+        Assert.assertFalse(matcher.hasMatch(requested("safari", null)));
+        Assert.assertEquals(matcher.getMisses(), 2, "memo should have been discarded");
+        Assert.assertEquals(matcher.getHits(), 0);
+    }
+
+    @Test
+    public void memoIsBounded() {
+        SauceOnDemandCapabilityMatcher matcher = new SauceOnDemandCapabilityMatcher(proxy, 2);
+        matcher.hasMatch(requested("firefox", "1"));
+        matcher.hasMatch(requested("firefox", "2"));
+        matcher.hasMatch(requested("firefox", "1"));
+        matcher.hasMatch(requested("firefox", "3"));
+        Assert.assertEquals(matcher.getMemoSize(), 2);
+
+        matcher.hasMatch(requested("firefox", "1"));
+        Assert.assertEquals(matcher.getHits(), 2, "most recently used entry should have been retained");
+    }
+
+    @Test
+    public void sauceSlotsFormSinglePool() {
+        //sauce-ondemand.json makes the proxy Sauce-backed
+        SauceOnDemandRemoteProxy sauce = new SauceOnDemandRemoteProxy(new SauceOnDemandProxyConfiguration(request(),
+                new JsonObject(), null, null, Collections.<String[]>emptyList(),
+                Collections.<Future<Integer>>emptyList(), null, null), registry);
+        Assert.assertEquals(sauce.getSupportedCapabilities().size(), 2);
+        Assert.assertEquals(sauce.getTestSlots().size(), 5);
+        Assert.assertEquals(sauce.getCapabilityHelper().getMatchingSlots(requested("chrome", null)).size(), 5);
+        Assert.assertTrue(sauce.getCapabilityHelper().getMatchingSlots(requested("safari", null)).isEmpty());
+    }
+
+    @Test
+    public void selectedBrowsersWithoutLimitGetDefaultPool() {
+        SauceOnDemandRemoteProxy sauce = new SauceOnDemandRemoteProxy(new SauceOnDemandProxyConfiguration(request(),
+                new JsonObject(), new String[]{"unknown"}, null, Collections.<String[]>emptyList(),
+                Collections.<Future<Integer>>emptyList(), null, null), registry);
+        Assert.assertEquals(sauce.getTestSlots().size(), SauceOnDemandRemoteProxy.DEFAULT_MAX_SESSIONS);
+    }
+
+    @Test
+    public void localSlotsAreKeptAsRegistered() {
+        Assert.assertEquals(proxy.getSupportedCapabilities().size(), 2);
+        Assert.assertEquals(proxy.getTestSlots().size(), 8);
+        Assert.assertEquals(proxy.getCapabilityHelper().getMatchingSlots(requested("chrome", null)).size(), 3);
+        Assert.assertEquals(proxy.getCapabilityHelper().getMatchingSlots(requested("firefox", null)).size(), 5);
+        Assert.assertTrue(proxy.getCapabilityHelper().getMatchingSlots(requested("safari", null)).isEmpty());
+    }
+
+    @Test
+    public void downProxyIsNotOfferedSessions() {
+        Assert.assertNotNull(proxy.getNewSession(requested("firefox", null)));
+
+        RemoteException unreachable = new RemoteNotReachableException("node is down");
+        proxy.onEvent(Collections.singletonList(unreachable), unreachable);
+        Assert.assertTrue(proxy.isDown());
+        Assert.assertNull(proxy.getNewSession(requested("firefox", null)));
+    }
+
+    private static RegistrationRequest request() {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(RegistrationRequest.MAX_SESSION, 5);
+        request.addDesiredCapability(capability(DesiredCapabilities.firefox(), 5));
+        request.addDesiredCapability(capability(DesiredCapabilities.chrome(), 3));
+        return request;
+    }
+
+    private static DesiredCapabilities capability(DesiredCapabilities capability, int instances) {
+        capability.setCapability(RegistrationRequest.MAX_INSTANCES, instances);
+        return capability;
+    }
+
+    private static Map<String, Object> requested(String browserName, String version) {
+        Map<String, Object> requested = new HashMap<String, Object>();
+        requested.put("browserName", browserName);
+        requested.put("version", version);
+        return requested;
+    }
+}
@@ -0,0 +1,189 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.CircuitBreakingSauceOnDemandService;
+import com.saucelabs.grid.services.SauceOnDemandCircuitBreaker;
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import com.saucelabs.grid.services.SauceOnDemandStatusMonitor;
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SauceOnDemandCircuitBreakerTest {
+
+    private static class FailingService extends SauceOnDemandServiceImpl {
+
+        private volatile boolean fail = true;
+        private volatile int calls;
+
+        @Override
+        public boolean isSauceLabUp() throws SauceOnDemandRestAPIException {
+            calls++;
+            if (fail) {
+                throw new SauceOnDemandRestAPIException("raw response:none", new RuntimeException("timed out"));
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void opensAfterThresholdAndRejectsCalls() throws Exception {
+        SauceOnDemandCircuitBreaker breaker = new SauceOnDemandCircuitBreaker();
+        breaker.setFailureThreshold(3);
+        breaker.setProbeInterval(60000);
+        FailingService delegate = new FailingService();
+        CircuitBreakingSauceOnDemandService service = new CircuitBreakingSauceOnDemandService(delegate, breaker);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                service.isSauceLabUp();
+                Assert.fail("exception expected");
+            } catch (SauceOnDemandRestAPIException expected) {
+                //expected
+            }
+        }
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN);
+        Assert.assertFalse(breaker.isCallPermitted());
+
+        try {
+            service.isSauceLabUp();
+            Assert.fail("exception expected");
+        } catch (SauceOnDemandRestAPIException expected) {
+            //expected
+        }
+        Assert.assertEquals(delegate.calls, 3, "call should have been rejected without reaching Sauce");
+    }
+
+    @Test
+    public void rejectedCredentialsDoNotOpenCircuit() throws Exception {
+        StandInSauceRestServer server = new StandInSauceRestServer(1, 0);
+        SauceOnDemandServiceImpl delegate = new SauceOnDemandServiceImpl(server.start());
+        try {
+            server.setAccountStatus(401);
+            SauceOnDemandCircuitBreaker breaker = new SauceOnDemandCircuitBreaker();
+            breaker.setFailureThreshold(3);
+            CircuitBreakingSauceOnDemandService service = new CircuitBreakingSauceOnDemandService(delegate, breaker);
+
+            for (int i = 0; i < 10; i++) {
+                try {
+                    service.getMaxiumumSessions("user", "revoked");
+                    Assert.fail("exception expected");
+                } catch (SauceOnDemandRestAPIException expected) {
+                    Assert.assertEquals(expected.getStatusCode(), 401);
+                }
+            }
+            Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.CLOSED);
+
+            server.setAccountStatus(503);
+            for (int i = 0; i < 3; i++) {
+                try {
+                    service.getMaxiumumSessions("user", "key");
+                    Assert.fail("exception expected");
+                } catch (SauceOnDemandRestAPIException expected) {
+                    //expected
+                }
+            }
+            Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN);
+        } finally {
+            delegate.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void probeClosesCircuitOnSuccess() throws Exception {
+        SauceOnDemandCircuitBreaker breaker = new SauceOnDemandCircuitBreaker();
+        breaker.setFailureThreshold(1);
+        breaker.setProbeInterval(0);
+        FailingService delegate = new FailingService();
+        CircuitBreakingSauceOnDemandService service = new CircuitBreakingSauceOnDemandService(delegate, breaker);
+
+        try {
+            service.isSauceLabUp();
+        } catch (SauceOnDemandRestAPIException expected) {
+            //expected
+        }
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN);
+
+        delegate.fail = false;
+        Assert.assertTrue(service.isSauceLabUp());
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void failedProbeReopensCircuit() {
+        SauceOnDemandCircuitBreaker breaker = new SauceOnDemandCircuitBreaker();
+        breaker.setFailureThreshold(1);
+        breaker.setProbeInterval(0);
+        breaker.recordFailure();
+
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.HALF_OPEN);
+        Assert.assertFalse(breaker.allowRequest(), "only a single probe should be allowed");
+
+        breaker.recordFailure();
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void unusedProbeIsReleased() {
+        SauceOnDemandCircuitBreaker breaker = new SauceOnDemandCircuitBreaker();
+        breaker.setFailureThreshold(1);
+        breaker.setProbeInterval(0);
+        breaker.recordFailure();
+
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.releaseProbe();
+        Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN);
+        Assert.assertTrue(breaker.allowRequest(), "another caller should be able to probe");
+    }
+
+    @Test
+    public void singleNewSessionProbesOpenCircuit() {
+        SauceOnDemandCircuitBreaker breaker = SauceOnDemandRemoteProxy.getCircuitBreaker();
+        SauceOnDemandStatusMonitor monitor = SauceOnDemandRemoteProxy.getStatusMonitor();
+        Registry registry = Registry.newInstance();
+        try {
+            RegistrationRequest request = new RegistrationRequest();
+            request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+            request.getConfiguration().put(RegistrationRequest.MAX_SESSION, 1);
+            request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_CIRCUIT_FAILURE_THRESHOLD, 1);
+            request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_CIRCUIT_PROBE_INTERVAL, 0);
+            request.addDesiredCapability(DesiredCapabilities.firefox());
+            SauceOnDemandRemoteProxy proxy = new SauceOnDemandRemoteProxy(request, registry);
+            //stop polling, so that a status call isn't allowed through as the probe
+            monitor.stop();
+            monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.ASSUME_AVAILABLE);
+            monitor.setMaxAge(-1);
+            Map<String, Object> firefox = new HashMap<String, Object>(DesiredCapabilities.firefox().asMap());
+
+            breaker.recordFailure();
+            TestSession probe = proxy.getNewSession(firefox);
+            Assert.assertNotNull(probe);
+            Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.HALF_OPEN);
+            Assert.assertNull(proxy.getNewSession(firefox), "only a single session should probe the circuit");
+
+            proxy.afterSession(probe);
+            Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN,
+                    "a probe which wasn't started on Sauce should be released");
+
+            Assert.assertNull(proxy.getNewSession(firefox));
+            Assert.assertEquals(breaker.getState(), SauceOnDemandCircuitBreaker.State.OPEN,
+                    "a probe which couldn't be assigned a slot should be released");
+        } finally {
+            breaker.recordSuccess();
+            breaker.setFailureThreshold(SauceOnDemandCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+            breaker.setProbeInterval(SauceOnDemandCircuitBreaker.DEFAULT_PROBE_INTERVAL);
+            monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.LAST_KNOWN);
+            monitor.setMaxAge(SauceOnDemandStatusMonitor.DEFAULT_MAX_AGE);
+            registry.stop();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class SauceOnDemandCommandStatsTest {
+
+    @Test
+    public void idsAreReplacedInTemplates() {
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session"), "/session");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/url"), "/session/:sessionId/url");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/element/0.52-1/click"),
+                "/session/:sessionId/element/:id/click");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/element/0.52-1/element"),
+                "/session/:sessionId/element/:id/element");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/element/active"),
+                "/session/:sessionId/element/active");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/element/7/attribute/href"),
+                "/session/:sessionId/element/:id/attribute/:name");
+        Assert.assertEquals(SauceOnDemandCommandStats.getTemplate("/session/4f3e-21/window/current/size"),
+                "/session/:sessionId/window/current/size");
+    }
+
+    @Test
+    public void commandTypesAreBounded() {
+        SauceOnDemandCommandStats stats = new SauceOnDemandCommandStats(2, 10);
+        stats.record(null, "GET /session/:sessionId/url", 1000, 0, 10, false);
+        stats.record(null, "POST /session/:sessionId/url", 1000, 20, 10, false);
+        stats.record(null, "GET /session/:sessionId/title", 1000, 0, 10, false);
+        stats.record(null, "GET /session/:sessionId/source", 1000, 0, 10, false);
+
+        Assert.assertEquals(stats.getCommandTypes().size(), 3);
+        Assert.assertEquals(stats.getCommandTypes().get(SauceOnDemandCommandStats.OTHER_COMMAND_TYPE).getCalls(), 2);
+        Assert.assertEquals(stats.getCommandTypeStats("GET /session/:sessionId/url").getCalls(), 1);
+    }
+
+    @Test
+    public void leastRecentlyUsedSessionIsDiscarded() {
+        SauceOnDemandCommandStats stats = new SauceOnDemandCommandStats(10, 2);
+        SauceOnDemandCommandStats.Stats first = stats.getSessionStats("first");
+        stats.getSessionStats("second");
+        Assert.assertSame(stats.getSessionStats("first"), first);
+        stats.getSessionStats("third");
+
+        Assert.assertEquals(stats.getSessions().keySet().toString(), "[first, third]");
+    }
+
+    @Test
+    public void commandsAreAggregatedPerTypeAndSession() throws Exception {
+        SauceOnDemandCommandStats stats = new SauceOnDemandCommandStats();
+        SauceOnDemandCommandStats.Stats session = stats.getSessionStats("internal");
+        session.setJobId("job");
+        String click = "POST /session/:sessionId/element/:id/click";
+        stats.record(session, click, TimeUnit.MILLISECONDS.toNanos(100), 2, 50, false);
+        stats.record(session, click, TimeUnit.MILLISECONDS.toNanos(100), 2, 120, true);
+        stats.recordFailure(session, "GET /session/:sessionId/screenshot");
+
+        SauceOnDemandCommandStats.Stats clicks = stats.getCommandTypeStats(click);
+        Assert.assertEquals(clicks.getCalls(), 2);
+        Assert.assertEquals(clicks.getErrors(), 1);
+        Assert.assertEquals(clicks.getRequestBytes(), 4);
+        Assert.assertEquals(clicks.getResponseBytes(), 170);
+        Assert.assertEquals(session.getCalls(), 3);
+        Assert.assertEquals(session.getErrors(), 2);
+
+        JSONObject json = stats.toJSON();
+        Assert.assertEquals(json.getJSONObject("commandTypes").getJSONObject(click).getDouble("p50"), 131.072);
+        Assert.assertEquals(json.getJSONObject("sessions").getJSONObject("internal").getString("jobId"), "job");
+        StringBuilder builder = new StringBuilder();
+        stats.writePrometheus(builder);
+        Assert.assertTrue(builder.toString().contains("sauce_command_errors_total{command=\"" + click + "\"} 1\n"),
+                builder.toString());
+    }
+
+    @Test
+    public void responseStatusAndSizeAreRecorded() throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Internal Server Error");
+        response.setEntity(new StringEntity("{\"status\":7,\"value\":{}}"));
+        SauceOnDemandMetrics.commandStarted();
+        SauceHttpClientFactory.RESPONSE_INTERCEPTOR.process(response, null);
+        EntityUtils.toByteArray(response.getEntity());
+
+        Assert.assertEquals(SauceOnDemandMetrics.getResponseStatus(), 500);
+        Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), 23);
+        SauceOnDemandMetrics.commandStarted();
+        Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), 0);
+    }
+
+    @Test
+    public void responsesReceivedByTheGridClientAreRecorded() throws Exception {
+        StandInSauceRestServer server = new StandInSauceRestServer(1, 0);
+        server.setScreenshotSize(2048);
+        String url = server.start() + "/wd/hub/session/1234/screenshot";
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, false);
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        Registry registry = Registry.newInstance();
+        try {
+            SauceHttpClientFactory factory = new SauceHttpClientFactory(new SauceOnDemandRemoteProxy(request, registry));
+            SauceOnDemandMetrics.commandStarted();
+            HttpResponse response = factory.getGridHttpClient(10000, 60000).execute(new HttpGet(url));
+            EntityUtils.toByteArray(response.getEntity());
+
+            Assert.assertEquals(SauceOnDemandMetrics.getResponseStatus(), 200);
+            Assert.assertEquals(SauceOnDemandMetrics.getResponseBytes(), 2048);
+        } finally {
+            registry.stop();
+            server.stop();
+        }
+    }
+}
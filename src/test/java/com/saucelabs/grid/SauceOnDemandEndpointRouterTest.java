@@ -0,0 +1,107 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.openqa.grid.common.RegistrationRequest;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+
+public class SauceOnDemandEndpointRouterTest {
+
+    private StandInSauceRestServer fastServer;
+    private StandInSauceRestServer slowServer;
+    private SauceOnDemandEndpoint fast;
+    private SauceOnDemandEndpoint slow;
+
+    @BeforeMethod
+    public void startServers() throws Exception {
+        fastServer = new StandInSauceRestServer(1, 0);
+        slowServer = new StandInSauceRestServer(1, 200);
+        fast = new SauceOnDemandEndpoint(new URL(fastServer.start()), 1);
+        slow = new SauceOnDemandEndpoint(new URL(slowServer.start()), 1);
+    }
+
+    @AfterMethod
+    public void stopServers() {
+        fastServer.stop();
+        slowServer.stop();
+    }
+
+    /**
+     * Creates a 'session' through the endpoint selected by the router, recording the latency of the request as the
+     * proxy does for new session requests, and keeps it running.
+     */
+    private static SauceOnDemandEndpoint createSession(SauceOnDemandEndpointRouter router) throws IOException {
+        SauceOnDemandEndpoint endpoint = router.acquire();
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint.getUrl(), "/rest/v1/info/status").openConnection();
+        InputStream in = connection.getInputStream();
+        while (in.read() != -1) {
+            //drain the response
+        }
+        in.close();
+        endpoint.recordSession((System.nanoTime() - start) / 1000000d);
+        return endpoint;
+    }
+
+    @Test
+    public void sessionsAreRoutedToLowerLatencyEndpoint() throws Exception {
+        SauceOnDemandEndpointRouter router = new SauceOnDemandEndpointRouter(Arrays.asList(slow, fast));
+        router.probe();
+        Assert.assertTrue(slow.isHealthy());
+        Assert.assertTrue(fast.isHealthy());
+
+        for (int i = 0; i < 10; i++) {
+            SauceOnDemandEndpoint endpoint = createSession(router);
+            endpoint.sessionFinished();
+        }
+        Assert.assertTrue(slow.getSessionLatency() > fast.getSessionLatency());
+        Assert.assertSame(router.select(), fast);
+    }
+
+    @Test
+    public void unreachableEndpointIsAvoided() throws Exception {
+        SauceOnDemandEndpointRouter router = new SauceOnDemandEndpointRouter(Arrays.asList(fast, slow));
+        fastServer.stop();
+        router.probe();
+
+        Assert.assertFalse(fast.isHealthy());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertSame(router.acquire(), slow);
+        }
+    }
+
+    @Test
+    public void runningSessionsAreSpreadByWeight() throws Exception {
+        SauceOnDemandEndpoint light = new SauceOnDemandEndpoint(fast.getUrl(), 1);
+        SauceOnDemandEndpoint heavy = new SauceOnDemandEndpoint(fast.getUrl(), 3);
+        SauceOnDemandEndpointRouter router = new SauceOnDemandEndpointRouter(Arrays.asList(light, heavy));
+        for (int i = 0; i < 8; i++) {
+            router.acquire();
+        }
+        Assert.assertEquals(light.getSessions(), 2);
+        Assert.assertEquals(heavy.getSessions(), 6);
+    }
+
+    @Test
+    public void endpointsAreReadFromConfiguration() throws Exception {
+        RegistrationRequest request = new RegistrationRequest();
+        URL defaultUrl = new URL("http://ondemand.saucelabs.com:80");
+        Assert.assertEquals(SauceOnDemandRemoteProxy.getEndpoints(request, defaultUrl).get(0).getUrl(), defaultUrl);
+
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENDPOINTS,
+                "[{\"url\" : \"http://localhost:4445\", \"weight\" : 2}, {\"url\" : \"http://localhost:4446\"}]");
+        List<SauceOnDemandEndpoint> endpoints = SauceOnDemandRemoteProxy.getEndpoints(request, defaultUrl);
+        Assert.assertEquals(endpoints.size(), 2);
+        Assert.assertEquals(endpoints.get(0).getWeight(), 2);
+        Assert.assertEquals(endpoints.get(1).getUrl(), new URL("http://localhost:4446"));
+    }
+}
@@ -0,0 +1,115 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the threads held and the p99 latency of commands forwarded to a stand-in Sauce server with injected
+ * latency, at increasing numbers of concurrent sessions.  The Grid forwards each command on the hub's servlet thread
+ * and blocks it until Sauce responds, so the threads held grow with the commands in flight.
+ * <p/>
+ * Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandForwardingBenchmarkTest {
+
+    private static final int[] SESSIONS = {50, 200, 500};
+    private static final long DELAY = 200;
+    private static final int COMMANDS_PER_SESSION = 5;
+
+    private StandInSauceRestServer server;
+    private String url;
+    private Registry registry;
+    private SauceHttpClientFactory factory;
+
+    @BeforeClass(groups = {"benchmark"})
+    public void start() throws Exception {
+        server = new StandInSauceRestServer(1, DELAY);
+        url = server.start() + "/wd/hub/session/1234/title";
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(RegistrationRequest.MAX_SESSION, SESSIONS[SESSIONS.length - 1]);
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, false);
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        registry = Registry.newInstance();
+        factory = new SauceHttpClientFactory(new SauceOnDemandRemoteProxy(request, registry));
+    }
+
+    @AfterClass(groups = {"benchmark"})
+    public void stop() {
+        registry.stop();
+        server.stop();
+    }
+
+    public void threadsGrowWithCommandsInFlight() throws Exception {
+        for (int sessions : SESSIONS) {
+            SauceOnDemandHistogram latency = new SauceOnDemandHistogram("forward", "Forwarding latency");
+            int threads = forward(sessions, latency);
+            double p99 = latency.getQuantile(0.99);
+            System.out.println("Forwarding with " + sessions + " concurrent sessions and " + DELAY
+                    + "ms Sauce latency: threads=" + threads + ", p99=" + p99 + "ms");
+            Assert.assertEquals(latency.getCount(), (long) sessions * COMMANDS_PER_SESSION);
+            Assert.assertTrue(threads > sessions * 9 / 10, "expected a thread per command in flight");
+        }
+    }
+
+    /**
+     * Runs a thread per session, each of which forwards commands one after another, as the hub's servlet threads do.
+     *
+     * @return the maximum number of threads blocked on Sauce at once
+     */
+    private int forward(int sessions, final SauceOnDemandHistogram latency) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < sessions; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int command = 0; command < COMMANDS_PER_SESSION; command++) {
+                        long started = System.nanoTime();
+                        int current = inFlight.incrementAndGet();
+                        int max;
+                        while (current > (max = maxInFlight.get()) && !maxInFlight.compareAndSet(max, current)) {
+                        }
+                        try {
+                            HttpResponse response = factory.getGridHttpClient(10000, 60000).execute(new HttpGet(url));
+                            EntityUtils.consume(response.getEntity());
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                        latency.recordSince(started);
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            result.get(5, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        return maxInFlight.get();
+    }
+}
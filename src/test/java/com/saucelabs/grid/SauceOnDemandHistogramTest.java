@@ -0,0 +1,95 @@
+package com.saucelabs.grid;
+
+import org.json.JSONObject;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+public class SauceOnDemandHistogramTest {
+
+    @Test
+    public void durationsAreBucketedByPowersOfTwoMicroseconds() {
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(0), 0);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(1), 0);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(2), 1);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(3), 2);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(1024), 10);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(1025), 11);
+        Assert.assertEquals(SauceOnDemandHistogram.bucket(Long.MAX_VALUE), SauceOnDemandHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void quantilesAreReportedAsBucketUpperBounds() throws Exception {
+        SauceOnDemandHistogram histogram = new SauceOnDemandHistogram("test", "Test histogram");
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(1000));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        Assert.assertEquals(histogram.getCount(), 100);
+        Assert.assertEquals(histogram.getQuantile(0.5), 1.024);
+        Assert.assertEquals(histogram.getQuantile(0.99), 131.072);
+
+        JSONObject json = histogram.toJSON();
+        Assert.assertEquals(json.getLong("count"), 100);
+        Assert.assertEquals(json.getJSONArray("buckets").length(), 2);
+    }
+
+    @Test
+    public void prometheusBucketsAreCumulative() {
+        SauceOnDemandHistogram histogram = new SauceOnDemandHistogram("test", "Test histogram");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(1));
+        histogram.record(TimeUnit.SECONDS.toNanos(1));
+        StringBuilder builder = new StringBuilder();
+        histogram.writePrometheus(builder);
+        String text = builder.toString();
+
+        Assert.assertTrue(text.contains("# TYPE sauce_test_seconds histogram\n"), text);
+        Assert.assertTrue(text.contains("sauce_test_seconds_bucket{le=\"1.0E-6\"} 1\n"), text);
+        Assert.assertTrue(text.contains("sauce_test_seconds_bucket{le=\"+Inf\"} 2\n"), text);
+        Assert.assertTrue(text.contains("sauce_test_seconds_count 2\n"), text);
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        SauceOnDemandHistogram histogram = new SauceOnDemandHistogram("test", "Test histogram");
+        for (int i = 0; i < 10000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        Assert.assertTrue(allocated < 1024, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    public void servletIncludesProxyMetrics() throws Exception {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        Registry registry = Registry.newInstance();
+        try {
+            SauceOnDemandRemoteProxy proxy = new SauceOnDemandRemoteProxy(request, registry);
+            registry.add(proxy);
+            SauceOnDemandMetricsServlet servlet = new SauceOnDemandMetricsServlet(registry);
+
+            JSONObject json = servlet.toJSON();
+            Assert.assertTrue(json.has("new_session"));
+            Assert.assertTrue(json.getJSONObject("proxies").getJSONObject(proxy.getId()).has("matcherHits"));
+            String text = servlet.toPrometheus();
+            Assert.assertTrue(text.contains("sauce_sessions{proxy=\"" + proxy.getId() + "\"} 0\n"), text);
+        } finally {
+            registry.stop();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.saucelabs.grid;
+
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the throughput of the proxy methods the Registry calls for every slot with logging turned off, and with
+ * all of their logging written to a file by the synchronous {@link FileHandler} and by the {@link AsyncLogHandler}.
+ * <p/>
+ * Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandLoggingBenchmarkTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 50000;
+
+    private Registry registry;
+    private SauceOnDemandRemoteProxy proxy;
+    private Map<String, Object> requestedCapability;
+    private Logger logger;
+    private File file;
+
+    @BeforeClass(groups = {"benchmark"})
+    public void createProxy() throws Exception {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        registry = Registry.newInstance();
+        proxy = new SauceOnDemandRemoteProxy(request, registry);
+        requestedCapability = new HashMap<String, Object>(DesiredCapabilities.firefox().asMap());
+        logger = Logger.getLogger(SauceOnDemandRemoteProxy.class.getName());
+        logger.setUseParentHandlers(false);
+        file = File.createTempFile("sauce-logging-benchmark", ".log");
+    }
+
+    @AfterClass(groups = {"benchmark"})
+    public void stopRegistry() {
+        logger.setLevel(null);
+        logger.setUseParentHandlers(true);
+        registry.stop();
+        file.delete();
+    }
+
+    public void asynchronousLoggingDoesNotBlockRegistry() throws Exception {
+        logger.setLevel(Level.INFO);
+        measure(null);
+        long off = measure(null);
+
+        logger.setLevel(Level.ALL);
+        FileHandler fileHandler = new FileHandler(file.getAbsolutePath());
+        fileHandler.setFormatter(new LogFormatter());
+        long synchronous = measure(fileHandler);
+
+        AsyncLogHandler asyncHandler = new AsyncLogHandler(new FileOutputStream(file), AsyncLogHandler.DEFAULT_CAPACITY,
+                AsyncLogHandler.DEFAULT_BATCH_SIZE);
+        long asynchronous = measure(asyncHandler);
+
+        System.out.println("Registry scans with " + THREADS + " threads: off=" + perSecond(off) + "/s, synchronous="
+                + perSecond(synchronous) + "/s, asynchronous=" + perSecond(asynchronous) + "/s (dropped "
+                + asyncHandler.getDropped() + " records)");
+        Assert.assertTrue(off < synchronous, "logging turned off should be faster than synchronous logging");
+        Assert.assertTrue(asynchronous < synchronous, "asynchronous logging should be faster than synchronous logging");
+    }
+
+    private static long perSecond(long nanos) {
+        return THREADS * (long) OPERATIONS * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    /**
+     * @param handler handler the proxy logs to, which is closed once the measurement completes
+     * @return elapsed time in nanoseconds
+     */
+    private long measure(Handler handler) throws Exception {
+        if (handler != null) {
+            logger.addHandler(handler);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        for (int j = 0; j < OPERATIONS; j++) {
+                            proxy.hasCapability(requestedCapability);
+                            proxy.getMaxNumberOfConcurrentTestSessions();
+                        }
+                        return null;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+            if (handler != null) {
+                logger.removeHandler(handler);
+                handler.close();
+            }
+        }
+    }
+}
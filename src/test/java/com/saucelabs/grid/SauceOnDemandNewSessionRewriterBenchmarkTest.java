@@ -0,0 +1,88 @@
+package com.saucelabs.grid;
+
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Compares the time taken and bytes allocated to add the Sauce credentials to new session bodies carrying a
+ * (base64 encoded) Firefox profile, by the streaming rewriter and by the previous JSONObject parse and serialize.
+ * <p/>
+ * Allocation is measured with the HotSpot per-thread allocation counter.  Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandNewSessionRewriterBenchmarkTest {
+
+    /**
+     * Approximate number of bytes rewritten by each measurement.
+     */
+    private static final long BYTES_PER_MEASUREMENT = 200L * 1024 * 1024;
+
+    private interface Rewrite {
+        byte[] run(byte[] body) throws Exception;
+    }
+
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        return new Object[][]{{1024}, {100 * 1024}, {1024 * 1024}, {20 * 1024 * 1024}};
+    }
+
+    @Test(dataProvider = "sizes", groups = {"benchmark"})
+    public void streamingRewriteAllocatesLess(int size) throws Exception {
+        char[] profile = new char[size];
+        Arrays.fill(profile, 'Q');
+        byte[] body = ("{\"desiredCapabilities\":{\"browserName\":\"firefox\",\"platform\":\"ANY\","
+                + "\"sauce:platform\":\"Windows 10\",\"firefox_profile\":\"" + new String(profile) + "\"}}")
+                .getBytes("UTF-8");
+        Rewrite legacy = new Rewrite() {
+            public byte[] run(byte[] body) throws Exception {
+                JSONObject json = new JSONObject(new String(body, "UTF-8"));
+                JSONObject desiredCapabilities = json.getJSONObject("desiredCapabilities");
+                if (desiredCapabilities.has("sauce:platform")) {
+                    desiredCapabilities.put("platform", desiredCapabilities.getString("sauce:platform"));
+                }
+                desiredCapabilities.put("username", "user");
+                desiredCapabilities.put("accessKey", "key");
+                return json.toString().getBytes();
+            }
+        };
+        Rewrite streaming = new Rewrite() {
+            public byte[] run(byte[] body) throws Exception {
+                return SauceOnDemandNewSessionRewriter.rewrite(body, "user", "key");
+            }
+        };
+        int iterations = (int) Math.max(3, Math.min(5000, BYTES_PER_MEASUREMENT / body.length));
+        long[] legacyResult = measure(legacy, body, iterations);
+        long[] streamingResult = measure(streaming, body, iterations);
+        System.out.println("New session rewrite (" + body.length + " bytes): JSONObject " + legacyResult[0] + "us, "
+                + legacyResult[1] + " bytes; streaming " + streamingResult[0] + "us, " + streamingResult[1] + " bytes");
+        Assert.assertTrue(streamingResult[0] < legacyResult[0], "streaming rewrite should be faster");
+        if (size >= 100 * 1024) {
+            //small bodies are dominated by the fixed size reader and encoder buffers
+            Assert.assertTrue(streamingResult[1] < legacyResult[1], "streaming rewrite should allocate less");
+        }
+    }
+
+    /**
+     * @return average microseconds and bytes allocated per rewrite
+     */
+    private static long[] measure(Rewrite rewrite, byte[] body, int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            rewrite.run(body);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            rewrite.run(body);
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        return new long[]{elapsed / iterations / 1000, allocated / iterations};
+    }
+}
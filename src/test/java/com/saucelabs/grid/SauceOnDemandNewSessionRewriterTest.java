@@ -0,0 +1,103 @@
+package com.saucelabs.grid;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SauceOnDemandNewSessionRewriterTest {
+
+    private static JSONObject rewrite(String body) throws Exception {
+        byte[] rewritten = SauceOnDemandNewSessionRewriter.rewrite(body.getBytes("UTF-8"), "user", "key");
+        return rewritten == null ? null : new JSONObject(new String(rewritten, "UTF-8"));
+    }
+
+    @Test
+    public void credentialsAreAddedToDesiredCapabilities() throws Exception {
+        JSONObject json = rewrite("{\"desiredCapabilities\":{\"browserName\":\"firefox\",\"username\":\"other\","
+                + "\"version\":38,\"loggingPrefs\":{\"browser\":\"ALL\"},\"javascriptEnabled\":true,\"proxy\":null}}");
+        JSONObject desiredCapabilities = json.getJSONObject("desiredCapabilities");
+
+        Assert.assertEquals(desiredCapabilities.getString("username"), "user");
+        Assert.assertEquals(desiredCapabilities.getString("accessKey"), "key");
+        Assert.assertEquals(desiredCapabilities.getString("browserName"), "firefox");
+        Assert.assertEquals(desiredCapabilities.getInt("version"), 38);
+        Assert.assertEquals(desiredCapabilities.getJSONObject("loggingPrefs").getString("browser"), "ALL");
+        Assert.assertTrue(desiredCapabilities.getBoolean("javascriptEnabled"));
+        Assert.assertTrue(desiredCapabilities.isNull("proxy"));
+    }
+
+    @Test
+    public void saucePlatformReplacesPlatform() throws Exception {
+        JSONObject json = rewrite("{\"desiredCapabilities\":{\"platform\":\"ANY\",\"sauce:platform\":\"OS X 10.10\"},"
+                + "\"capabilities\":{\"alwaysMatch\":{\"platformName\":\"any\",\"sauce:platform\":\"Windows 10\"}}}");
+
+        Assert.assertEquals(json.getJSONObject("desiredCapabilities").getString("platform"), "OS X 10.10");
+        Assert.assertEquals(json.getJSONObject("capabilities").getJSONObject("alwaysMatch").getString("platformName"),
+                "Windows 10");
+    }
+
+    @Test
+    public void credentialsAreAddedToAlwaysMatchSauceOptions() throws Exception {
+        JSONObject json = rewrite("{\"capabilities\":{\"firstMatch\":[{}],"
+                + "\"alwaysMatch\":{\"browserName\":\"chrome\",\"sauce:options\":{\"name\":\"test\",\"accessKey\":\"x\"}}}}");
+        JSONObject capabilities = json.getJSONObject("capabilities");
+        JSONObject sauceOptions = capabilities.getJSONObject("alwaysMatch").getJSONObject("sauce:options");
+
+        Assert.assertEquals(sauceOptions.getString("name"), "test");
+        Assert.assertEquals(sauceOptions.getString("username"), "user");
+        Assert.assertEquals(sauceOptions.getString("accessKey"), "key");
+        Assert.assertEquals(capabilities.getJSONArray("firstMatch").getJSONObject(0).length(), 0);
+    }
+
+    @Test
+    public void alwaysMatchIsAddedIfMissing() throws Exception {
+        JSONObject json = rewrite("{\"capabilities\":{\"firstMatch\":[{\"browserName\":\"firefox\"}]}}");
+        JSONObject capabilities = json.getJSONObject("capabilities");
+
+        Assert.assertEquals(capabilities.getJSONObject("alwaysMatch").getJSONObject("sauce:options")
+                .getString("username"), "user");
+        Assert.assertFalse(capabilities.getJSONArray("firstMatch").getJSONObject(0).has("sauce:options"));
+    }
+
+    @Test
+    public void credentialsAreAddedToEachFirstMatchIfTheyHoldSauceOptions() throws Exception {
+        JSONObject json = rewrite("{\"capabilities\":{\"alwaysMatch\":{\"browserName\":\"chrome\"},\"firstMatch\":["
+                + "{\"sauce:options\":{\"name\":\"first\"}},{\"platformName\":\"linux\"}]}}");
+        JSONObject capabilities = json.getJSONObject("capabilities");
+        JSONArray firstMatch = capabilities.getJSONArray("firstMatch");
+
+        Assert.assertFalse(capabilities.getJSONObject("alwaysMatch").has("sauce:options"));
+        Assert.assertEquals(firstMatch.getJSONObject(0).getJSONObject("sauce:options").getString("name"), "first");
+        Assert.assertEquals(firstMatch.getJSONObject(0).getJSONObject("sauce:options").getString("accessKey"), "key");
+        Assert.assertEquals(firstMatch.getJSONObject(1).getJSONObject("sauce:options").getString("accessKey"), "key");
+    }
+
+    @Test
+    public void largeValuesAreCopiedUnchanged() throws Exception {
+        char[] profile = new char[1024 * 1024];
+        Arrays.fill(profile, 'A');
+        String body = "{\"desiredCapabilities\":{\"firefox_profile\":\"" + new String(profile)
+                + "\",\"size\":1.50e3},\"requiredCapabilities\":{\"extensions\":[\"\\u00e9\\n\\\"\"]}}";
+        JSONObject json = rewrite(body);
+
+        Assert.assertEquals(json.getJSONObject("desiredCapabilities").getString("firefox_profile").length(),
+                profile.length);
+        Assert.assertEquals(json.getJSONObject("desiredCapabilities").getDouble("size"), 1500d);
+        Assert.assertEquals(json.getJSONObject("requiredCapabilities").getJSONArray("extensions").getString(0),
+                "é\n\"");
+    }
+
+    @Test
+    public void bodiesWithoutCapabilitiesAreNotRewritten() throws Exception {
+        Assert.assertNull(rewrite("{\"sessionId\":null}"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void malformedBodiesAreRejected() throws Exception {
+        rewrite("[\"desiredCapabilities\"]");
+    }
+}
@@ -0,0 +1,88 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+
+public class SauceOnDemandProxyConfigurationTest {
+
+    private Registry registry;
+    private File file;
+
+    @BeforeMethod
+    public void createRegistry() throws Exception {
+        registry = Registry.newInstance();
+        file = File.createTempFile("sauce-ondemand", ".json");
+    }
+
+    @AfterMethod
+    public void stopRegistry() {
+        registry.stop();
+        file.delete();
+    }
+
+    @Test
+    public void savingKeepsSettingsNotOnTheAdminPage() throws Exception {
+        JSONObject saved = new JSONObject();
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_USER_NAME, "old");
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_ACCOUNTS, new JSONArray().put(new JSONObject()
+                .put(SauceOnDemandRemoteProxy.SAUCE_USER_NAME, "second")
+                .put(SauceOnDemandRemoteProxy.SAUCE_ACCESS_KEY, "second-key")));
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_ENDPOINTS,
+                new JSONArray().put(new JSONObject().put("url", "https://saucelabs.com/")));
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_ENDPOINT_PROBE_INTERVAL, 30000);
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_STATUS_POLL_INTERVAL, 5000);
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_CIRCUIT_FAILURE_THRESHOLD, 3);
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_BROWSERS_CACHE_TTL, 60000);
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_ACCOUNT_POLL_INTERVAL, 10000);
+        saved.put(SauceOnDemandRemoteProxy.SAUCE_POOL_SIZE, 30);
+        FileWriter writer = new FileWriter(file);
+        writer.write(saved.toString());
+        writer.close();
+
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, false);
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        SauceOnDemandRemoteProxy proxy = new SauceOnDemandRemoteProxy(request, registry);
+        proxy.setUserName("new");
+        proxy.setAccessKey("new-key");
+        proxy.writeConfigurationToFile(file);
+
+        FileReader reader = new FileReader(file);
+        JSONObject written = new JSONObject(new JSONTokener(reader));
+        reader.close();
+        Assert.assertEquals(written.getString(SauceOnDemandRemoteProxy.SAUCE_USER_NAME), "new");
+        Assert.assertEquals(written.getString(SauceOnDemandRemoteProxy.SAUCE_ACCESS_KEY), "new-key");
+        for (String key : JSONObject.getNames(saved)) {
+            if (!key.equals(SauceOnDemandRemoteProxy.SAUCE_USER_NAME)) {
+                Assert.assertEquals(written.get(key).toString(), saved.get(key).toString(), key);
+            }
+        }
+    }
+
+    @Test
+    public void restClientSettingsAreApplied() {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_REST_MAX_CONNECTIONS, "30");
+        try {
+            SauceOnDemandRemoteProxy.configureRestClient(request);
+            Assert.assertEquals(SauceOnDemandRemoteProxy.getRestClient().getConnectionPoolStatistics().getMax(), 30);
+        } finally {
+            SauceOnDemandRemoteProxy.getRestClient()
+                    .setMaxTotalConnections(SauceOnDemandServiceImpl.DEFAULT_MAX_TOTAL_CONNECTIONS);
+        }
+    }
+}
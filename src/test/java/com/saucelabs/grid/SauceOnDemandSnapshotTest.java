@@ -0,0 +1,65 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.BrowsersResponse;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
+
+public class SauceOnDemandSnapshotTest {
+
+    private static final String FIREFOX = "{\"selenium_name\" : \"firefox\", \"short_version\" : \"12\","
+            + "\"long_name\" : \"Firefox\", \"long_version\" : \"12.0.\", \"preferred_version\" : \"12\","
+            + "\"os\" : \"Windows 2008\", \"api_name\" : \"firefox\"}";
+
+    private File file;
+
+    @BeforeMethod
+    public void createFile() throws Exception {
+        file = File.createTempFile("sauce-ondemand-snapshot", ".json");
+        file.delete();
+    }
+
+    @AfterMethod
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void storedValuesAreReadBackOnStartup() throws Exception {
+        SauceOnDemandCapabilities firefox = new SauceOnDemandCapabilities(FIREFOX);
+        SauceOnDemandSnapshot snapshot = new SauceOnDemandSnapshot(file);
+        snapshot.saveBrowsers(BrowsersCache.Catalog.WEB_DRIVER,
+                new BrowsersResponse(Arrays.asList(firefox), "\"v1\"", null));
+        snapshot.saveMaximumSessions("user", 3);
+
+        SauceOnDemandSnapshot restarted = new SauceOnDemandSnapshot(file);
+        BrowsersResponse browsers = restarted.getBrowsers(BrowsersCache.Catalog.WEB_DRIVER);
+        List<SauceOnDemandCapabilities> list = browsers.getBrowsers();
+        Assert.assertEquals(list.size(), 1);
+        Assert.assertEquals(list.get(0).getMD5(), firefox.getMD5(), "browser ids must survive a restart");
+        Assert.assertEquals(list.get(0).asMap(), firefox.asMap());
+        Assert.assertEquals(browsers.getETag(), "\"v1\"");
+        Assert.assertNull(restarted.getBrowsers(BrowsersCache.Catalog.SELENIUM_RC));
+        Assert.assertEquals(restarted.getMaximumSessions("user"), Integer.valueOf(3));
+        Assert.assertNull(restarted.getMaximumSessions("other"));
+    }
+
+    @Test
+    public void corruptSnapshotIsIgnored() throws Exception {
+        FileWriter writer = new FileWriter(file);
+        writer.write("{\"webDriver\" : [");
+        writer.close();
+
+        SauceOnDemandSnapshot snapshot = new SauceOnDemandSnapshot(file);
+        Assert.assertNull(snapshot.getBrowsers(BrowsersCache.Catalog.WEB_DRIVER));
+
+        snapshot.saveMaximumSessions("user", 3);
+        Assert.assertEquals(new SauceOnDemandSnapshot(file).getMaximumSessions("user"), Integer.valueOf(3));
+    }
+}
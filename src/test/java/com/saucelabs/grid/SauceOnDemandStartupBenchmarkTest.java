@@ -0,0 +1,78 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import com.saucelabs.grid.utils.StandInSauceRestServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time taken to load the browser catalogs and account limits at startup with and without a snapshot,
+ * against a stand-in REST server which simulates a slow saucelabs.com.
+ * <p/>
+ * Run with <code>mvn test -P benchmark</code>.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandStartupBenchmarkTest {
+
+    private static final int BROWSERS = 500;
+    private static final long DELAY = 1000;
+    private static final int ITERATIONS = 5;
+
+    private StandInSauceRestServer server;
+    private SauceOnDemandServiceImpl service;
+    private File file;
+
+    @BeforeClass(groups = {"benchmark"})
+    public void startServer() throws Exception {
+        server = new StandInSauceRestServer(BROWSERS, DELAY);
+        service = new SauceOnDemandServiceImpl(server.start());
+        file = File.createTempFile("sauce-ondemand-snapshot", ".json");
+        file.delete();
+    }
+
+    @AfterClass(groups = {"benchmark"})
+    public void stopServer() {
+        service.close();
+        server.stop();
+        file.delete();
+    }
+
+    public void snapshotStartupDoesNotWaitForSauce() throws Exception {
+        long cold = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            file.delete();
+            cold = Math.min(cold, startup());
+        }
+        long warm = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            warm = Math.min(warm, startup());
+        }
+        System.out.println("Startup with " + BROWSERS + " browsers and " + DELAY + "ms REST latency: cold="
+                + TimeUnit.NANOSECONDS.toMillis(cold) + "ms, snapshot=" + TimeUnit.NANOSECONDS.toMillis(warm) + "ms");
+        Assert.assertTrue(warm < TimeUnit.MILLISECONDS.toNanos(DELAY), "snapshot startup should not wait for Sauce");
+        Assert.assertTrue(cold >= TimeUnit.MILLISECONDS.toNanos(DELAY));
+    }
+
+    /**
+     * Performs the work done while the hub registers the proxy: loads both catalogs and the account limits.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    private long startup() throws Exception {
+        long start = System.nanoTime();
+        SauceOnDemandSnapshot snapshot = new SauceOnDemandSnapshot(file);
+        BrowsersCache webDriver = new BrowsersCache(service, BrowsersCache.Catalog.WEB_DRIVER, snapshot);
+        BrowsersCache selenium = new BrowsersCache(service, BrowsersCache.Catalog.SELENIUM_RC, snapshot);
+        Assert.assertEquals(webDriver.getAllBrowsers().size(), BROWSERS);
+        Assert.assertEquals(selenium.getAllBrowsers().size(), BROWSERS);
+        if (snapshot.getMaximumSessions("user") == null) {
+            snapshot.saveMaximumSessions("user", service.getMaxiumumSessions("user", "key"));
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,121 @@
+package com.saucelabs.grid;
+
+import com.saucelabs.grid.services.SauceOnDemandRestAPIException;
+import com.saucelabs.grid.services.SauceOnDemandServiceImpl;
+import com.saucelabs.grid.services.SauceOnDemandStatusMonitor;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.Registry;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class SauceOnDemandStatusMonitorTest {
+
+    private static class StubService extends SauceOnDemandServiceImpl {
+
+        private volatile boolean up = true;
+        private volatile boolean fail;
+
+        @Override
+        public boolean isSauceLabUp() throws SauceOnDemandRestAPIException {
+            if (fail) {
+                throw new SauceOnDemandRestAPIException("raw response:none", new RuntimeException("down"));
+            }
+            return up;
+        }
+    }
+
+    @Test
+    public void reportsLastPolledStatus() {
+        StubService service = new StubService();
+        SauceOnDemandStatusMonitor monitor = new SauceOnDemandStatusMonitor(service);
+        monitor.refresh();
+        Assert.assertTrue(monitor.isSauceAvailable());
+
+        service.up = false;
+        monitor.refresh();
+        Assert.assertFalse(monitor.isSauceAvailable());
+    }
+
+    @Test
+    public void failedPollRetainsPreviousStatus() {
+        StubService service = new StubService();
+        SauceOnDemandStatusMonitor monitor = new SauceOnDemandStatusMonitor(service);
+        monitor.refresh();
+        long checkedAt = monitor.getStatus().getCheckedAt();
+
+        service.fail = true;
+        monitor.refresh();
+        Assert.assertTrue(monitor.isSauceAvailable());
+        Assert.assertEquals(monitor.getStatus().getCheckedAt(), checkedAt);
+    }
+
+    @Test
+    public void stalePolicyAppliesToOldStatus() {
+        StubService service = new StubService();
+        SauceOnDemandStatusMonitor monitor = new SauceOnDemandStatusMonitor(service);
+        monitor.refresh();
+        monitor.setMaxAge(-1);
+
+        monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.ASSUME_UNAVAILABLE);
+        Assert.assertFalse(monitor.isSauceAvailable());
+        monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.LAST_KNOWN);
+        Assert.assertTrue(monitor.isSauceAvailable());
+
+        service.up = false;
+        monitor.refresh();
+        monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.ASSUME_AVAILABLE);
+        Assert.assertTrue(monitor.isSauceAvailable());
+    }
+
+    @Test
+    public void neverPolledStatusIsUnknown() {
+        StubService service = new StubService();
+        service.fail = true;
+        SauceOnDemandStatusMonitor monitor = new SauceOnDemandStatusMonitor(service);
+        monitor.refresh();
+        Assert.assertEquals(monitor.getStatus().getCheckedAt(), 0);
+        Assert.assertTrue(monitor.isSauceAvailable(), "a failed first poll isn't evidence that Sauce is down");
+
+        monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.ASSUME_UNAVAILABLE);
+        Assert.assertFalse(monitor.isSauceAvailable());
+    }
+
+    @Test
+    public void localOnlyProxyIgnoresSauceStatus() {
+        SauceOnDemandStatusMonitor monitor = SauceOnDemandRemoteProxy.getStatusMonitor();
+        Registry registry = Registry.newInstance();
+        try {
+            SauceOnDemandRemoteProxy local = proxy(registry, false);
+            SauceOnDemandRemoteProxy sauce = proxy(registry, true);
+            monitor.stop();
+            //failed polls by other proxies may have opened the shared circuit breaker
+            SauceOnDemandRemoteProxy.getCircuitBreaker().recordSuccess();
+            monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.ASSUME_UNAVAILABLE);
+            Assert.assertFalse(monitor.isSauceAvailable());
+
+            Map<String, Object> firefox = new HashMap<String, Object>(DesiredCapabilities.firefox().asMap());
+            Assert.assertNotNull(local.getNewSession(firefox), "local-only proxy shouldn't depend on Sauce");
+            try {
+                sauce.getNewSession(firefox);
+                Assert.fail("exception expected");
+            } catch (RuntimeException expected) {
+                //expected
+            }
+        } finally {
+            monitor.setStalePolicy(SauceOnDemandStatusMonitor.StalePolicy.LAST_KNOWN);
+            registry.stop();
+        }
+    }
+
+    private static SauceOnDemandRemoteProxy proxy(Registry registry, boolean sauce) {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(SauceOnDemandRemoteProxy.SAUCE_ENABLE, sauce);
+        request.addDesiredCapability(DesiredCapabilities.firefox());
+        return new SauceOnDemandRemoteProxy(request, registry);
+    }
+}
@@ -0,0 +1,69 @@
+package com.saucelabs.grid;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the elapsed time and the platform threads used to run blocking Sauce calls concurrently on platform
+ * threads and on virtual threads.  Each call blocks for the simulated Sauce latency.
+ * <p/>
+ * Run with <code>mvn test -P benchmark</code> on Java 21 or later.
+ */
+@Test(groups = {"benchmark"})
+public class SauceOnDemandThreadsBenchmarkTest {
+
+    private static final int CALLS = 5000;
+    private static final long DELAY = 200;
+
+    public void virtualThreadsUseFewerPlatformThreads() throws Exception {
+        if (!SauceOnDemandThreads.isVirtualSupported()) {
+            throw new SkipException("virtual threads aren't supported by Java " + System.getProperty("java.version"));
+        }
+        run(false);
+        run(true);
+        long[] platform = run(false);
+        long[] virtual = run(true);
+        Assert.assertTrue(virtual[1] * 10 < platform[1], "virtual threads should need few platform threads");
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds, and the peak number of platform threads added
+     */
+    private long[] run(boolean virtual) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int before = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        ExecutorService executor = SauceOnDemandThreads.newTaskExecutor("sauce-benchmark-%d", virtual);
+        long start = System.nanoTime();
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < CALLS; i++) {
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    Thread.sleep(DELAY);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        long added = threads.getPeakThreadCount() - before;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println(CALLS + " concurrent calls with " + DELAY + "ms latency on "
+                + (virtual ? "virtual" : "platform") + " threads: " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "ms, platform threads added=" + added);
+        return new long[]{elapsed, added};
+    }
+}
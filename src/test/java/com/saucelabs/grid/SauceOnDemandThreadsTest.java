@@ -0,0 +1,61 @@
+package com.saucelabs.grid;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+public class SauceOnDemandThreadsTest {
+
+    private static final Runnable NOTHING = new Runnable() {
+        public void run() {
+        }
+    };
+
+    @Test
+    public void platformThreadsAreNamedDaemons() {
+        Thread thread = SauceOnDemandThreads.newThreadFactory("sauce-test-%d", false).newThread(NOTHING);
+
+        Assert.assertEquals(thread.getName(), "sauce-test-0");
+        Assert.assertTrue(thread.isDaemon());
+        Assert.assertFalse(isVirtual(thread));
+    }
+
+    @Test
+    public void virtualThreadsAreUsedIfSupported() throws Exception {
+        Thread thread = SauceOnDemandThreads.newThreadFactory("sauce-test-%d", true).newThread(NOTHING);
+
+        Assert.assertEquals(isVirtual(thread), SauceOnDemandThreads.isVirtualSupported());
+        Assert.assertEquals(thread.getName(), "sauce-test-0");
+        Assert.assertTrue(thread.isDaemon());
+    }
+
+    @Test
+    public void tasksAreRunOnVirtualThreads() throws Exception {
+        if (!SauceOnDemandThreads.isVirtualSupported()) {
+            throw new SkipException("virtual threads aren't supported by Java " + System.getProperty("java.version"));
+        }
+        ExecutorService executor = SauceOnDemandThreads.newTaskExecutor("sauce-test-%d", true);
+        try {
+            Assert.assertTrue(executor.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return isVirtual(Thread.currentThread());
+                }
+            }).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.saucelabs.grid;
+
+import org.json.JSONObject;
+import org.openqa.grid.common.RegistrationRequest;
+import org.openqa.grid.internal.DefaultTimeSource;
+import org.openqa.grid.internal.Registry;
+import org.openqa.grid.internal.TestSession;
+import org.openqa.grid.internal.TestSlot;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SauceOnDemandUsageTest {
+
+    private static final int THREADS = 16;
+    private static final int SESSIONS_PER_THREAD = 5000;
+
+    private Registry registry;
+    private SauceOnDemandRemoteProxy proxy;
+
+    @BeforeMethod
+    public void createProxy() {
+        RegistrationRequest request = new RegistrationRequest();
+        request.getConfiguration().put(RegistrationRequest.REMOTE_HOST, "http://localhost:4444");
+        request.getConfiguration().put(RegistrationRequest.MAX_SESSION, 5);
+        DesiredCapabilities firefox = DesiredCapabilities.firefox();
+        firefox.setCapability(RegistrationRequest.MAX_INSTANCES, 5);
+        request.addDesiredCapability(firefox);
+        request.addDesiredCapability(DesiredCapabilities.chrome());
+        registry = Registry.newInstance();
+        proxy = new SauceOnDemandRemoteProxy(request, registry);
+    }
+
+    @AfterMethod
+    public void stopRegistry() {
+        registry.stop();
+    }
+
+    @Test
+    public void sessionsAreCountedAgainstSupportedCapability() throws Exception {
+        TestSession firefox = session("firefox");
+        TestSession chrome = session("chrome");
+        proxy.beforeSession(firefox);
+        proxy.beforeSession(chrome);
+
+        SauceOnDemandUsage usage = proxy.getUsage();
+        Assert.assertEquals(usage.getTotal(), 2);
+        Assert.assertEquals(usage.get(name("firefox")), 1);
+        Assert.assertEquals(usage.get(name("chrome")), 1);
+        JSONObject json = usage.toJSON(proxy.getTestSlots().size());
+        Assert.assertEquals(json.getInt("total"), 2);
+        Assert.assertEquals(json.getJSONObject("capabilities").getInt(name("chrome")), 1);
+
+        proxy.afterSession(firefox);
+        proxy.afterSession(firefox);
+        Assert.assertEquals(usage.getTotal(), 1, "a session should only be released once");
+        Assert.assertEquals(usage.get(name("firefox")), 0);
+    }
+
+    @Test
+    public void countersDoNotDriftUnderConcurrentSessions() throws Exception {
+        final String[] browsers = {"firefox", "chrome", "safari"};
+        proxy.setShouldHandleUnspecifiedCapabilities(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    start.await();
+                    int negative = 0;
+                    for (int i = 0; i < SESSIONS_PER_THREAD; i++) {
+                        TestSession session = session(browsers[(thread + i) % browsers.length]);
+                        proxy.beforeSession(session);
+                        if (proxy.getUsage().getTotal() <= 0) {
+                            negative++;
+                        }
+                        proxy.afterSession(session);
+                    }
+                    return negative;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Integer> result : results) {
+            Assert.assertEquals(result.get().intValue(), 0, "total should include the thread's running session");
+        }
+        executor.shutdown();
+
+        SauceOnDemandUsage usage = proxy.getUsage();
+        Assert.assertEquals(usage.getTotal(), 0);
+        for (Map.Entry<String, Integer> entry : usage.getCapabilities().entrySet()) {
+            Assert.assertEquals(entry.getValue().intValue(), 0, entry.getKey());
+        }
+        Assert.assertTrue(usage.getCapabilities().containsKey(SauceOnDemandRemoteProxy.UNSPECIFIED_CAPABILITY));
+    }
+
+    private TestSession session(String browserName) {
+        Map<String, Object> requested = new HashMap<String, Object>();
+        requested.put("browserName", browserName);
+        TestSlot slot = proxy.getTestSlots().get(0);
+        return new TestSession(slot, requested, new DefaultTimeSource());
+    }
+
+    private String name(String browserName) {
+        Map<String, Object> requested = new HashMap<String, Object>();
+        requested.put("browserName", browserName);
+        return SauceOnDemandRemoteProxy.getCapabilityName(proxy.getCapabilityHelper().getSupportedCapability(requested));
+    }
+}
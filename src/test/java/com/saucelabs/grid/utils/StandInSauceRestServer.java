@@ -0,0 +1,237 @@
+package com.saucelabs.grid.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the Sauce REST API, which serves a generated browser catalog, account limits and activity after an
+ * injected delay, so that tests can simulate a slow saucelabs.com.  WebDriver commands are answered with a screenshot
+ * of a configurable size, which is gzipped if the request accepts gzip.  The server can also act as an egress proxy
+ * (which requires proxy authentication if credentials are set), as requests sent through a proxy are answered the same
+ * way.
+ *
+ * @author Ross Rowe
+ */
+public class StandInSauceRestServer {
+
+    private static final String ETAG = "\"catalog-1\"";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] browsers;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<InetSocketAddress> clients =
+            Collections.newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
+    private volatile long delay;
+    private volatile int concurrency = 10;
+    private volatile int activeSessions;
+    private volatile int accountStatus = 200;
+    private volatile byte[] screenshot;
+    private volatile byte[] gzippedScreenshot;
+    private volatile String acceptEncoding;
+    private volatile String proxyAuthorization;
+
+    /**
+     * @param browserCount number of browsers to include in each catalog
+     * @param delay        time (in milliseconds) to wait before responding to each request
+     */
+    public StandInSauceRestServer(int browserCount, long delay) throws IOException {
+        this.browsers = catalog(browserCount).getBytes("UTF-8");
+        this.delay = delay;
+        setScreenshotSize(1024);
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/rest/v1/info/status", new Handler() {
+            byte[] body(HttpExchange exchange) throws IOException {
+                return "{\"service_operational\" : true, \"status_message\" : \"Basic service status checks passed.\"}".getBytes("UTF-8");
+            }
+        });
+        server.createContext("/rest/v1/info/browsers", new Handler() {
+            byte[] body(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    return null;
+                }
+                return browsers;
+            }
+        });
+        server.createContext("/wd/hub/", new Handler() {
+            byte[] body(HttpExchange exchange) throws IOException {
+                acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    return gzippedScreenshot;
+                }
+                return screenshot;
+            }
+        });
+        server.createContext("/rest/v1/", new Handler() {
+            @Override
+            int status() {
+                return accountStatus;
+            }
+
+            byte[] body(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("/activity")) {
+                    return ("{\"subaccounts\" : {}, \"totals\" : {\"all\" : " + activeSessions
+                            + ", \"in progress\" : " + activeSessions + ", \"queued\" : 0}}").getBytes("UTF-8");
+                }
+                return ("{\"concurrency\" : " + concurrency + "}").getBytes("UTF-8");
+            }
+        });
+    }
+
+    public String start() {
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setActiveSessions(int activeSessions) {
+        this.activeSessions = activeSessions;
+    }
+
+    /**
+     * @param accountStatus HTTP status of the responses to the account limits and activity requests, such as 401 for
+     *                      an invalid access key
+     */
+    public void setAccountStatus(int accountStatus) {
+        this.accountStatus = accountStatus;
+    }
+
+    /**
+     * @param size size in bytes of the screenshot returned for WebDriver commands
+     */
+    public void setScreenshotSize(int size) throws IOException {
+        this.screenshot = screenshot(size);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(screenshot);
+        out.close();
+        this.gzippedScreenshot = bytes.toByteArray();
+    }
+
+    /**
+     * @param user     user name proxy requests must authenticate with, or null to not require proxy authentication
+     * @param password
+     */
+    public void setProxyCredentials(String user, String password) throws IOException {
+        this.proxyAuthorization = user == null ? null
+                : "Basic " + Base64.encodeBase64String((user + ":" + password).getBytes("UTF-8"));
+    }
+
+    public int getGzippedScreenshotSize() {
+        return gzippedScreenshot.length;
+    }
+
+    /**
+     * @return the Accept-Encoding header of the last WebDriver command received
+     */
+    public String getAcceptEncoding() {
+        return acceptEncoding;
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of distinct client connections requests have been received on
+     */
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    private static byte[] screenshot(int size) throws IOException {
+        byte[] prefix = "{\"sessionId\":\"1234\",\"status\":0,\"value\":\"".getBytes("UTF-8");
+        byte[] body = new byte[Math.max(size, prefix.length + 2)];
+        System.arraycopy(prefix, 0, body, 0, prefix.length);
+        Arrays.fill(body, prefix.length, body.length - 2, (byte) 'A');
+        body[body.length - 2] = '"';
+        body[body.length - 1] = '}';
+        return body;
+    }
+
+    private static String catalog(int browserCount) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < browserCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"selenium_name\" : \"firefox\", \"short_version\" : \"").append(i)
+                    .append("\", \"long_name\" : \"Firefox\", \"long_version\" : \"").append(i)
+                    .append(".0.\", \"preferred_version\" : \"").append(i)
+                    .append("\", \"os\" : \"Windows 2008\", \"api_name\" : \"firefox\"}");
+        }
+        return builder.append(']').toString();
+    }
+
+    private abstract class Handler implements HttpHandler {
+
+        /**
+         * @return the response body, or null if a 304 should be returned
+         */
+        abstract byte[] body(HttpExchange exchange) throws IOException;
+
+        /**
+         * @return the HTTP status of the response, if it has a body
+         */
+        int status() {
+            return 200;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            clients.add(exchange.getRemoteAddress());
+            if (proxyAuthorization != null
+                    && !proxyAuthorization.equals(exchange.getRequestHeaders().getFirst("Proxy-Authorization"))) {
+                exchange.getResponseHeaders().set("Proxy-Authenticate", "Basic realm=\"proxy\"");
+                exchange.sendResponseHeaders(407, -1);
+                exchange.close();
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = body(exchange);
+            if (body == null) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.sendResponseHeaders(status(), body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+            exchange.close();
+        }
+    }
+}